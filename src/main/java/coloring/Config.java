@@ -54,6 +54,22 @@ public class Config {
 		    // config fails will fail. This effectively is a default value if low_mapq is missing 
 		    config.put(ConfigKey.low_mapq, "5");
 		}
+		if(!config.containsKey(ConfigKey.prefetch)) {
+		    // Same as low_mapq: Introduced in v1.18
+		    config.put(ConfigKey.prefetch, "false");
+		}
+		if(!config.containsKey(ConfigKey.update_threads)) {
+		    config.put(ConfigKey.update_threads, "4");
+		}
+		if(!config.containsKey(ConfigKey.find_index)) {
+		    config.put(ConfigKey.find_index, "true");
+		}
+		if(!config.containsKey(ConfigKey.in_memory_max_kb)) {
+		    config.put(ConfigKey.in_memory_max_kb, "1024");
+		}
+		if(!config.containsKey(ConfigKey.cache_max_mb)) {
+		    config.put(ConfigKey.cache_max_mb, "10240");
+		}
 		
 		// Check all fields have been populated
 		for(ConfigKey key : ConfigKey.values()){
@@ -40,7 +40,12 @@ public enum ConfigKey {
 	shade_structural_variant("Background colour for reads suggesting structural variation or 'false' for no shading"), 
 	highlight_mid_char("Highlight mid-character in read tracks?"), 
 	nucs_as_letters("Show read nucleotides as letters at single base resolution?"),
-	show_soft_clip("NOT IN USE YET - Show soft clipped bases in read tracks?");
+	show_soft_clip("NOT IN USE YET - Show soft clipped bases in read tracks?"),
+	prefetch("Load neighbouring windows in the background while waiting for input?"),
+	update_threads("Number of tracks to update in parallel. Use 1 to update one track at a time"),
+	find_index("Index annotation tracks to make find faster when searching plain strings?"),
+	in_memory_max_kb("Hold in memory, without indexing, annotation files smaller than this size in kB. Use 0 to always index"),
+	cache_max_mb("Keep sorted and indexed copies of input files across sessions up to this size in MB. Use 0 to not keep");
 	
 	private String value;
 
@@ -83,6 +88,8 @@ public enum ConfigKey {
 		booleanKeys.add(ConfigKey.highlight_mid_char);
 		booleanKeys.add(ConfigKey.nucs_as_letters);
 		booleanKeys.add(ConfigKey.show_soft_clip);
+		booleanKeys.add(ConfigKey.prefetch);
+		booleanKeys.add(ConfigKey.find_index);
 		return booleanKeys;
 	}
 	
@@ -91,6 +98,9 @@ public enum ConfigKey {
 		integerKeys.add(ConfigKey.max_reads_in_stack);
 		integerKeys.add(ConfigKey.shade_baseq);
 		integerKeys.add(ConfigKey.low_mapq);
+		integerKeys.add(ConfigKey.update_threads);
+		integerKeys.add(ConfigKey.in_memory_max_kb);
+		integerKeys.add(ConfigKey.cache_max_mb);
 		return integerKeys;
 	}
 	
@@ -49,6 +49,7 @@ public enum Command {
 	posHistory("posHistory"),
 	history("history"),
 	rpm("rpm"),
+	wiggleStat("wiggleStat"),
 	samtools("samtools"),
 	BSseq("BSseq"),
 	save("save"),
@@ -1242,6 +1242,23 @@ public class CommandList {
                 + "* :code:`track_regex` List of regexes to capture target tracks.");
         cmdList.add(cmd);        
 
+        cmd= new CommandHelp();
+        cmd.setName(Command.wiggleStat.getCmdDescr()); cmd.setArgs("[-mean | -min | -max | -count] [-v] [track_regex = .*]..."); cmd.inSection= Section.DISPLAY; 
+        cmd.setBriefDescription("Set the statistic summarizing the values of bigWig tracks in each screen column.\n");
+        cmd.setAdditionalDescription("When zoomed out, the summary records of the bigWig file are used instead of "
+                + "the raw data so that large windows are displayed quickly.\n"
+                + "\n"
+                + "* :code:`-mean | -min | -max` Show the mean (default), minimum, or maximum value in each column.\n"
+                + "\n"
+                + "* :code:`-count` Show the number of bases with data in each column.\n"
+                + "\n"
+                + "* :code:`-v` Invert selection: apply changes to tracks not selected by list of track_regex\n"
+                + "\n"
+                + "* :code:`track_regex` List of regexes to select tracks. Default: .* (all tracks).\n"
+                + "\n"
+                + "Without arguments reset to mean.");
+        cmdList.add(cmd);        
+
         cmd= new CommandHelp();
         cmd.setName("samtools"); cmd.setArgs("[-f INT=0] [-F INT=4] [-q INT=0] [-v] [track_re = .*] ..."); cmd.inSection= Section.ALIGNMENTS; 
         cmd.setBriefDescription("Apply samtools filters to alignment tracks captured by the list of track regexes.");
@@ -1433,6 +1450,7 @@ public class CommandList {
         paramList.add("posHistory");
         paramList.add("history");
         paramList.add(Command.rpm.getCmdDescr());
+        paramList.add(Command.wiggleStat.getCmdDescr());
         paramList.add("samtools");
         paramList.add(Command.BSseq.getCmdDescr());
         paramList.add("save");
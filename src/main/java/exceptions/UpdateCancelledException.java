@@ -0,0 +1,15 @@
+package exceptions;
+
+import java.io.InterruptedIOException;
+
+/** Thrown by tracks when the user aborts the update in progress. It is an IOException 
+ * so that it goes through the methods reading files without changing their signature.  
+ * */
+public class UpdateCancelledException extends InterruptedIOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+}
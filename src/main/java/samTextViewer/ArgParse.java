@@ -80,6 +80,13 @@ public class ArgParse {
 			.help("Show memory usage and time spent to process input. Typically used for\n"
 			        + "debugging only");
 		
+		parser.addArgument("--nThreads", "-t")
+			.type(Integer.class)
+			.choices(Arguments.range(1, Integer.MAX_VALUE))
+			.setDefault(Runtime.getRuntime().availableProcessors())
+			.help("Number of threads used to sort and compress files when sorting and indexing input.\n"
+					+ "Default is the number of available processors");
+		
 		parser.addArgument("--debug")
 			.type(Integer.class)
 			.choices(0, 1, 2)
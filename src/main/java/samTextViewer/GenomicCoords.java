@@ -60,6 +60,7 @@ public class GenomicCoords implements Cloneable {
 	public boolean isSingleBaseResolution= false;
 	private int terminalWidth;
 	private List<Double> mapping;
+	private ScreenMapper screenMapper;
 	
 	/* Constructors */
 	public GenomicCoords(String region, int terminalWidth, SAMSequenceDictionary samSeqDict, String fastaFile, boolean verbose) throws InvalidGenomicCoordsException, IOException{
@@ -121,6 +122,7 @@ public class GenomicCoords implements Cloneable {
 		this.setSingleBaseResolution(); // True if one text character corresponds to 1 bp
 		this.setRefSeq();
 		this.mapping= this.seqFromToLenOut(this.getTerminalWidth());
+		this.screenMapper= this.mapping == null ? null : new ScreenMapper(this.mapping);
 	}
 	
 	/* Methods */
@@ -978,7 +980,7 @@ public class GenomicCoords implements Cloneable {
 	 * If the user reshapes the terminal window size or the font size, 
 	 * detect the new size and add it to the history. 
 	 * */
-	private int getTerminalWidth() {
+	protected int getTerminalWidth() {
 		return this.terminalWidth;
 	}	
 	
@@ -987,6 +989,12 @@ public class GenomicCoords implements Cloneable {
 	public List<Double> getMapping() {
 		return this.mapping;
 	}
+
+	/** Same as getMapping() but with constant time lookup of the screen column of genomic positions.
+	 * Use this to map data to screen. */
+	public ScreenMapper getScreenMapper() {
+		return this.screenMapper;
+	}
 	
 	/** Map using this.getUserWindowSize() as window size. Consider using 
 	 * getMapping(int size) to avoid computing the terminal width for each call. */
@@ -72,6 +72,15 @@ public class GenomicCoordsHistory {
 		
 	}
 	
+	/** Positions visited before the current one, most recent first, at most n of them. */
+	protected List<GenomicCoords> getRecent(int n) {
+		List<GenomicCoords> recent= new ArrayList<GenomicCoords>();
+		for(int i= this.positionTracker - 1; i >= 0 && recent.size() < n; i--){
+			recent.add(this.currentSessionHistory.get(i));
+		}
+		return recent;
+	}
+
 	protected List<GenomicCoords> getCurrentSessionHistory() {
 		return currentSessionHistory;
 	}
@@ -27,6 +27,7 @@ import exceptions.InvalidCommandLineException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import exceptions.UpdateCancelledException;
 import htsjdk.samtools.SAMSequenceDictionary;
 import jline.console.ConsoleReader;
 import jline.console.history.History.Entry;
@@ -85,6 +86,7 @@ public class InteractiveInput {
             
             //List<String> cmdTokens= Utils.tokenize(cmdString, " ");
             List<String> cmdTokens= new Tokenizer(cmdString).tokenize();
+            GenomicCoords before= proc.getGenomicCoordsHistory().current();
             
             this.interactiveInputExitCode= ExitCode.CLEAN; // If something goes wrong this will change
             try {
@@ -386,6 +388,9 @@ public class InteractiveInput {
                 } else if(cmdTokens.get(0).equals(Command.rpm.getCmdDescr())) {
                     proc.getTrackSet().setRpmForRegex(cmdTokens);
 
+                } else if(cmdTokens.get(0).equals(Command.wiggleStat.getCmdDescr())) {
+                    proc.getTrackSet().setWiggleStatisticForRegex(cmdTokens);
+
                 } else if(cmdTokens.get(0).equals("samtools")){
                     proc.getTrackSet().setSamFilterForRegex(cmdTokens);
                     
@@ -460,6 +465,9 @@ public class InteractiveInput {
             } catch(ArgumentParserException e){
                 this.interactiveInputExitCode= ExitCode.ERROR;
             
+            } catch(UpdateCancelledException e){
+                this.cancelled(proc, before);
+                
             } catch(Exception e){ // You shouldn't catch anything! Be more specific.
                 System.err.println(Utils.padEndMultiLine("\nError processing input: " + cmdTokens, proc.getWindowSize()));
                 System.err.println(Utils.padEndMultiLine("For help on command \"cmd\" execute 'cmd -h' or '-h' for list of commands.\n", proc.getWindowSize()));
@@ -491,6 +499,9 @@ public class InteractiveInput {
                         e.printStackTrace();
                     }
                     
+                } catch (UpdateCancelledException e){
+                    this.cancelled(proc, before);
+                    
                 } catch (Exception e){
                     System.err.println(Utils.padEndMultiLine("Error processing tracks with input " + cmdTokens, proc.getWindowSize()));
                     this.interactiveInputExitCode= ExitCode.ERROR;
@@ -515,6 +526,23 @@ public class InteractiveInput {
         return proc;
     }
 
+    /** The user has cancelled the command: Go back to the position before the command and 
+     * make sure tracks are updated again since the cancelled updates may have left them incomplete.
+     * Settings changed by the command, like filters, are not rolled back.
+     * */
+    private void cancelled(TrackProcessor proc, GenomicCoords before) throws InvalidGenomicCoordsException, IOException {
+        for(Track tr : proc.getTrackSet().getTrackList()){
+            tr.setStale(true);
+        }
+        String msg= "Interrupted";
+        if(before != null && ! before.equalCoords(proc.getGenomicCoordsHistory().current())){
+            proc.getGenomicCoordsHistory().add(before);
+            msg += ": Back to " + before.toStringRegion();
+        }
+        System.err.println(Utils.padEndMultiLine(msg, proc.getWindowSize()));
+        this.interactiveInputExitCode= ExitCode.ERROR;
+    }
+
     private int countBrackets(List<String> cmdTokens) throws InvalidCommandLineException {
         
         String xtimes= cmdTokens.get(0).replaceAll("\\[|\\]", "");
@@ -662,7 +690,7 @@ public class InteractiveInput {
             // Which is the screen column matching this percent?
             int screenIdx= (int) Math.rint(pctFrom * gc.getUserWindowSize());
             // Which is the genomic coordinate corresponding to this screen index?
-            regFrom= (int) Math.rint(gc.getMapping().get(screenIdx));
+            regFrom= (int) Math.rint(gc.getScreenMapper().getGenomePosition(screenIdx));
 
             // Same for end position. Accounting for possibility that only one pct value is given
             if(args.size() > 1 && ! center){
@@ -672,10 +700,10 @@ public class InteractiveInput {
                     throw new InvalidGenomicCoordsException();
                 }
                 screenIdx= (int) Math.rint(pctTo * gc.getUserWindowSize());
-                if(screenIdx >= gc.getMapping().size()){
-                    screenIdx= gc.getMapping().size() - 1;
+                if(screenIdx >= gc.getScreenMapper().size()){
+                    screenIdx= gc.getScreenMapper().size() - 1;
                 }
-                regTo= (int) Math.rint(gc.getMapping().get(screenIdx));
+                regTo= (int) Math.rint(gc.getScreenMapper().getGenomePosition(screenIdx));
             
             } 
             else if(center){
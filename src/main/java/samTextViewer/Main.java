@@ -37,6 +37,7 @@ import jline.console.completer.StringsCompleter;
 import jline.console.history.History;
 import jline.console.history.History.Entry;
 import net.sourceforge.argparse4j.inf.Namespace;
+import sortBgzipIndex.ParallelBlockCompressedOutputStream;
 import tracks.IntervalFeature;
 import tracks.Track;
 import tracks.TrackFormat;
@@ -65,6 +66,7 @@ public class Main {
         String config= opts.getString("config");
         exec= parseExec(exec);
         int debug= opts.getInt("debug");
+        ParallelBlockCompressedOutputStream.setDefaultThreads(opts.getInt("nThreads"));
         
         // Get configuration. Note that we don't need to assign this to a variable. 
         if(config.equals("null")){
@@ -184,6 +186,10 @@ public class Main {
                          trackSet, 
                          gch);
         
+        // Loads data for the next windows while waiting for input
+        Prefetcher prefetcher= new Prefetcher();
+        // Lets Ctrl-C and new input abort a slow command
+        UpdateCanceller canceller= new UpdateCanceller(console);
         while(true){  
             // keep going until quit or if no interactive input set
             // *** START processing interactive input
@@ -204,7 +210,11 @@ public class Main {
                         StringUtils.repeat(' ', proc.getWindowSize()) + '\r' + memTime + "Enter h for help: "
                         );
 
+                if(Utils.asBoolean(Config.get(ConfigKey.prefetch))){
+                    prefetcher.start(trackSet, gch);
+                }
                 cmdConcatInput= console.readLine().trim();
+                prefetcher.cancel();
                 if (cmdConcatInput.isEmpty()) {
                     // Empty input: User only issued <ENTER> 
                     if( interactiveInput.getInteractiveInputExitCode().equals(ExitCode.CLEAN)){
@@ -220,7 +230,12 @@ public class Main {
                 }
                 stopWatch.start();
 
-                interactiveInput.processInput(cmdConcatInput, proc, debug);
+                canceller.start();
+                try{
+                    interactiveInput.processInput(cmdConcatInput, proc, debug);
+                } finally {
+                    canceller.stop();
+                }
                 currentCmdConcatInput= cmdConcatInput;
                 
                 memTime = "";
@@ -0,0 +1,154 @@
+package samTextViewer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import exceptions.InvalidCommandLineException;
+import exceptions.InvalidGenomicCoordsException;
+import tracks.Track;
+import tracks.TrackSet;
+
+/** Load in the track caches the windows the user is likely to visit next while ASCIIGenome
+ * waits for input. Candidate windows are the ones reached by moving forward and backward by
+ * half a window (ff and bb commands), zooming out and going back in history.
+ *
+ * Prefetching runs in a single background thread, one track and one window at a time. Tracks
+ * and their readers are not thread safe so cancel() must be called before the main thread
+ * uses the tracks again: Pending work is dropped and the window being loaded, if any, is
+ * abandoned at the next check for cancellation.
+ * */
+class Prefetcher {
+
+	/** Maximum number of windows from history to prefetch */
+	private static final int N_RECENT= 1;
+
+	private final ExecutorService executor;
+	private final List<Future<?>> pending= new ArrayList<Future<?>>();
+	/** Held by the task loading data into a track */
+	private final Object trackLock= new Object();
+	private volatile boolean cancelled= false;
+
+	/*   C O N S T R U C T O R   */
+
+	protected Prefetcher(){
+		this.executor= new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r, "prefetcher");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/*  M E T H O D S  */
+
+	/** Start prefetching the windows likely to follow the current one in history for the
+	 * visible tracks. Return immediately.
+	 * */
+	protected synchronized void start(final TrackSet trackSet, final GenomicCoordsHistory history){
+		this.cancel();
+		this.cancelled= false;
+		final GenomicCoords current= history.current();
+		if(current == null){
+			return;
+		}
+		final List<GenomicCoords> recent= history.getRecent(N_RECENT);
+		final List<Track> tracks= new ArrayList<Track>();
+		for(Track tr : trackSet.getTrackList()){
+			if(tr.getyMaxLines() > 0 && ! tr.isHideTrack()){
+				tracks.add(tr);
+			}
+		}
+		this.pending.add(this.executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				List<GenomicCoords> windows;
+				try {
+					windows= predictNext(current, recent);
+				} catch (Exception e) {
+					return;
+				}
+				for(GenomicCoords gc : windows){
+					for(Track tr : tracks){
+						synchronized(trackLock){
+							if(cancelled){
+								return;
+							}
+							try {
+								tr.prefetch(gc);
+							} catch (Exception e) {
+								// Nothing to do: The same error will show up if the user goes there
+							}
+						}
+					}
+				}
+			}
+		}));
+	}
+
+	/** Drop pending prefetching and wait for the task currently running to stop.
+	 * After this method returns, tracks can be used by the caller.
+	 * */
+	protected synchronized void cancel(){
+		this.cancelled= true;
+		for(Future<?> f : this.pending){
+			f.cancel(false);
+		}
+		this.pending.clear();
+		// Make the running task, if any, stop at the next check for cancellation 
+		boolean updatesCancelled= Track.isUpdatesCancelled();
+		Track.setUpdatesCancelled(true);
+		synchronized(this.trackLock){
+			// Nothing to do: Only wait for the running task to release the tracks
+		}
+		Track.setUpdatesCancelled(updatesCancelled);
+	}
+
+	/** Windows the user is likely to visit after current, most likely first.
+	 * @param recent Windows visited before the current one, most recent first.
+	 * */
+	protected static List<GenomicCoords> predictNext(GenomicCoords current, List<GenomicCoords> recent) throws InvalidGenomicCoordsException, IOException{
+		List<GenomicCoords> windows= new ArrayList<GenomicCoords>();
+
+		for(String move : new String[] {"ff", "bb"}){
+			List<String> tokens= new ArrayList<String>();
+			tokens.add(move);
+			String region;
+			try {
+				region= Utils.parseConsoleInput(tokens, current);
+			} catch (InvalidCommandLineException e) {
+				continue;
+			}
+			windows.add(new GenomicCoords(region, current.getTerminalWidth(), current.getSamSeqDict(), current.getFastaFile(), false));
+		}
+
+		GenomicCoords zoomOut= (GenomicCoords) current.clone();
+		zoomOut.zoomOut();
+		windows.add(zoomOut);
+
+		for(GenomicCoords gc : recent){
+			windows.add(gc);
+		}
+
+		List<GenomicCoords> distinct= new ArrayList<GenomicCoords>();
+		for(GenomicCoords gc : windows){
+			boolean seen= gc.equalCoords(current);
+			for(GenomicCoords x : distinct){
+				seen= seen || x.equalCoords(gc);
+			}
+			if( ! seen){
+				distinct.add(gc);
+			}
+		}
+		return distinct;
+	}
+}
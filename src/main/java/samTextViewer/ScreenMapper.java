@@ -0,0 +1,105 @@
+package samTextViewer;
+
+import java.util.List;
+
+/**
+ * Map genomic positions to screen columns and back. Columns are 0-based and each column
+ * is assigned the genomic position in the mapping list given at construction, typically
+ * from GenomicCoords.getMapping(). Positions are stored as primitive doubles and the column of
+ * a genomic position is computed from the step between columns, so there is no need to
+ * search the mapping list. This is what tracks should use to place each base or feature
+ * on screen.
+ * */
+public class ScreenMapper {
+
+	private final double[] positions;
+	private final double step;
+
+	/*   C O N S T R U C T O R   */
+
+	/** @param mapping Genomic position of each screen column, sorted in ascending order.
+	 * */
+	public ScreenMapper(List<Double> mapping){
+		if(mapping.size() == 0){
+			throw new IllegalArgumentException("Cannot map an empty list of genomic positions");
+		}
+		this.positions= new double[mapping.size()];
+		for(int i= 0; i < mapping.size(); i++){
+			this.positions[i]= mapping.get(i);
+		}
+		int n= this.positions.length;
+		this.step= n > 1 ? (this.positions[n-1] - this.positions[0]) / (n - 1) : 1;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Index of the column whose genomic position is closest to genomePos. Positions before
+	 * or after the mapped interval go to the first or last column. When genomePos is halfway
+	 * between two columns the rightmost one is returned.
+	 * Same as Utils.getIndexOfclosestValue(genomePos, mapping) but in constant time.
+	 * */
+	public int getScreenIndex(double genomePos){
+		int last= this.positions.length - 1;
+		if(genomePos <= this.positions[0]){
+			return 0;
+		}
+		if(genomePos >= this.positions[last]){
+			return last;
+		}
+		// Guess the column from the step and move to the closest one. Since positions are
+		// equally spaced, the guess is off by at most one because of rounding.
+		double guess= Math.rint((genomePos - this.positions[0]) / this.step);
+		int idx= (int) Math.max(0, Math.min(last, guess));
+		while(idx < last && this.positions[idx + 1] - genomePos <= genomePos - this.positions[idx]){
+			idx++;
+		}
+		while(idx > 0 && genomePos - this.positions[idx - 1] < this.positions[idx] - genomePos){
+			idx--;
+		}
+		return idx;
+	}
+
+	/** Genomic position assigned to this screen column. */
+	public double getGenomePosition(int screenIdx){
+		return this.positions[screenIdx];
+	}
+
+	/** First genomic position, 1-based, mapped to this column, i.e. the first position whose
+	 * closest column is this one. Together with getGenomeTo() this gives the range of bases
+	 * covered by each column.
+	 * */
+	public int getGenomeFrom(int screenIdx){
+		if(screenIdx == 0){
+			return (int) Math.ceil(this.positions[0]);
+		}
+		// Position after the last one mapped to the previous column
+		int pos= (int) Math.floor((this.positions[screenIdx - 1] + this.positions[screenIdx]) / 2.0);
+		while(this.getScreenIndex(pos) < screenIdx){
+			pos++;
+		}
+		while(pos > 1 && this.getScreenIndex(pos - 1) >= screenIdx){
+			pos--;
+		}
+		return pos;
+	}
+
+	/** Last genomic position, 1-based, mapped to this column. Can be less than getGenomeFrom()
+	 * if no base is mapped to this column.
+	 * */
+	public int getGenomeTo(int screenIdx){
+		if(screenIdx == this.positions.length - 1){
+			return (int) Math.floor(this.positions[screenIdx]);
+		}
+		return this.getGenomeFrom(screenIdx + 1) - 1;
+	}
+
+	/** Number of screen columns */
+	public int size(){
+		return this.positions.length;
+	}
+
+	/** Number of genomic positions per column.*/
+	public double getStep(){
+		return this.step;
+	}
+}
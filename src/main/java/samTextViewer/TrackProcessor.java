@@ -4,10 +4,19 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -22,6 +31,7 @@ import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import exceptions.UpdateCancelledException;
 import tracks.Track;
 import tracks.TrackSet;
 
@@ -37,6 +47,9 @@ public class TrackProcessor {
 	private boolean stripAnsi= true;
 	private boolean showGruler= true;
 	private boolean showCruler= true;
+	/** Threads updating tracks to new coordinates, shared by all processors. Resized to follow
+	 * the update_threads config */
+	private static ThreadPoolExecutor updatePool= null;
 	
 	/* C O N S T R U C T O R S */
 	
@@ -60,11 +73,13 @@ public class TrackProcessor {
 		}			
 		
 		// Update tracks to new genomic coords
+		List<Track> toUpdate= new ArrayList<Track>();
 		for(Track track : trackSet.getTrackList()){
-			if( ! track.getGc().equalCoordsAndWindowSize(currentGC) && track.getyMaxLines() > 0 && !track.isHideTrack()){
-				track.setGc(currentGC);
+			if((track.isStale() || ! track.getGc().equalCoordsAndWindowSize(currentGC)) && track.getyMaxLines() > 0 && !track.isHideTrack()){
+				toUpdate.add(track);
 			}			
 		}
+		this.updateTracks(toUpdate, currentGC);
 		// Set new y limits as required. This step has to come after the positioning to new coordinates because
 		// we may need to autoscale to global min or max.
 		this.getTrackSet().setAutoYLimits();
@@ -206,6 +221,95 @@ public class TrackProcessor {
 		this.snapshotFile = snapshotFile;
 	}
 
+	/** Move these tracks to gc. Tracks are updated in parallel, up to update_threads at a time.
+	 * Each track is updated by one thread only so readers owned by the track, like tabix, bigwig
+	 * and sam readers, are never used concurrently. If some tracks fail, the error of each one 
+	 * is reported after all the others are done and the first error is thrown.
+	 * If updates are cancelled, see Track.setUpdatesCancelled(), UpdateCancelledException is thrown. 
+	 * */
+	private void updateTracks(List<Track> tracks, final GenomicCoords gc) throws MalformedURLException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+		int nThreads= Integer.parseInt(Config.get(ConfigKey.update_threads));
+		if(nThreads <= 1 || tracks.size() <= 1){
+			for(Track track : tracks){
+				track.setGc(gc);
+			}
+			return;
+		}
+		ThreadPoolExecutor pool= getUpdatePool(nThreads);
+		List<Future<Void>> futures= new ArrayList<Future<Void>>();
+		for(final Track track : tracks){
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Track.checkCancelled(); // Do not even start if cancelled while queued
+					track.setGc(gc);
+					return null;
+				}
+			}));
+		}
+		Throwable error= null;
+		for(int i= 0; i < futures.size(); i++){
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				for(Future<Void> f : futures){
+					f.cancel(false);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while updating tracks");
+			} catch (ExecutionException e) {
+				if( ! (e.getCause() instanceof UpdateCancelledException)){
+					System.err.println(Utils.padEndMultiLine("Error updating track " + tracks.get(i).getTrackTag() + ": " + e.getCause(), this.getWindowSize()));
+				}
+				if(error == null){
+					error= e.getCause();
+				}
+			}
+		}
+		if(error == null){
+			return;
+		}
+		if(error instanceof IOException){
+			throw (IOException) error;
+		} else if(error instanceof InvalidGenomicCoordsException){
+			throw (InvalidGenomicCoordsException) error;
+		} else if(error instanceof InvalidRecordException){
+			throw (InvalidRecordException) error;
+		} else if(error instanceof ClassNotFoundException){
+			throw (ClassNotFoundException) error;
+		} else if(error instanceof SQLException){
+			throw (SQLException) error;
+		} else if(error instanceof RuntimeException){
+			throw (RuntimeException) error;
+		} else if(error instanceof Error){
+			throw (Error) error;
+		}
+		throw new RuntimeException(error);
+	}
+
+	private static synchronized ThreadPoolExecutor getUpdatePool(int nThreads){
+		if(updatePool == null){
+			updatePool= new ThreadPoolExecutor(nThreads, nThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "track-update");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			updatePool.allowCoreThreadTimeOut(true);
+		} else if(updatePool.getMaximumPoolSize() != nThreads){
+			if(nThreads > updatePool.getMaximumPoolSize()){
+				updatePool.setMaximumPoolSize(nThreads);
+				updatePool.setCorePoolSize(nThreads);
+			} else {
+				updatePool.setCorePoolSize(nThreads);
+				updatePool.setMaximumPoolSize(nThreads);
+			}
+		}
+		return updatePool;
+	}
+
 	protected int getWindowSize() throws InvalidGenomicCoordsException, IOException {
 		return this.genomicCoordsHistory.current().getUserWindowSize();
 	}
@@ -0,0 +1,93 @@
+package samTextViewer;
+
+import java.io.IOException;
+
+import jline.Terminal;
+import jline.Terminal2;
+import jline.console.ConsoleReader;
+import tracks.Track;
+
+/** While a command is being processed, cancel the track updates in progress if the user
+ * presses Ctrl-C or starts typing the next command. Without this, Ctrl-C kills ASCIIGenome
+ * and the next command has to wait for the current one to complete.
+ *
+ * Ctrl-C is detected as input: While a command runs, the interrupt character of the
+ * terminal is disabled, as jline does in readLine() for ConsoleReader.setHandleUserInterrupt(),
+ * so Ctrl-C is sent to the input instead of stopping the program. The console reader ignores
+ * it when it reads the next command.
+ *
+ * Input typed ahead is not consumed here so it is read as the next command.
+ * */
+class UpdateCanceller {
+
+	/** Milliseconds between checks for new input */
+	private static final int POLL_INTERVAL= 50;
+
+	private final ConsoleReader console;
+	/** Terminal whose interrupt character is disabled, null if not disabled */
+	private Terminal2 interruptDisabled= null;
+	private Thread inputWatcher= null;
+	private volatile boolean running= false;
+
+	/*   C O N S T R U C T O R   */
+
+	protected UpdateCanceller(ConsoleReader console){
+		this.console= console;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Allow track updates and start listening for Ctrl-C and new input. */
+	protected void start(){
+		Track.setUpdatesCancelled(false);
+		this.running= true;
+		Terminal terminal= this.console.getTerminal();
+		if( ! terminal.isSupported()){
+			// Input is not from a terminal so anything available is not typed ahead by the user.
+			// Ctrl-C exits as usual.
+			return;
+		}
+		if(terminal instanceof Terminal2){
+			((Terminal2) terminal).disableInterruptCharacter();
+			this.interruptDisabled= (Terminal2) terminal;
+		}
+		this.inputWatcher= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(running){
+					try {
+						if(System.in.available() > 0){
+							Track.setUpdatesCancelled(true);
+							return;
+						}
+						Thread.sleep(POLL_INTERVAL);
+					} catch (IOException e) {
+						return;
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "update-canceller");
+		this.inputWatcher.setDaemon(true);
+		this.inputWatcher.start();
+	}
+
+	/** Stop listening and restore the default behaviour of Ctrl-C. */
+	protected void stop(){
+		this.running= false;
+		if(this.inputWatcher != null){
+			this.inputWatcher.interrupt();
+			try {
+				this.inputWatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.inputWatcher= null;
+		}
+		if(this.interruptDisabled != null){
+			this.interruptDisabled.enableInterruptCharacter();
+			this.interruptDisabled= null;
+		}
+	}
+}
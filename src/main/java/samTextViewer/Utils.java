@@ -31,7 +31,6 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
@@ -61,6 +60,7 @@ import org.broad.igv.bbfile.BigBedIterator;
 import org.broad.igv.bbfile.BigWigIterator;
 import org.broad.igv.bbfile.WigItem;
 import org.broad.igv.tdf.TDFReader;
+import org.broad.igv.util.ResourceLocator;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
@@ -104,6 +104,8 @@ import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFHeaderLine;
 import htsjdk.variant.vcf.VCFHeaderVersion;
+import sortBgzipIndex.BamCoordinateSorter;
+import sortBgzipIndex.ParallelBlockCompressedOutputStream;
 import tracks.IntervalFeature;
 import tracks.Track;
 import tracks.TrackFormat;
@@ -519,7 +521,10 @@ public class Utils {
 			throw new InvalidGenomicCoordsException();
 			
 		} else if(fmt.equals(TrackFormat.TDF)){
-			Iterator<String> iter = TDFReader.getReader(x).getChromosomeNames().iterator();
+			TDFReader reader= new TDFReader(new ResourceLocator(x));
+			List<String> chroms= new ArrayList<String>(reader.getChromosomeNames());
+			reader.close();
+			Iterator<String> iter = chroms.iterator();
 			while(iter.hasNext()){
 				region= iter.next();
 				if(!region.equals("All")){
@@ -1047,7 +1052,7 @@ public class Utils {
 			return mapping.size()-1;
 		}
 		
-		int closest= Arrays.binarySearch(mapping.toArray(new Double[mapping.size()]), (double)genomePos);
+		int closest= Collections.binarySearch(mapping, (double)genomePos);
 		if(closest < 0){
 			// If < 0 the value is not found in the list and binarySearch returns the insertion point.
 			// See binarySearch docs. We need to convert the insertion point to the closest value.
@@ -1962,6 +1967,7 @@ public class Utils {
 			}
 			return results;
 		}
+		Track.checkCancelled();
 
 		// * Parse command string into arguments and awk script
 		List<String> args= new Tokenizer(awkScript).tokenize();
@@ -2177,21 +2183,50 @@ public class Utils {
 		samReader.getFileHeader().setSortOrder(SortOrder.coordinate);
 		
 		File out= new File(sortedBam);
+		File idx= new File(out.getAbsolutePath().replaceAll("\\.bam$", "") + ".bai");
 		if(deleteOnExit){
 			out.deleteOnExit();
-			File idx= new File(out.getAbsolutePath().replaceAll("\\.bam$", "") + ".bai");
 			idx.deleteOnExit();
 		}
 		
-		SAMFileWriter outputSam= new SAMFileWriterFactory()
-				.setCreateIndex(true)
-				.makeSAMOrBAMWriter(samReader.getFileHeader(), false, out);
+		if( ! sortedBam.endsWith(".bam")){
+			SAMFileWriter outputSam= new SAMFileWriterFactory()
+					.setCreateIndex(true)
+					.makeSAMOrBAMWriter(samReader.getFileHeader(), false, out);
 
-		for (final SAMRecord samRecord : samReader) {
-			outputSam.addAlignment(samRecord);
-        }
-		samReader.close();
-		outputSam.close();
+			for (final SAMRecord samRecord : samReader) {
+				outputSam.addAlignment(samRecord);
+			}
+			samReader.close();
+			outputSam.close();
+			return;
+		}
+		
+		// Sort in parallel chunks and index while writing the sorted bam
+		BamCoordinateSorter sorter= new BamCoordinateSorter(samReader.getFileHeader(), ParallelBlockCompressedOutputStream.getDefaultThreads());
+		try{
+			if(samReader.type().equals(SamReader.Type.SAM_TYPE) && new File(inSamOrBam).isFile()){
+				// Lines are parsed by the sorter on many threads
+				samReader.close();
+				BufferedReader br= Utils.reader(inSamOrBam);
+				String line;
+				while((line= br.readLine()) != null){
+					if(line.isEmpty() || line.startsWith("@")){
+						continue;
+					}
+					sorter.addSamLine(line);
+				}
+				br.close();
+			} else {
+				for (final SAMRecord samRecord : samReader) {
+					sorter.add(samRecord);
+				}
+				samReader.close();
+			}
+			sorter.write(out, idx);
+		} finally {
+			sorter.close();
+		}
 	}
 
 	/**True if SAM read names are equal. Read name strings are parsed to remove
@@ -2200,7 +2235,10 @@ public class Utils {
 	public static boolean equalReadNames(String readName, String readName2) {
 		return cleanSamReadName(readName).equals(cleanSamReadName(readName2));
 	}
-	private static String cleanSamReadName(String readName){
+	/** Read name without the comment after the first blank and without the /1 or /2 suffix
+	 * of paired reads, i.e. the name of the template.
+	 * */
+	public static String cleanSamReadName(String readName){
 		int blank= readName.indexOf(" ");
 		if(blank >= 0){
 			readName= readName.substring(0, blank);
@@ -0,0 +1,392 @@
+package sortBgzipIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMLineParser;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloserUtil;
+import samTextViewer.Utils;
+
+/** Coordinate sort of sam or bam records to an indexed bam file.
+ *
+ * Records are held in memory in chunks of bounded size. Each chunk is decoded, or parsed
+ * if given as sam lines, and sorted on several threads. Full chunks are written to temporary
+ * files with fast compression. The sorted chunks are then merged and written to the output
+ * bam, compressed with ParallelBlockCompressedOutputStream, while the bai index is built in
+ * the same pass. If all records fit in a single chunk nothing is written to temporary files.
+ *
+ * Records comparing equal stay in input order.
+ *
+ * Usage: add() all the records, or addSamLine() all the lines after the header, then
+ * write() and close() to delete the temporary files.
+ * */
+public class BamCoordinateSorter implements Closeable {
+
+	private static final Comparator<SAMRecord> COMPARATOR= new SAMRecordCoordinateComparator();
+	/** Compression level of the temporary files */
+	private static final int RUN_COMPRESSION_LEVEL= 1;
+	private static final byte[] BAM_MAGIC= "BAM\1".getBytes();
+
+	private final SAMFileHeader header;
+	private final int nThreads;
+	private final long maxChunkBytes;
+	/** Null if running on a single thread */
+	private final ExecutorService pool;
+
+	private List<SAMRecord> chunk= new ArrayList<SAMRecord>();
+	/** Sam lines not parsed yet */
+	private List<String> chunkLines= new ArrayList<String>();
+	private int nLines= 0;
+	private long chunkBytes= 0;
+	private final List<File> runFiles= new ArrayList<File>();
+	/** Sorted runs being merged, null until write() */
+	private PriorityQueue<Run> merge;
+
+	/** A sorted chunk, either still in memory or written to file. */
+	private class Run {
+		private final int runIdx;
+		private final SAMRecord[] records;
+		private int recordIdx= 0;
+		private final BAMRecordCodec codec;
+		private final BlockCompressedInputStream in;
+		private SAMRecord current;
+
+		private Run(int runIdx, SAMRecord[] records, File runFile) throws IOException{
+			this.runIdx= runIdx;
+			this.records= records;
+			if(runFile != null){
+				this.in= new BlockCompressedInputStream(runFile);
+				this.codec= new BAMRecordCodec(header);
+				this.codec.setInputStream(this.in, runFile.getAbsolutePath());
+			} else {
+				this.in= null;
+				this.codec= null;
+			}
+			this.advance();
+		}
+
+		/** Move to next record. Return false if there are no more records */
+		private boolean advance() throws IOException{
+			if(this.records != null){
+				this.current= this.recordIdx < this.records.length ? this.records[this.recordIdx] : null;
+				if(this.current != null){
+					this.records[this.recordIdx++]= null; // Free memory as we go
+				}
+			} else {
+				this.current= this.codec.decode();
+				if(this.current == null){
+					this.in.close();
+				}
+			}
+			return this.current != null;
+		}
+	}
+
+	/** A record written to the output and the logical file pointers where it starts and ends */
+	private static class Written {
+		private final SAMRecord record;
+		private final long start;
+		private final long end;
+
+		private Written(SAMRecord record, long start, long end){
+			this.record= record;
+			this.start= start;
+			this.end= end;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	/**
+	 * @param header Header of the input. Its sort order is not changed.
+	 * @param nThreads Threads used to decode, sort and compress.
+	 * @param maxChunkBytes Approximate memory used by the records held in memory before
+	 * they are sorted and written to disk.
+	 * */
+	public BamCoordinateSorter(SAMFileHeader header, int nThreads, long maxChunkBytes){
+		this.header= header;
+		this.nThreads= Math.max(1, nThreads);
+		this.maxChunkBytes= maxChunkBytes;
+		if(this.nThreads > 1){
+			this.pool= Executors.newFixedThreadPool(this.nThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "bam-sorter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			this.pool= null;
+		}
+	}
+
+	/** Use at most 1/8 of the available memory for each chunk */
+	public BamCoordinateSorter(SAMFileHeader header, int nThreads){
+		this(header, nThreads, Math.max(16 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+	}
+
+	/*  M E T H O D S  */
+
+	public void add(SAMRecord rec) throws IOException{
+		if(this.merge != null){
+			throw new IllegalStateException("Records cannot be added after writing has started");
+		}
+		this.chunk.add(rec);
+		// Rough size in memory of a decoded record
+		this.chunkBytes += 3 * rec.getReadLength() + 300;
+		if(this.chunkBytes >= this.maxChunkBytes){
+			this.writeRun();
+		}
+	}
+
+	/** Add a sam line, not part of the header. Lines are parsed in parallel when the chunk is full.
+	 * */
+	public void addSamLine(String line) throws IOException{
+		if(this.merge != null){
+			throw new IllegalStateException("Records cannot be added after writing has started");
+		}
+		this.chunkLines.add(line);
+		// Rough size in memory of the line and then of its record
+		this.chunkBytes += 3 * line.length() + 300;
+		if(this.chunkBytes >= this.maxChunkBytes){
+			this.writeRun();
+		}
+	}
+
+	/** Run the tasks on the pool or, if single threaded, on this thread. */
+	private void runAll(List<Callable<Void>> tasks) throws IOException{
+		try{
+			if(this.pool == null){
+				for(Callable<Void> task : tasks){
+					task.call();
+				}
+				return;
+			}
+			for(Future<Void> f : this.pool.invokeAll(tasks)){
+				f.get();
+			}
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch(IOException | RuntimeException e){
+			throw e;
+		} catch(Exception e){
+			throw new IOException(e);
+		}
+	}
+
+	/** Parse the pending sam lines and decode the read names of the records of the chunk,
+	 * the only field compared by the sort that bam records decode lazily. So the sort does not
+	 * decode records from more than one thread.
+	 * */
+	private SAMRecord[] decodeChunk() throws IOException{
+		final String[] lines= this.chunkLines.toArray(new String[this.chunkLines.size()]);
+		final SAMRecord[] records= new SAMRecord[this.chunk.size() + lines.length];
+		for(int i= 0; i < this.chunk.size(); i++){
+			records[i]= this.chunk.get(i);
+		}
+		final int offset= this.chunk.size();
+		final int firstLineNumber= this.nLines + 1;
+		this.nLines += lines.length;
+		this.chunk= new ArrayList<SAMRecord>();
+		this.chunkLines= new ArrayList<String>();
+		this.chunkBytes= 0;
+
+		List<Callable<Void>> tasks= new ArrayList<Callable<Void>>();
+		int sliceSize= records.length / this.nThreads + 1;
+		for(int from= 0; from < records.length; from += sliceSize){
+			final int sliceFrom= from;
+			final int sliceTo= Math.min(records.length, from + sliceSize);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// One parser per thread
+					SAMLineParser parser= new SAMLineParser(new DefaultSAMRecordFactory(), ValidationStringency.SILENT, header, null, null);
+					for(int i= sliceFrom; i < sliceTo; i++){
+						if(i >= offset){
+							records[i]= parser.parseLine(lines[i - offset], firstLineNumber + i - offset);
+						}
+						records[i].getReadName();
+					}
+					return null;
+				}
+			});
+		}
+		this.runAll(tasks);
+		return records;
+	}
+
+	private SAMRecord[] sortChunk() throws IOException{
+		SAMRecord[] sorted= this.decodeChunk();
+		// Both stable
+		if(this.pool == null){
+			Arrays.sort(sorted, COMPARATOR);
+		} else {
+			Arrays.parallelSort(sorted, COMPARATOR);
+		}
+		return sorted;
+	}
+
+	/** Sort the current chunk and write it to a temporary file */
+	private void writeRun() throws IOException{
+		SAMRecord[] sorted= this.sortChunk();
+		File tmp= Utils.createTempFile(".asciigenome.", ".sort.bam.tmp", true);
+		this.runFiles.add(tmp);
+		ParallelBlockCompressedOutputStream out= new ParallelBlockCompressedOutputStream(tmp, this.nThreads, RUN_COMPRESSION_LEVEL);
+		try{
+			BAMRecordCodec codec= new BAMRecordCodec(this.header);
+			codec.setOutputStream(out, tmp.getAbsolutePath());
+			for(SAMRecord x : sorted){
+				codec.encode(x);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void startMerge() throws IOException{
+		this.merge= new PriorityQueue<Run>(Math.max(1, this.runFiles.size() + 1), new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				int i= COMPARATOR.compare(a.current, b.current);
+				if(i != 0){
+					return i;
+				}
+				// Runs are in input order: Keep ties in input order
+				return Integer.compare(a.runIdx, b.runIdx);
+			}
+		});
+		int runIdx= 0;
+		for(File f : this.runFiles){
+			Run run= new Run(runIdx++, null, f);
+			if(run.current != null){
+				this.merge.add(run);
+			}
+		}
+		// Records still in memory are the last run
+		Run run= new Run(runIdx, this.sortChunk(), null);
+		if(run.current != null){
+			this.merge.add(run);
+		}
+	}
+
+	/** Next record in sorted order or null if all records have been returned */
+	private SAMRecord next() throws IOException{
+		Run run= this.merge.poll();
+		if(run == null){
+			return null;
+		}
+		SAMRecord rec= run.current;
+		if(run.advance()){
+			this.merge.add(run);
+		}
+		return rec;
+	}
+
+	/** The bam header, uncompressed, as written by htsjdk SAMFileWriter. */
+	private byte[] headerBytes(){
+		StringWriter text= new StringWriter();
+		new SAMTextHeaderCodec().encode(text, this.header);
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		BinaryCodec codec= new BinaryCodec(bytes);
+		codec.writeBytes(BAM_MAGIC);
+		codec.writeString(text.toString(), true, false);
+		codec.writeInt(this.header.getSequenceDictionary().size());
+		for(SAMSequenceRecord seq : this.header.getSequenceDictionary().getSequences()){
+			codec.writeInt(seq.getSequenceName().length() + 1);
+			codec.writeString(seq.getSequenceName(), false, true);
+			codec.writeInt(seq.getSequenceLength());
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Write the sorted records to bam and the index to bai.
+	 * */
+	public void write(File bam, File bai) throws IOException{
+		this.startMerge();
+		ParallelBlockCompressedOutputStream out= new ParallelBlockCompressedOutputStream(bam, this.nThreads);
+		try{
+			out.write(this.headerBytes());
+			BAMRecordCodec codec= new BAMRecordCodec(this.header);
+			codec.setOutputStream(out, bam.getAbsolutePath());
+			BAMIndexer indexer= new BAMIndexer(bai, this.header);
+
+			// The position of a record in the compressed file is known only once its block
+			// has been written. Index records as their blocks are written.
+			Deque<Written> pending= new ArrayDeque<Written>();
+			SAMRecord rec;
+			while((rec= this.next()) != null){
+				long start= out.getFilePointer();
+				codec.encode(rec);
+				pending.add(new Written(rec, start, out.getFilePointer()));
+				this.index(pending, out, indexer);
+			}
+			out.flush();
+			this.index(pending, out, indexer);
+			indexer.finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void index(Deque<Written> pending, ParallelBlockCompressedOutputStream out, BAMIndexer indexer){
+		while( ! pending.isEmpty() && out.isWritten(pending.peekFirst().end)){
+			Written x= pending.removeFirst();
+			Chunk chunk= new Chunk(out.toVirtualFilePointer(x.start), out.toVirtualFilePointer(x.end));
+			x.record.setFileSource(new SAMFileSource(null, new BAMFileSpan(chunk)));
+			indexer.processAlignment(x.record);
+		}
+	}
+
+	@Override
+	public void close() {
+		if(this.merge != null){
+			for(Run run : this.merge){
+				CloserUtil.close(run.in);
+			}
+		}
+		for(File f : this.runFiles){
+			f.delete();
+		}
+		this.runFiles.clear();
+		if(this.pool != null){
+			this.pool.shutdownNow();
+		}
+	}
+}
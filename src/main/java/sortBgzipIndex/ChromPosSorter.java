@@ -0,0 +1,257 @@
+package sortBgzipIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.tribble.readers.LineReader;
+import samTextViewer.Utils;
+
+/** External merge sort of the lines of a bed, gff or vcf file by chrom, position and,
+ * if given, end position. Lines are held in memory in chunks of bounded size. Each full
+ * chunk is sorted using all the available cores and written to a temporary file.
+ * Reading back, the sorted chunks are merged. If all lines fit in a single chunk nothing
+ * is written to disk.
+ *
+ * Chroms are sorted as strings. Lines with the same chrom and positions stay in input order.
+ * Lines starting with # are returned first, as they are. Lines where chrom and position
+ * cannot be read are returned after them and before all other lines.
+ *
+ * Usage: add() all the lines then readLine() until null. Close to delete the temporary files.
+ * */
+class ChromPosSorter implements LineReader {
+
+	private final int chromIdx;
+	private final int posIdx;
+	private final int endIdx;
+	private final long maxChunkBytes;
+
+	private final List<String> header= new ArrayList<String>();
+	private List<Record> chunk= new ArrayList<Record>();
+	private long chunkBytes= 0;
+	private final List<File> runFiles= new ArrayList<File>();
+
+	/** Sorted runs being merged, null until the first call to readLine() */
+	private PriorityQueue<Run> merge;
+	private int headerIdx= 0;
+
+	private static final Comparator<Record> BY_CHROM_POS= new Comparator<Record>() {
+		@Override
+		public int compare(Record a, Record b) {
+			int i= a.chrom.compareTo(b.chrom);
+			if(i != 0){
+				return i;
+			}
+			i= Integer.compare(a.pos, b.pos);
+			if(i != 0){
+				return i;
+			}
+			return Integer.compare(a.end, b.end);
+		}
+	};
+
+	private static class Record {
+		private final String chrom;
+		private final int pos;
+		private final int end;
+		private final String line;
+
+		private Record(String chrom, int pos, int end, String line){
+			this.chrom= chrom;
+			this.pos= pos;
+			this.end= end;
+			this.line= line;
+		}
+	}
+
+	/** A sorted chunk, either still in memory or written to file. */
+	private class Run {
+		private final int runIdx;
+		private final Record[] records;
+		private int recordIdx= 0;
+		private final BufferedReader br;
+		private Record current;
+
+		private Run(int runIdx, Record[] records, BufferedReader br) throws IOException{
+			this.runIdx= runIdx;
+			this.records= records;
+			this.br= br;
+			this.advance();
+		}
+
+		/** Move to next record. Return false if there are no more records */
+		private boolean advance() throws IOException{
+			if(this.records != null){
+				this.current= this.recordIdx < this.records.length ? this.records[this.recordIdx++] : null;
+			} else {
+				String line= this.br.readLine();
+				this.current= line == null ? null : parse(line);
+				if(line == null){
+					this.br.close();
+				}
+			}
+			return this.current != null;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	/**
+	 * @param chromIdx, posIdx, endIdx 0-based index of the columns to sort by.
+	 * Set endIdx to -1 to sort by chrom and position only.
+	 * @param maxChunkBytes Approximate memory used by the lines held in memory before
+	 * they are sorted and written to disk.
+	 * */
+	protected ChromPosSorter(int chromIdx, int posIdx, int endIdx, long maxChunkBytes){
+		this.chromIdx= chromIdx;
+		this.posIdx= posIdx;
+		this.endIdx= endIdx;
+		this.maxChunkBytes= maxChunkBytes;
+	}
+
+	/** Use at most 1/8 of the available memory for each chunk */
+	protected ChromPosSorter(int chromIdx, int posIdx, int endIdx){
+		this(chromIdx, posIdx, endIdx, Math.max(1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+	}
+
+	/*  M E T H O D S  */
+
+	protected void add(String line) throws IOException{
+		if(this.merge != null){
+			throw new IllegalStateException("Lines cannot be added after reading has started");
+		}
+		if(line.trim().startsWith("#")){
+			this.header.add(line);
+			return;
+		}
+		this.chunk.add(this.parse(line));
+		// Rough size in memory of a line and its record
+		this.chunkBytes += 2 * line.length() + 100;
+		if(this.chunkBytes >= this.maxChunkBytes){
+			this.writeRun();
+		}
+	}
+
+	/** Parse the fields to sort by. Invalid lines get a key that sorts them first. */
+	private Record parse(String line){
+		// Find the start of each column without splitting the whole line
+		int maxIdx= Math.max(this.chromIdx, Math.max(this.posIdx, this.endIdx));
+		int[] starts= new int[maxIdx + 2];
+		int n= 1;
+		for(int i= 0; i < line.length() && n < starts.length; i++){
+			if(line.charAt(i) == '\t'){
+				starts[n++]= i + 1;
+			}
+		}
+		if(n < maxIdx + 1){
+			return new Record("", Integer.MIN_VALUE, Integer.MIN_VALUE, line);
+		}
+		if(n == maxIdx + 1){
+			starts[n]= line.length() + 1; // Last column ends at end of line
+		}
+		try{
+			String chrom= line.substring(starts[this.chromIdx], starts[this.chromIdx + 1] - 1);
+			int pos= Integer.parseInt(line.substring(starts[this.posIdx], starts[this.posIdx + 1] - 1));
+			int end= 0;
+			if(this.endIdx >= 0){
+				end= Integer.parseInt(line.substring(starts[this.endIdx], starts[this.endIdx + 1] - 1));
+			}
+			return new Record(chrom, pos, end, line);
+		} catch(NumberFormatException e){
+			return new Record("", Integer.MIN_VALUE, Integer.MIN_VALUE, line);
+		}
+	}
+
+	/** Sort the current chunk and write it to a temporary file */
+	private void writeRun() throws IOException{
+		Record[] sorted= this.sortChunk();
+		File tmp= Utils.createTempFile(".asciigenome.", ".sort.tmp", true);
+		this.runFiles.add(tmp);
+		BufferedWriter wr= new BufferedWriter(new FileWriter(tmp));
+		try{
+			for(Record x : sorted){
+				wr.write(x.line);
+				wr.write('\n');
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	private Record[] sortChunk(){
+		Record[] sorted= this.chunk.toArray(new Record[this.chunk.size()]);
+		this.chunk= new ArrayList<Record>();
+		this.chunkBytes= 0;
+		// Stable and multi-threaded
+		Arrays.parallelSort(sorted, BY_CHROM_POS);
+		return sorted;
+	}
+
+	private void startMerge() throws IOException{
+		this.merge= new PriorityQueue<Run>(Math.max(1, this.runFiles.size() + 1), new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				int i= BY_CHROM_POS.compare(a.current, b.current);
+				if(i != 0){
+					return i;
+				}
+				// Runs are in input order: Keep ties in input order
+				return Integer.compare(a.runIdx, b.runIdx);
+			}
+		});
+		int runIdx= 0;
+		for(File f : this.runFiles){
+			Run run= new Run(runIdx++, null, new BufferedReader(new FileReader(f)));
+			if(run.current != null){
+				this.merge.add(run);
+			}
+		}
+		// Lines still in memory are the last run
+		Run run= new Run(runIdx, this.sortChunk(), null);
+		if(run.current != null){
+			this.merge.add(run);
+		}
+	}
+
+	/** Next line in sorted order, header first. Null when all lines have been read. */
+	@Override
+	public String readLine() throws IOException {
+		if(this.merge == null){
+			this.startMerge();
+		}
+		if(this.headerIdx < this.header.size()){
+			return this.header.get(this.headerIdx++);
+		}
+		Run run= this.merge.poll();
+		if(run == null){
+			return null;
+		}
+		String line= run.current.line;
+		if(run.advance()){
+			this.merge.add(run);
+		}
+		return line;
+	}
+
+	@Override
+	public void close() {
+		if(this.merge != null){
+			for(Run run : this.merge){
+				CloserUtil.close(run.br);
+			}
+		}
+		for(File f : this.runFiles){
+			f.delete();
+		}
+		this.runFiles.clear();
+	}
+}
@@ -1,30 +1,28 @@
 package sortBgzipIndex;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-
-import org.sqlite.SQLiteException;
+import java.util.ArrayList;
+import java.util.List;
 
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.BinningIndexContent.BinList;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.LinearIndex;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.FileExtensions;
 import htsjdk.tribble.TribbleException.MalformedFeatureFile;
-import htsjdk.tribble.index.Index;
 import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
 import htsjdk.tribble.index.tabix.TabixIndexCreator;
 import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.LineIteratorImpl;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
@@ -36,8 +34,6 @@ import utils.GtfLine;
 
 public class MakeTabixIndex {
 
-	private File sqliteFile;
-	
 	/** Sort, block compress and index the input with format fmt to the given output file.
 	 * Input is either a local file, possibly compressed, or a URL.
 	 * @throws InvalidRecordException 
@@ -51,15 +47,21 @@ public class MakeTabixIndex {
 		File tmpTbi= new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX);
 		tmpTbi.deleteOnExit();
 		
+		// Input is read only once: Block compress and index assuming the file is sorted. 
+		// If it is not, sort what has been written so far together with the rest of the input.
+		LineIterator lin= utils.IOUtils.openURIForLineIterator(intab);
 		try{
-			// Try to block compress and create index assuming the file is sorted
-			blockCompressAndIndex(intab, tmp, fmt);
-		} catch(Exception e){
-			// If intab is not sorted, sort it first.
-			File sorted= Utils.createTempFile(".asciigenome.", ".sorted.tmp", true);
-			sortByChromThenPos(intab, sorted, fmt);
-			blockCompressAndIndex(sorted.getAbsolutePath(), tmp, fmt);
-			Files.delete(Paths.get(sorted.getAbsolutePath()));
+			String unsortedLine= blockCompressAndIndex(intab, lin, tmp, fmt);
+			if(unsortedLine != null){
+				ChromPosSorter sorter= this.sortByChromThenPos(tmp, unsortedLine, lin, fmt);
+				try{
+					blockCompressAndIndex(intab, new LineIteratorImpl(sorter), tmp, fmt);
+				} finally {
+					sorter.close();
+				}
+			}
+		} finally {
+			CloserUtil.close(lin);
 		}
 		
 		// This renaming and the use of File tmp allows to block compress and index an input file in place.
@@ -78,13 +80,17 @@ public class MakeTabixIndex {
 	}
 
 	/**
-	 * Block compress input file and create associated tabix index. 
+	 * Block compress the lines from lin and create associated tabix index. 
+	 * intab is the input file the lines come from, used to read the vcf header.
+	 * @return null if all lines have been written and indexed. If a line is out of order
+	 * return that line and stop, leaving in bgzfOut the lines written so far without index.
+	 * The lines after the returned one are still to be read from lin.
 	 * @throws IOException 
 	 * @throws InvalidRecordException 
 	 * */
-	private void blockCompressAndIndex(String intab, File bgzfOut, TabixFormat fmt) throws IOException, InvalidRecordException {
+	private String blockCompressAndIndex(String intab, LineIterator lin, File bgzfOut, TabixFormat fmt) throws IOException, InvalidRecordException {
 				
-		BlockCompressedOutputStream writer = new BlockCompressedOutputStream(bgzfOut);
+		ParallelBlockCompressedOutputStream writer = new ParallelBlockCompressedOutputStream(bgzfOut);
 		long filePosition= writer.getFilePointer();
 			
 		TabixIndexCreator indexCreator=new TabixIndexCreator(fmt);
@@ -109,7 +115,6 @@ public class MakeTabixIndex {
 		// ------------------------------------------------------------
 
 		int nWarnings= 10;
-		LineIterator lin= utils.IOUtils.openURIForLineIterator(intab);
 		while(lin.hasNext()){
 			
 			String line = lin.next().trim();
@@ -118,14 +123,14 @@ public class MakeTabixIndex {
 				if(line.isEmpty() || line.startsWith("track ")){
 					continue;
 				}
+				if(line.startsWith("##FASTA")){
+					break;
+				}			
 				if(line.startsWith("#")){
 					writer.write((line + "\n").getBytes());
 					filePosition = writer.getFilePointer();
 					continue;
 				}
-				if(line.startsWith("##FASTA")){
-					break;
-				}			
 
 				addLineToIndex(line, indexCreator, filePosition, fmt, vcfHeader, vcfCodec);
 				
@@ -133,10 +138,10 @@ public class MakeTabixIndex {
 				writer.write('\n');
 				filePosition = writer.getFilePointer();
 			} catch(Exception e){
-				if(e.getMessage().contains("added out sequence of order") || e.getMessage().contains("Features added out of order")){
+				if(e.getMessage() != null && (e.getMessage().contains("added out sequence of order") || e.getMessage().contains("Features added out of order"))){
 					// Get a string marker for out-of-order from htsjdk/tribble/index/tabix/TabixIndexCreator.java 
 					writer.close();
-					throw new InvalidRecordException();
+					return line;
 				}
 				if(nWarnings >= 0){
 					System.err.println("Warning: " + e.getMessage() + ". Skipping:\n" + line);
@@ -150,10 +155,47 @@ public class MakeTabixIndex {
 
 		writer.flush();
 		
-		Index index = indexCreator.finalizeIndex(writer.getFilePointer());
+		// The index has been built on the writer's logical file pointers. Now that all
+		// blocks are written, replace them with the actual virtual file pointers. 
+		TabixIndex index = (TabixIndex) indexCreator.finalizeIndex(writer.getFilePointer());
+		index= toVirtualFilePointers(index, writer);
 		index.writeBasedOnFeatureFile(bgzfOut);
 		writer.close();
-		CloserUtil.close(lin);
+		return null;
+	}
+
+	/** Return a copy of index where the logical file pointers of writer in bins and linear 
+	 * index are replaced by virtual file pointers.  
+	 * */
+	private static TabixIndex toVirtualFilePointers(TabixIndex index, ParallelBlockCompressedOutputStream writer){
+		BinningIndexContent[] contents= index.getIndices();
+		BinningIndexContent[] virtual= new BinningIndexContent[contents.length];
+		for(int i= 0; i < contents.length; i++){
+			BinningIndexContent content= contents[i];
+			if(content == null){
+				continue;
+			}
+			BinList bins= content.getBins();
+			Bin[] virtualBins= new Bin[bins.maxBinNumber + 1];
+			for(Bin bin : bins){
+				Bin x= new Bin(content.getReferenceSequence(), bin.getBinNumber());
+				List<Chunk> chunks= new ArrayList<Chunk>();
+				for(Chunk chunk : bin.getChunkList()){
+					chunks.add(new Chunk(writer.toVirtualFilePointer(chunk.getChunkStart()), writer.toVirtualFilePointer(chunk.getChunkEnd())));
+				}
+				x.setChunkList(chunks);
+				virtualBins[bin.getBinNumber()]= x;
+			}
+			LinearIndex linear= content.getLinearIndex();
+			long[] entries= linear.getIndexEntries().clone();
+			for(int j= 0; j < entries.length; j++){
+				entries[j]= writer.toVirtualFilePointer(entries[j]);
+			}
+			virtual[i]= new BinningIndexContent(content.getReferenceSequence(), 
+					new BinList(virtualBins, bins.getNumberOfNonNullBins()), 
+					new LinearIndex(linear.getReferenceSequence(), linear.getIndexStart(), entries));
+		}
+		return new TabixIndex(index.getFormatSpec(), index.getSequenceNames(), virtual);
 	}
 
 	/** Set vcfHeader and vcfCodec to null if reading non-vcf line.
@@ -181,104 +223,49 @@ public class MakeTabixIndex {
 		}	
 	}
 	
-	/** Sort file by columns chrom (text) and pos (int). chromIdx and posIdx are 1-based  
-	 * indexes for the chrom and pos column. For bed use 1 and 2 respectively. For use GTF/GFF  1 and 4.
-	 * Comment lines, starting with #, are returned as they are. Reading stops if the line ##FASTA is found.
+	/** Sort by columns chrom (text), pos (int) and, for bed and gff, end (int) the lines 
+	 * already written to the block compressed file partial, then unsortedLine and then the 
+	 * lines left in lin. Comment lines, starting with #, are returned first as they are. 
+	 * Reading stops if the line ##FASTA is found.
+	 * Large inputs are sorted in chunks on disk, see ChromPosSorter.
 	 * */
-	private void sortByChromThenPos(String unsorted, File sorted, TabixFormat fmt) throws SQLException, InvalidRecordException, IOException, ClassNotFoundException{
+	private ChromPosSorter sortByChromThenPos(File partial, String unsortedLine, LineIterator lin, TabixFormat fmt) throws InvalidRecordException, IOException{
 
-		int chromIdx= 1;
-		int posIdx= 2;
+		ChromPosSorter sorter;
 		if(fmt.equals(TabixFormat.BED)){
-			//
+			sorter= new ChromPosSorter(0, 1, 2);
 		} else if(fmt.equals(TabixFormat.GFF)){
-			posIdx= 4;
+			sorter= new ChromPosSorter(0, 3, 4);
 		} else if(fmt.equals(TabixFormat.VCF)){
-			posIdx= 2;
+			sorter= new ChromPosSorter(0, 1, -1);
 		} else {
 			System.err.println("Invalid format found");
 			throw new InvalidRecordException();
 		}
 		
-		Connection conn= null;
 		try{
-			this.sqliteFile= Utils.createTempFile(".asciigenome.", ".tmp.sqlite", true);
-			conn= this.createSQLiteDb(this.sqliteFile, "data");
-		} catch(SQLiteException e){
-			this.sqliteFile= File.createTempFile(".asciigenome.", ".tmp.sqlite");
-			this.sqliteFile.deleteOnExit();
-			conn= this.createSQLiteDb(this.sqliteFile, "data");
-		}
-		PreparedStatement stmtInsert= conn.prepareStatement("INSERT INTO data (contig, pos, posEnd, line) VALUES (?, ?, ?, ?)");
-	
-		BufferedReader br= Utils.reader(unsorted);
-		BufferedWriter wr= new BufferedWriter(new FileWriter(sorted));
-		String line;
-		while((line = br.readLine()) != null){
-			if(line.trim().startsWith("##FASTA")){
-				break;
-			}
-			if(line.trim().startsWith("#")){
-				wr.write(line + "\n");
-				continue;
+			// The lines written so far are read back from the local file, not from the input
+			BufferedReader br= Utils.reader(partial.getAbsolutePath());
+			try{
+				String line;
+				while((line = br.readLine()) != null){
+					sorter.add(line);
+				}
+			} finally {
+				br.close();
 			}
-			String[] tabs= line.split("\t"); 
-			stmtInsert.setString(1, tabs[chromIdx-1]);
-			stmtInsert.setInt(2, Integer.parseInt(tabs[posIdx-1]));
-			if(fmt.equals(TabixFormat.VCF)){
-				stmtInsert.setInt(3, 0);
-			} else {
-				stmtInsert.setInt(3, Integer.parseInt(tabs[posIdx]));
+			sorter.add(unsortedLine);
+			while(lin.hasNext()){
+				String line= lin.next();
+				if(line.trim().startsWith("##FASTA")){
+					break;
+				}
+				sorter.add(line);
 			}
-			stmtInsert.setString(4, line.replaceAll("\n$", ""));
-			stmtInsert.executeUpdate();
+		} catch(IOException e){
+			sorter.close();
+			throw e;
 		}
-		stmtInsert.close();
-		br.close();
-
-		PreparedStatement stmtSelect= conn.prepareStatement("SELECT * FROM data ORDER BY contig, pos, posEnd");
-		
-		ResultSet rs= stmtSelect.executeQuery();
-		
-		while(rs.next()){
-			wr.write(rs.getString("line") + "\n");
-		}
-		conn.commit();
-		stmtSelect.close();
-		wr.close();
-		conn.close();
-		Files.delete(Paths.get(this.sqliteFile.getAbsolutePath()));
-		
-	}
-
-	/** Create a tmp sqlite db and return the connection to it. 
-	 * @throws SQLException 
-	 */
-	private Connection createSQLiteDb(File sqliteFile, String tablename) throws SQLException {
-		// this.sqliteFile= Utils.createTempFile(".asciigenome.", ".tmp.sqlite");
-	    
-	    try {
-			Class.forName("org.sqlite.JDBC");
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
-		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + this.sqliteFile);
-        Statement stmt = conn.createStatement();
-        String sql = "CREATE TABLE " + tablename +  
-        		   " (" +
-                   "contig text, " +
-        		   "pos int," +
-        		   "posEnd int," +
-                   "line text" + // This is the row line as read from input file
-                   ")"; 
-        stmt.executeUpdate(sql);
-        stmt= conn.createStatement();
-
-        // http://stackoverflow.com/questions/1711631/improve-insert-per-second-performance-of-sqlite
-        stmt.execute("PRAGMA journal_mode = OFF"); // This is not to leave tmp journal file o disk
-		conn.setAutoCommit(false); // This is important: By default each insert is committed 
-					     		   // as it is executed, which is slow. Let's commit in bulk at the end instead.
-		stmt.close();
-        return conn;
+		return sorter;
 	}
 }
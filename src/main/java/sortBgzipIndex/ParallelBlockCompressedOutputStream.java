@@ -0,0 +1,296 @@
+package sortBgzipIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/** Block gzip (BGZF) output stream compressing blocks on a pool of threads. Blocks are
+ * split and compressed as in htsjdk BlockCompressedOutputStream, with the same
+ * compression level, so the output is the same. Compressed blocks are written in order.
+ *
+ * Since the address of a block is known only once the blocks before it have been
+ * compressed, getFilePointer() returns a logical pointer: Twice the index of the block in
+ * the upper 48 bits and the offset in the uncompressed block in the lower 16 bits. Once the
+ * stream is flushed, toVirtualFilePointer() converts it to the virtual file pointer of
+ * the BGZF file, as used by tabix and bam indexes. Block indexes are doubled since htsjdk
+ * merges index chunks in blocks whose address differs by one, which never happens between
+ * actual blocks.
+ * */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+	private static int defaultThreads= Runtime.getRuntime().availableProcessors();
+
+	private final OutputStream out;
+	private final int compressionLevel;
+	private final ExecutorService pool;
+	/** Blocks being compressed, in file order */
+	private final Deque<Future<byte[]>> pending= new ArrayDeque<Future<byte[]>>();
+	private final int maxPending;
+
+	private byte[] buffer= new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+	private int bufferLen= 0;
+	/** Number of blocks submitted for compression */
+	private long nBlocks= 0;
+	/** Address in the compressed file of each block written so far */
+	private long[] blockAddress= new long[1024];
+	private int nWritten= 0;
+	private long compressedBytes= 0;
+	private boolean closed= false;
+
+	/*   C O N S T R U C T O R   */
+
+	/** Compress to file using nThreads threads. If nThreads is 1 or less, blocks are
+	 * compressed by the calling thread.
+	 * @param compressionLevel From 0 to 9 as in java.util.zip.Deflater.
+	 * */
+	public ParallelBlockCompressedOutputStream(File file, int nThreads, int compressionLevel) throws IOException{
+		this.out= new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+		this.compressionLevel= compressionLevel;
+		if(nThreads > 1){
+			this.pool= Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "bgzf-compressor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			this.pool= null;
+		}
+		// Bound the memory used by blocks waiting to be written
+		this.maxPending= 2 * Math.max(1, nThreads);
+	}
+
+	public ParallelBlockCompressedOutputStream(File file, int nThreads) throws IOException{
+		this(file, nThreads, BlockCompressedOutputStream.getDefaultCompressionLevel());
+	}
+
+	public ParallelBlockCompressedOutputStream(File file) throws IOException{
+		this(file, getDefaultThreads());
+	}
+
+	/*  M E T H O D S  */
+
+	/** Number of threads used by streams created without setting it. Default is the number
+	 * of available processors.
+	 * */
+	public static int getDefaultThreads(){
+		return defaultThreads;
+	}
+
+	public static void setDefaultThreads(int nThreads){
+		if(nThreads < 1){
+			throw new IllegalArgumentException("Number of threads must be 1 or more. Got " + nThreads);
+		}
+		defaultThreads= nThreads;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.buffer[this.bufferLen++]= (byte) b;
+		if(this.bufferLen == this.buffer.length){
+			this.submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0){
+			int n= Math.min(len, this.buffer.length - this.bufferLen);
+			System.arraycopy(b, off, this.buffer, this.bufferLen, n);
+			this.bufferLen += n;
+			off += n;
+			len -= n;
+			if(this.bufferLen == this.buffer.length){
+				this.submitBlock();
+			}
+		}
+	}
+
+	/** Logical pointer to the next byte to be written. See toVirtualFilePointer().
+	 * */
+	public long getFilePointer(){
+		return 2 * this.nBlocks << 16 | this.bufferLen;
+	}
+
+	/** Convert a logical pointer returned by getFilePointer() to the virtual file pointer
+	 * of the compressed file. The block the pointer refers to must have been written, i.e.
+	 * call flush() first.
+	 * */
+	public long toVirtualFilePointer(long filePointer){
+		long blockIdx= (filePointer >>> 16) / 2;
+		long offset= filePointer & 0xFFFF;
+		if( ! this.isWritten(filePointer)){
+			throw new IllegalStateException("Block " + blockIdx + " has not been written yet");
+		}
+		// Pointer to the end of the data written so far if past the last block
+		long address= blockIdx < this.nWritten ? this.blockAddress[(int) blockIdx] : this.compressedBytes;
+		return address << 16 | offset;
+	}
+
+	/** True if the block the logical pointer refers to has been written, so that
+	 * toVirtualFilePointer() can be called.
+	 * */
+	public boolean isWritten(long filePointer){
+		long blockIdx= (filePointer >>> 16) / 2;
+		return blockIdx < this.nWritten || (blockIdx == this.nWritten && (filePointer & 0xFFFF) == 0);
+	}
+
+	/** Compress and write the current block, if not empty, and all the blocks pending.
+	 * */
+	@Override
+	public void flush() throws IOException {
+		if(this.bufferLen > 0){
+			this.submitBlock();
+		}
+		while( ! this.pending.isEmpty()){
+			this.writeNextBlock();
+		}
+		this.out.flush();
+	}
+
+	/** Flush, write the empty BGZF block marking the end of file and close.
+	 * */
+	@Override
+	public void close() throws IOException {
+		if(this.closed){
+			return;
+		}
+		this.closed= true;
+		try{
+			this.flush();
+			this.out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		} finally {
+			if(this.pool != null){
+				this.pool.shutdownNow();
+			}
+			this.out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException{
+		final byte[] block= this.buffer;
+		final int len= this.bufferLen;
+		this.buffer= new byte[block.length];
+		this.bufferLen= 0;
+		this.nBlocks++;
+
+		Callable<byte[]> task= new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(block, len, compressionLevel);
+			}
+		};
+		if(this.pool == null){
+			FutureTask<byte[]> inline= new FutureTask<byte[]>(task);
+			inline.run();
+			this.pending.add(inline);
+		} else {
+			this.pending.add(this.pool.submit(task));
+		}
+		// Write blocks already done and wait if too many are queued
+		while( ! this.pending.isEmpty() && (this.pending.size() > this.maxPending || this.pending.peekFirst().isDone())){
+			this.writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException{
+		byte[] compressed;
+		try {
+			compressed= this.pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		if(this.nWritten == this.blockAddress.length){
+			this.blockAddress= Arrays.copyOf(this.blockAddress, 2 * this.blockAddress.length);
+		}
+		this.blockAddress[this.nWritten++]= this.compressedBytes;
+		this.out.write(compressed);
+		this.compressedBytes += compressed.length;
+	}
+
+	/** Compress the first len bytes of block to a complete BGZF block, header and footer
+	 * included. If the data does not compress enough to fit in a block, it is stored
+	 * uncompressed, as htsjdk does.
+	 * */
+	private static byte[] compressBlock(byte[] block, int len, int compressionLevel){
+		byte[] deflated= new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+		int deflatedLen= deflate(block, len, deflated, compressionLevel);
+		if(deflatedLen < 0){
+			deflatedLen= deflate(block, len, deflated, Deflater.NO_COMPRESSION);
+			if(deflatedLen < 0){
+				throw new IllegalStateException("Unable to fit block of " + len + " bytes in a BGZF block");
+			}
+		}
+		CRC32 crc= new CRC32();
+		crc.update(block, 0, len);
+
+		int totalLen= BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedLen + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] bgzf= new byte[totalLen];
+		int i= 0;
+		bgzf[i++]= BlockCompressedStreamConstants.GZIP_ID1;
+		bgzf[i++]= (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		bgzf[i++]= BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		bgzf[i++]= (byte) BlockCompressedStreamConstants.GZIP_FLG;
+		i += 4; // Modification time
+		bgzf[i++]= (byte) BlockCompressedStreamConstants.GZIP_XFL;
+		bgzf[i++]= (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		i= putShort(bgzf, i, BlockCompressedStreamConstants.GZIP_XLEN);
+		bgzf[i++]= BlockCompressedStreamConstants.BGZF_ID1;
+		bgzf[i++]= BlockCompressedStreamConstants.BGZF_ID2;
+		i= putShort(bgzf, i, BlockCompressedStreamConstants.BGZF_LEN);
+		i= putShort(bgzf, i, totalLen - 1);
+		System.arraycopy(deflated, 0, bgzf, i, deflatedLen);
+		i += deflatedLen;
+		i= putInt(bgzf, i, (int) crc.getValue());
+		putInt(bgzf, i, len);
+		return bgzf;
+	}
+
+	/** Deflate the first len bytes of in to out. Return the deflated length or -1 if out is
+	 * too small.
+	 * */
+	private static int deflate(byte[] in, int len, byte[] out, int level){
+		Deflater deflater= new Deflater(level, true);
+		try{
+			deflater.setInput(in, 0, len);
+			deflater.finish();
+			int n= deflater.deflate(out, 0, out.length);
+			return deflater.finished() ? n : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int putShort(byte[] b, int i, int x){
+		b[i++]= (byte) x;
+		b[i++]= (byte) (x >>> 8);
+		return i;
+	}
+
+	private static int putInt(byte[] b, int i, int x){
+		i= putShort(b, i, x);
+		return putShort(b, i, x >>> 16);
+	}
+}
@@ -0,0 +1,280 @@
+package tracks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.util.RuntimeIOException;
+import samTextViewer.Utils;
+
+/** Cache of the alignment records decoded from bam files. Records are stored unfiltered
+ * in blocks of BLOCK_SIZE bp keyed by file name, chromosome and block index so that tracks
+ * reading the same file, typically the coverage and the read track of a bam, decode
+ * each record only once. Blocks are evicted on a least recently used basis once the estimated
+ * memory taken by the cached records exceeds the budget.
+ * */
+class AlignmentCache {
+
+	protected static final int BLOCK_SIZE= 16384;
+
+	/** Cache shared by all tracks */
+	private static final AlignmentCache instance= new AlignmentCache(Runtime.getRuntime().maxMemory() / 4);
+
+	private final long maxBytes;
+	private long usedBytes= 0;
+	/** Key: file, chrom and block index. Iteration order is from least to most recently accessed. */
+	private Map<String, Block> blocks= new LinkedHashMap<String, Block>(16, 0.75f, true);
+	/** Blocks being read from file. Key as for blocks. */
+	private Map<String, FutureTask<Block>> loading= new HashMap<String, FutureTask<Block>>();
+
+	private static class Block {
+		/** Records overlapping this block sorted by start position, as returned by SamReader.query() */
+		private final List<SAMRecord> records;
+		private final long bytes;
+
+		private Block(List<SAMRecord> records, long bytes){
+			this.records= records;
+			this.bytes= bytes;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	protected AlignmentCache(long maxBytes){
+		this.maxBytes= maxBytes;
+	}
+
+	protected static AlignmentCache getInstance(){
+		return instance;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Return the records overlapping chrom:from-to, same as SamReader.query(chrom, from, to, false).
+	 * Blocks are fetched from file, if not already cached, as the iterator advances.
+	 * */
+	protected Iterator<SAMRecord> query(String workFilename, String chrom, int from, int to){
+		return new BlockIterator(workFilename, chrom, from, to);
+	}
+
+	/** Read in the cache the blocks spanning chrom:from-to, if not already there.
+	 * */
+	protected void prefetch(String workFilename, String chrom, int from, int to) throws IOException{
+		for(int blockIdx= Math.max(0, from - 1) / BLOCK_SIZE; blockIdx <= Math.max(0, to - 1) / BLOCK_SIZE; blockIdx++){
+			this.getBlock(workFilename, chrom, blockIdx);
+		}
+	}
+
+	/** Remove from cache all the records from this file. To be used when the file has changed.
+	 * */
+	protected synchronized void invalidate(String workFilename){
+		Iterator<Map.Entry<String, Block>> iter= this.blocks.entrySet().iterator();
+		while(iter.hasNext()){
+			Map.Entry<String, Block> x= iter.next();
+			if(x.getKey().startsWith(workFilename + '\t')){
+				this.usedBytes -= x.getValue().bytes;
+				iter.remove();
+			}
+		}
+	}
+
+	protected synchronized void clear(){
+		this.blocks.clear();
+		this.usedBytes= 0;
+	}
+
+	protected synchronized int size(){
+		return this.blocks.size();
+	}
+
+	/** Return the block from cache or read it from file. The file is read without holding the
+	 * lock on the cache so that tracks of different files can be read in parallel. Tracks
+	 * asking for a block already being read wait for it instead of reading it again.
+	 * */
+	private Block getBlock(final String workFilename, final String chrom, final int blockIdx) throws IOException {
+		String key= workFilename + '\t' + chrom + '\t' + blockIdx;
+		FutureTask<Block> task;
+		boolean isReader= false;
+		synchronized(this){
+			Block block= this.blocks.get(key);
+			if(block != null){
+				return block;
+			}
+			task= this.loading.get(key);
+			if(task == null){
+				task= new FutureTask<Block>(new Callable<Block>() {
+					@Override
+					public Block call() throws IOException {
+						return readBlock(workFilename, chrom, blockIdx);
+					}
+				});
+				this.loading.put(key, task);
+				isReader= true;
+			}
+		}
+		if(isReader){
+			task.run();
+		}
+		Block block;
+		try {
+			block= task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeIOException(e.getCause());
+		} finally {
+			if(isReader){
+				synchronized(this){
+					this.loading.remove(key);
+				}
+			}
+		}
+		if(isReader){
+			this.put(key, block);
+		}
+		return block;
+	}
+
+	private static Block readBlock(String workFilename, String chrom, int blockIdx) throws IOException{
+		List<SAMRecord> records= new ArrayList<SAMRecord>();
+		long bytes= 0;
+		SamReader samReader= Utils.getSamReader(workFilename);
+		SAMRecordIterator sam= samReader.query(chrom, blockIdx * BLOCK_SIZE + 1, (blockIdx + 1) * BLOCK_SIZE, false);
+		try{
+			while(sam.hasNext()){
+				Track.checkCancelled();
+				SAMRecord rec= sam.next();
+				decode(rec);
+				records.add(rec);
+				bytes += estimateSize(rec);
+			}
+		} finally {
+			sam.close();
+			samReader.close();
+		}
+		return new Block(records, bytes);
+	}
+
+	/** Records are shared between tracks possibly updated by different threads: Decode the fields
+	 * of bam records now rather than lazily on first access.
+	 * */
+	private static void decode(SAMRecord rec){
+		rec.getReadName();
+		rec.getCigar();
+		rec.getReadBases();
+		rec.getBaseQualities();
+		rec.getAttributes();
+		rec.getAlignmentEnd();
+	}
+
+	private synchronized void put(String key, Block block){
+		if(block.bytes > this.maxBytes){
+			return; // Too big to be cached at all
+		}
+		Iterator<Block> iter= this.blocks.values().iterator();
+		while(this.usedBytes + block.bytes > this.maxBytes && iter.hasNext()){
+			this.usedBytes -= iter.next().bytes;
+			iter.remove();
+		}
+		this.blocks.put(key, block);
+		this.usedBytes += block.bytes;
+	}
+
+	/** Rough estimate of the memory taken by this record, in bytes.
+	 * */
+	private static long estimateSize(SAMRecord rec){
+		// Bases and qualities are stored both as raw bam and, once decoded, in their own arrays.
+		return 300 + 4 * rec.getReadLength() + 2 * rec.getReadName().length() + 16 * rec.getCigarLength();
+	}
+
+	/** Concatenate the records of the blocks spanning the query interval. Records spanning
+	 * more than one block are returned only from the first block where they are found.
+	 * */
+	private class BlockIterator implements Iterator<SAMRecord> {
+
+		private final String workFilename;
+		private final String chrom;
+		private final int from;
+		private final int to;
+		private final int firstBlock;
+		private final int lastBlock;
+		private int blockIdx;
+		private Iterator<SAMRecord> current= null;
+		private SAMRecord next= null;
+
+		private BlockIterator(String workFilename, String chrom, int from, int to){
+			this.workFilename= workFilename;
+			this.chrom= chrom;
+			this.from= from;
+			this.to= to;
+			this.firstBlock= Math.max(0, from - 1) / BLOCK_SIZE;
+			this.lastBlock= Math.max(0, to - 1) / BLOCK_SIZE;
+			this.blockIdx= this.firstBlock - 1;
+			this.advance();
+		}
+
+		private void advance(){
+			this.next= null;
+			while(true){
+				if(this.current == null || ! this.current.hasNext()){
+					if(this.blockIdx >= this.lastBlock){
+						return;
+					}
+					this.blockIdx++;
+					try {
+						this.current= getBlock(this.workFilename, this.chrom, this.blockIdx).records.iterator();
+					} catch (IOException e) {
+						throw new RuntimeIOException(e);
+					}
+					continue;
+				}
+				SAMRecord rec= this.current.next();
+				int blockStart= this.blockIdx * BLOCK_SIZE + 1;
+				if(this.blockIdx > this.firstBlock && rec.getStart() < blockStart){
+					continue; // Already returned from the previous block
+				}
+				if(rec.getStart() > this.to || rec.getEnd() < this.from){
+					continue; // In this block but outside the query interval
+				}
+				this.next= rec;
+				return;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		@Override
+		public SAMRecord next() {
+			if(this.next == null){
+				throw new NoSuchElementException();
+			}
+			SAMRecord rec= this.next;
+			this.advance();
+			return rec;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package tracks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import samTextViewer.Utils;
+
+/** Read depth of a bam file summarized in bins of increasing size, similar to the zoom levels
+ * of TDF and bigWig files. For each bin we store the sum of the depth at each position and
+ * the number of positions with non-zero depth so that the mean depth of covered positions,
+ * as shown by TrackPileup, can be computed at any resolution.
+ *
+ * The pyramid is computed by streaming the bam once, in a background thread, and it is
+ * written to a sidecar file in the cache directory, see DerivedFileCache. The file name is derived
+ * from the bam path, size and modification time so a modified bam is never served stale data.
+ * Records are filtered only for being unmapped, i.e. the default filters of alignment tracks.
+ * */
+class CoveragePyramid {
+
+	/** Size of the bins of each level, from finest to coarsest. All sizes must be multiples
+	 * of the first one. */
+	protected static final int[] BIN_SIZES= new int[] {1024, 16384, 262144};
+	private static final String MAGIC= "ASCIIGenome coverage pyramid v1";
+
+	/** Pyramids already requested. Key: sidecar file path */
+	private static final Map<String, CoveragePyramid> instances= new HashMap<String, CoveragePyramid>();
+
+	private final String bam;
+	private final String workFilename;
+	private final File sidecar;
+	/** Chromosome name and length, in the order they are stored in the sidecar file */
+	private Map<String, Integer> chroms;
+	/** File offset of the first bin of each chromosome and level. Key is chrom name. */
+	private Map<String, long[]> offsets;
+	private volatile boolean building= false;
+	private volatile boolean failed= false;
+
+	private static class ChromBins {
+		private final double[] sum;
+		private final int[] covered;
+
+		private ChromBins(int chromLength){
+			int nBins= nBins(chromLength, BIN_SIZES[0]);
+			this.sum= new double[nBins];
+			this.covered= new int[nBins];
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	/**
+	 * @param bam File the pyramid refers to. Its path, size and time stamp identify the sidecar file.
+	 * @param workFilename File to actually read, typically the same as bam or a sorted and indexed copy of it.
+	 * @param cacheDir Where sidecar files are stored.
+	 * */
+	protected CoveragePyramid(String bam, String workFilename, File cacheDir){
+		this.bam= bam;
+		this.workFilename= workFilename;
+		this.sidecar= new File(cacheDir, sidecarName(bam));
+	}
+
+	/** Return the pyramid for this bam using the default cache directory.
+	 * Pyramids are shared between tracks of the same file.
+	 * */
+	protected static synchronized CoveragePyramid getInstance(String bam, String workFilename){
+		File cacheDir= DerivedFileCache.getCacheDir();
+		String key= new File(cacheDir, sidecarName(bam)).getAbsolutePath();
+		CoveragePyramid pyramid= instances.get(key);
+		if(pyramid == null){
+			pyramid= new CoveragePyramid(bam, workFilename, cacheDir);
+			instances.put(key, pyramid);
+			DerivedFileCache.markUsed(pyramid.sidecar);
+		}
+		return pyramid;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Name of the sidecar file for this bam. Empty string if bam is not a local file so no
+	 * pyramid can be made. */
+	private static String sidecarName(String bam){
+		String entry= DerivedFileCache.entryName(bam);
+		return entry.isEmpty() ? "" : entry + ".cov";
+	}
+
+	/** True if the pyramid has been built and can be queried. */
+	protected synchronized boolean isReady(){
+		if(this.offsets != null){
+			return true;
+		}
+		if(this.building || this.failed || ! this.sidecar.isFile()){
+			return false;
+		}
+		try {
+			this.readHeader();
+		} catch (IOException e) {
+			this.failed= true;
+			return false;
+		}
+		return true;
+	}
+
+	/** True if the pyramid cannot be built, e.g. because the bam is not a local file.
+	 * Tracks should then fall back to computing the pileup. */
+	protected boolean isFailed(){
+		return this.failed;
+	}
+
+	protected boolean isBuilding(){
+		return this.building;
+	}
+
+	/** Start building the sidecar file in a background thread unless already built or being built.
+	 * */
+	protected synchronized void buildInBackground(){
+		if(this.building || this.failed || this.isReady()){
+			return;
+		}
+		if(sidecarName(this.bam).isEmpty()){
+			this.failed= true;
+			return;
+		}
+		this.building= true;
+		Thread builder= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build();
+				} catch (Exception e) {
+					failed= true;
+				} finally {
+					building= false;
+				}
+			}
+		});
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/** Stream the bam file and write the sidecar file. The file is first written to a
+	 * temporary name so that readers never see an incomplete pyramid.
+	 * */
+	protected void build() throws IOException {
+
+		SamReader samReader= Utils.getSamReader(this.workFilename);
+		Map<String, Integer> chromLengths= new LinkedHashMap<String, Integer>();
+		for(SAMSequenceRecord x : samReader.getFileHeader().getSequenceDictionary().getSequences()){
+			chromLengths.put(x.getSequenceName(), x.getSequenceLength());
+		}
+		Map<String, ChromBins> bins= new HashMap<String, ChromBins>();
+
+		FilteredSamIterator sam= new FilteredSamIterator(samReader.iterator(), new FeatureFilter());
+		sam.setCancellable(false); // Runs in the background, independently of the track updates
+		DepthWindow window= null;
+		SAMRecord rec;
+		while((rec= sam.next()) != null){
+			if(window == null || ! window.chrom.equals(rec.getReferenceName())){
+				if(window != null){
+					window.flushTo(Integer.MAX_VALUE);
+				}
+				ChromBins chromBins= new ChromBins(chromLengths.get(rec.getReferenceName()));
+				bins.put(rec.getReferenceName(), chromBins);
+				window= new DepthWindow(rec.getReferenceName(), chromBins);
+			}
+			// Positions before the start of this read will not receive any more reads
+			window.flushTo(rec.getAlignmentStart());
+			int refPos= rec.getAlignmentStart();
+			for(CigarElement el : rec.getCigar().getCigarElements()){
+				CigarOperator op= el.getOperator();
+				if(op.equals(CigarOperator.M) || op.equals(CigarOperator.EQ) || op.equals(CigarOperator.X) || op.equals(CigarOperator.D)){
+					// Aligned and deleted bases count towards depth, same as in TrackPileup
+					for(int i= 0; i < el.getLength(); i++){
+						window.add(refPos + i);
+					}
+				}
+				if(op.consumesReferenceBases()){
+					refPos += el.getLength();
+				}
+			}
+		}
+		if(window != null){
+			window.flushTo(Integer.MAX_VALUE);
+		}
+		samReader.close();
+
+		// Unique name, not part of the cache entry: Other sessions may be building the same
+		// pyramid or trimming the cache
+		File tmp= DerivedFileCache.newTempFile(this.sidecar, ".tmp.cov");
+		try{
+			this.write(tmp, chromLengths, bins);
+			if( ! tmp.renameTo(this.sidecar)){
+				throw new IOException("Cannot write " + this.sidecar);
+			}
+		} finally {
+			tmp.delete();
+		}
+		DerivedFileCache.trim();
+	}
+
+	/** Sidecar file layout: Length of header, header, then the bins of each chromosome and
+	 * level in the order given in the header. Each bin is a float sum of depth and an int count
+	 * of covered positions.
+	 * */
+	private void write(File out, Map<String, Integer> chromLengths, Map<String, ChromBins> bins) throws IOException{
+		ByteArrayOutputStream headerBytes= new ByteArrayOutputStream();
+		DataOutputStream header= new DataOutputStream(headerBytes);
+		header.writeUTF(MAGIC);
+		header.writeInt(BIN_SIZES.length);
+		for(int binSize : BIN_SIZES){
+			header.writeInt(binSize);
+		}
+		header.writeInt(chromLengths.size());
+		for(String chrom : chromLengths.keySet()){
+			header.writeUTF(chrom);
+			header.writeInt(chromLengths.get(chrom));
+		}
+		header.close();
+
+		DataOutputStream os= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+		os.writeInt(headerBytes.size());
+		os.write(headerBytes.toByteArray());
+		for(String chrom : chromLengths.keySet()){
+			ChromBins chromBins= bins.get(chrom);
+			if(chromBins == null){
+				chromBins= new ChromBins(chromLengths.get(chrom)); // No reads here
+			}
+			for(int binSize : BIN_SIZES){
+				int fold= binSize / BIN_SIZES[0];
+				int nBins= nBins(chromLengths.get(chrom), binSize);
+				for(int i= 0; i < nBins; i++){
+					double sum= 0;
+					int covered= 0;
+					for(int j= i * fold; j < Math.min((i + 1) * fold, chromBins.sum.length); j++){
+						sum += chromBins.sum[j];
+						covered += chromBins.covered[j];
+					}
+					os.writeFloat((float) sum);
+					os.writeInt(covered);
+				}
+			}
+		}
+		os.close();
+	}
+
+	private void readHeader() throws IOException{
+		RandomAccessFile raf= new RandomAccessFile(this.sidecar, "r");
+		try{
+			byte[] headerBytes= new byte[raf.readInt()];
+			raf.readFully(headerBytes);
+			DataInputStream header= new DataInputStream(new ByteArrayInputStream(headerBytes));
+			if( ! header.readUTF().equals(MAGIC)){
+				throw new IOException("Invalid coverage file " + this.sidecar);
+			}
+			int nLevels= header.readInt();
+			for(int i= 0; i < nLevels; i++){
+				if(i >= BIN_SIZES.length || header.readInt() != BIN_SIZES[i]){
+					throw new IOException("Invalid coverage file " + this.sidecar);
+				}
+			}
+			Map<String, Integer> chroms= new LinkedHashMap<String, Integer>();
+			Map<String, long[]> offsets= new HashMap<String, long[]>();
+			int nChroms= header.readInt();
+			long offset= 4 + headerBytes.length;
+			for(int i= 0; i < nChroms; i++){
+				String chrom= header.readUTF();
+				int len= header.readInt();
+				chroms.put(chrom, len);
+				long[] chromOffsets= new long[BIN_SIZES.length];
+				for(int k= 0; k < BIN_SIZES.length; k++){
+					chromOffsets[k]= offset;
+					offset += 8L * nBins(len, BIN_SIZES[k]);
+				}
+				offsets.put(chrom, chromOffsets);
+			}
+			if(offset != raf.length()){
+				throw new IOException("Truncated coverage file " + this.sidecar);
+			}
+			this.chroms= chroms;
+			this.offsets= offsets;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Index of the level with the largest bins not exceeding bpPerColumn or -1 if even the
+	 * finest level is too coarse. */
+	protected static int getLevel(double bpPerColumn){
+		int level= -1;
+		for(int i= 0; i < BIN_SIZES.length; i++){
+			if(BIN_SIZES[i] <= bpPerColumn){
+				level= i;
+			}
+		}
+		return level;
+	}
+
+	/** Bins of this level overlapping chrom:from-to. Each bin is an array of bin start and end
+	 * positions (1-based, inclusive), sum of depth and number of covered positions.
+	 * */
+	protected List<double[]> getBins(String chrom, int from, int to, int level) throws IOException{
+		List<double[]> out= new ArrayList<double[]>();
+		if( ! this.isReady() || ! this.chroms.containsKey(chrom)){
+			return out;
+		}
+		int binSize= BIN_SIZES[level];
+		int chromLen= this.chroms.get(chrom);
+		int firstBin= Math.max(0, from - 1) / binSize;
+		int lastBin= Math.min(nBins(chromLen, binSize) - 1, Math.max(0, to - 1) / binSize);
+		if(lastBin < firstBin){
+			return out;
+		}
+		byte[] buf= new byte[8 * (lastBin - firstBin + 1)];
+		RandomAccessFile raf= new RandomAccessFile(this.sidecar, "r");
+		try{
+			raf.seek(this.offsets.get(chrom)[level] + 8L * firstBin);
+			raf.readFully(buf);
+		} finally {
+			raf.close();
+		}
+		ByteBuffer bb= ByteBuffer.wrap(buf);
+		for(int i= firstBin; i <= lastBin; i++){
+			double sum= bb.getFloat();
+			int covered= bb.getInt();
+			out.add(new double[] {(double)i * binSize + 1, Math.min((double)(i + 1) * binSize, chromLen), sum, covered});
+		}
+		return out;
+	}
+
+	private static int nBins(int chromLength, int binSize){
+		return Math.max(1, (chromLength + binSize - 1) / binSize);
+	}
+
+	/** Depth of the positions not yet finalized, i.e. not before the start of the last
+	 * read seen. Finalized positions are added to the finest bins. Depth is held in a circular
+	 * buffer that grows if a read spans more positions than the buffer can hold.
+	 * */
+	private static class DepthWindow {
+		private final String chrom;
+		private final ChromBins bins;
+		private int[] depth= new int[1 << 16];
+		/** First position not yet finalized */
+		private int base= 1;
+		/** Last position with depth added */
+		private int maxPos= 0;
+
+		private DepthWindow(String chrom, ChromBins bins){
+			this.chrom= chrom;
+			this.bins= bins;
+		}
+
+		private void add(int pos){
+			if(pos < this.base){
+				return; // Unsorted input: Should not happen
+			}
+			while(pos - this.base >= this.depth.length){
+				this.grow();
+			}
+			this.depth[pos & (this.depth.length - 1)]++;
+			if(pos > this.maxPos){
+				this.maxPos= pos;
+			}
+		}
+
+		/** Finalize positions up to, excluding, pos. */
+		private void flushTo(int pos){
+			int last= Math.min(pos - 1, this.maxPos);
+			int mask= this.depth.length - 1;
+			for(int p= this.base; p <= last; p++){
+				int d= this.depth[p & mask];
+				if(d > 0){
+					int bin= Math.min((p - 1) / BIN_SIZES[0], this.bins.sum.length - 1);
+					this.bins.sum[bin] += d;
+					this.bins.covered[bin]++;
+					this.depth[p & mask]= 0;
+				}
+			}
+			if(pos > this.base){
+				this.base= pos;
+			}
+		}
+
+		private void grow(){
+			int[] newDepth= new int[this.depth.length * 2];
+			int mask= this.depth.length - 1;
+			int newMask= newDepth.length - 1;
+			for(int p= this.base; p <= this.maxPos; p++){
+				newDepth[p & newMask]= this.depth[p & mask];
+			}
+			this.depth= newDepth;
+		}
+	}
+}
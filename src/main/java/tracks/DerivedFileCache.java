@@ -0,0 +1,358 @@
+package tracks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import exceptions.InvalidRecordException;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import samTextViewer.Utils;
+import sortBgzipIndex.MakeTabixIndex;
+
+/** Files derived from input files, like sorted and indexed copies of unindexed files,
+ * coverage pyramids and find indexes, kept in a cache directory so that they are reused
+ * across sessions.
+ *
+ * The name of each derived file starts with the input file name and the md5 of its absolute
+ * path, size and modification time, so a modified input is never served stale files. All
+ * the files derived from the same input make an entry of the cache. Using an entry marks it
+ * as recently used. When the cache grows beyond configuration parameter cache_max_mb, the
+ * files of the least recently used entries are deleted. Entries used in this session are
+ * never deleted. Nor are entries used in the last IN_USE_MILLIS, since other sessions may
+ * still be reading them: Sessions refresh the time stamp of the entries they use
+ * periodically for as long as they run.
+ * */
+class DerivedFileCache {
+
+	/** File name of input plus md5 of its path, size and time stamp */
+	private static final Pattern ENTRY= Pattern.compile("^(.*\\.[0-9a-f]{32})\\..*$");
+	/** Temporary files from newTempFile(), and files written next to them like indexes */
+	private static final Pattern TEMP= Pattern.compile("^.*\\.[0-9a-f]{32}[0-9]+\\.tmp\\..*$");
+
+	/** Entries used more recently than this may be in use by other sessions */
+	private static final long IN_USE_MILLIS= 60 * 60 * 1000;
+
+	private static File cacheDir= null;
+	/** Entries used in this session */
+	private static final Set<String> inUse= new HashSet<String>();
+	/** Temporary files made in this session. Those still on disk are being written */
+	private static final Set<File> tempFiles= new HashSet<File>();
+	/** Refreshes the time stamp of the entries in use. Started when the first entry is used */
+	private static Timer refresher= null;
+
+	/*  M E T H O D S  */
+
+	protected static synchronized File getCacheDir(){
+		if(cacheDir != null){
+			return cacheDir;
+		}
+		File dir= new File(System.getProperty("user.home"), ".asciigenome_cache");
+		if( ! dir.isDirectory() && ! dir.mkdirs()){
+			dir= new File(System.getProperty("java.io.tmpdir"));
+		}
+		return dir;
+	}
+
+	/** Use dir as cache directory instead of the default ~/.asciigenome_cache. Set to null to
+	 * use the default again. */
+	protected static synchronized void setCacheDir(File dir){
+		cacheDir= dir;
+	}
+
+	/** Name shared by all the files derived from this file. Empty string if filename is not
+	 * a local file.
+	 * */
+	protected static String entryName(String filename){
+		File f= new File(filename);
+		if( ! f.isFile()){
+			return "";
+		}
+		String id= f.getAbsolutePath() + '\t' + f.length() + '\t' + f.lastModified();
+		StringBuilder md5= new StringBuilder();
+		try {
+			for(byte b : MessageDigest.getInstance("MD5").digest(id.getBytes())){
+				md5.append(String.format("%02x", b));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			md5.append(Integer.toHexString(id.hashCode()));
+		}
+		return f.getName() + "." + md5;
+	}
+
+	/** Cache file derived from filename with this extension, e.g. ".bam". Null if filename is
+	 * not a local file or if the cache is disabled, i.e. cache_max_mb is 0.
+	 * */
+	private static File getFile(String filename, String extension){
+		String maxMb= Config.get(ConfigKey.cache_max_mb);
+		if(maxMb == null || Long.parseLong(maxMb) <= 0){
+			// Configuration not loaded or cache disabled
+			return null;
+		}
+		String entry= entryName(filename);
+		if(entry.isEmpty()){
+			return null;
+		}
+		return new File(getCacheDir(), entry + extension);
+	}
+
+	/** Sorted and indexed copy of the sam or bam file. The copy is taken from the cache if
+	 * made before, otherwise it is made and added to the cache. If the cache cannot be used,
+	 * the copy is a temporary file deleted on exit.
+	 * */
+	protected static synchronized String getSortedBam(String bam) throws IOException{
+		File cached= getFile(bam, ".bam");
+		if(cached == null){
+			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
+			Utils.sortAndIndexSamOrBam(bam, temp.getAbsolutePath(), true);
+			return temp.getAbsolutePath();
+		}
+		File bai= new File(cached.getAbsolutePath().replaceAll("\\.bam$", ".bai"));
+		if( ! bai.isFile()){
+			// Write to temporary names first so that an incomplete copy is never used.
+			// The index is moved last: If present, the bam is complete. Temporary names are
+			// unique since other sessions may be making the same copy.
+			File tmp= newTempFile(cached, ".tmp.bam");
+			File tmpBai= new File(tmp.getAbsolutePath().replaceAll("\\.bam$", ".bai"));
+			tmpBai.deleteOnExit();
+			try{
+				Utils.sortAndIndexSamOrBam(bam, tmp.getAbsolutePath(), false);
+				move(tmp, cached);
+				move(tmpBai, bai);
+			} finally {
+				tmp.delete();
+				tmpBai.delete();
+			}
+			markUsed(cached);
+			trim();
+		} else {
+			markUsed(cached);
+		}
+		return cached.getAbsolutePath();
+	}
+
+	/** Sorted, block compressed and tabix indexed copy of filename, taken from the cache or
+	 * made as for getSortedBam().
+	 * */
+	protected static synchronized String getTabixIndexed(String filename, TabixFormat fmt) throws IOException, InvalidRecordException, ClassNotFoundException, SQLException{
+		// Keep the extension of the input so that the format can be told from the name
+		String name= new File(filename).getName().replaceAll("\\.(gz|bgz)$", "");
+		String extension= name.contains(".") ? name.substring(name.lastIndexOf('.')) : "";
+		File cached= getFile(filename, extension + ".gz");
+		if(cached == null){
+			String suffix= new File(filename).getName();
+			if( ! suffix.endsWith(".gz")){
+				suffix += ".gz";
+			}
+			File tmp= Utils.createTempFile(".asciigenome.", "." + suffix, true);
+			new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX).deleteOnExit();
+			new MakeTabixIndex(filename, tmp, fmt);
+			return tmp.getAbsolutePath();
+		}
+		File tbi= new File(cached.getAbsolutePath() + FileExtensions.TABIX_INDEX);
+		if( ! tbi.isFile()){
+			// As for getSortedBam(): The index is moved in place last
+			File tmp= newTempFile(cached, ".tmp" + extension + ".gz");
+			File tmpTbi= new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX);
+			tmpTbi.deleteOnExit();
+			try{
+				new MakeTabixIndex(filename, tmp, fmt);
+				move(tmp, cached);
+				move(tmpTbi, tbi);
+			} finally {
+				tmp.delete();
+				tmpTbi.delete();
+			}
+			markUsed(cached);
+			trim();
+		} else {
+			markUsed(cached);
+		}
+		return cached.getAbsolutePath();
+	}
+
+	/** New empty file in the directory of cached, with a unique name, to write cached
+	 * file to. The name is not recognized as part of an entry so the file is not deleted
+	 * by trim() while being written. Suffix must start with ".tmp.". The file is deleted on
+	 * exit and, if a session is killed before that, by the trim() of a later session.
+	 * */
+	protected static synchronized File newTempFile(File cached, String suffix) throws IOException{
+		File tmp= File.createTempFile(entryOf(cached), suffix, cached.getAbsoluteFile().getParentFile());
+		tmp.deleteOnExit();
+		tempFiles.add(tmp);
+		startRefresher();
+		return tmp;
+	}
+
+	/** Rename source to target, replacing target if it exists, so that other sessions
+	 * see either the old or the new target and never a partial copy.
+	 * */
+	private static void move(File source, File target) throws IOException{
+		try{
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e){
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** True if file is part of an entry of the cache, so it should not be deleted on exit.
+	 * Files derived from it can be added to its entry by naming them after it. */
+	protected static boolean isCached(File file){
+		return entryOf(file) != null && getCacheDir().getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile());
+	}
+
+	/** Entry of this cache file or null if the file is not part of the cache. */
+	private static String entryOf(File file){
+		Matcher m= ENTRY.matcher(file.getName());
+		return m.matches() ? m.group(1) : null;
+	}
+
+	/** Files in the cache grouped by entry */
+	private static Map<String, List<File>> listEntries(){
+		Map<String, List<File>> entries= new LinkedHashMap<String, List<File>>();
+		File[] files= getCacheDir().listFiles();
+		if(files == null){
+			return entries;
+		}
+		for(File f : files){
+			String entry= entryOf(f);
+			if(entry == null || ! f.isFile()){
+				continue;
+			}
+			if( ! entries.containsKey(entry)){
+				entries.put(entry, new ArrayList<File>());
+			}
+			entries.get(entry).add(f);
+		}
+		return entries;
+	}
+
+	/** Mark the entry of this cache file as used now, both for this session and for the
+	 * least recently used order. All the files of the entry get the same time stamp so that
+	 * an index is never older than the file it indexes.
+	 * */
+	protected static synchronized void markUsed(File cached){
+		String entry= entryOf(cached);
+		if(entry == null){
+			return;
+		}
+		inUse.add(entry);
+		touch(listEntries().get(entry));
+		startRefresher();
+	}
+
+	private static void startRefresher(){
+		if(refresher == null){
+			// Keep the entries in use recent enough for other sessions not to delete them
+			refresher= new Timer("cache-refresher", true);
+			refresher.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					refreshInUse();
+				}
+			}, IN_USE_MILLIS / 4, IN_USE_MILLIS / 4);
+		}
+	}
+
+	/** Mark all the entries used in this session as used now. Temporary files still being
+	 * written are refreshed as well. */
+	protected static synchronized void refreshInUse(){
+		Map<String, List<File>> entries= listEntries();
+		for(String entry : inUse){
+			touch(entries.get(entry));
+		}
+		Iterator<File> iter= tempFiles.iterator();
+		while(iter.hasNext()){
+			File f= iter.next();
+			if( ! f.exists()){
+				iter.remove(); // Moved in place or deleted
+			}
+		}
+		touch(new ArrayList<File>(tempFiles));
+	}
+
+	private static void touch(List<File> files){
+		if(files == null){
+			return;
+		}
+		long now= System.currentTimeMillis();
+		for(File f : files){
+			f.setLastModified(now);
+		}
+	}
+
+	/** Delete the files of the least recently used entries, not used in this session nor in
+	 * the last IN_USE_MILLIS, until the cache size is within cache_max_mb. Temporary files
+	 * not modified in the last IN_USE_MILLIS are left by killed sessions and are deleted.
+	 * */
+	protected static synchronized void trim(){
+		String maxMb= Config.get(ConfigKey.cache_max_mb);
+		if(maxMb == null){
+			return;
+		}
+		long maxBytes= Long.parseLong(maxMb) * 1024 * 1024;
+		long now= System.currentTimeMillis();
+
+		File[] files= getCacheDir().listFiles();
+		if(files != null){
+			for(File f : files){
+				if(TEMP.matcher(f.getName()).matches() && f.isFile() && f.lastModified() < now - IN_USE_MILLIS){
+					f.delete();
+				}
+			}
+		}
+
+		Map<String, List<File>> entries= listEntries();
+		final Map<String, Long> lastUsed= new LinkedHashMap<String, Long>();
+		long totalBytes= 0;
+		for(String entry : entries.keySet()){
+			long t= 0;
+			for(File f : entries.get(entry)){
+				totalBytes += f.length();
+				t= Math.max(t, f.lastModified());
+			}
+			lastUsed.put(entry, t);
+		}
+		List<String> lru= new ArrayList<String>(entries.keySet());
+		Collections.sort(lru, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+		for(String entry : lru){
+			if(totalBytes <= maxBytes){
+				break;
+			}
+			if(inUse.contains(entry) || lastUsed.get(entry) > now - IN_USE_MILLIS){
+				continue;
+			}
+			for(File f : entries.get(entry)){
+				long size= f.length();
+				if(f.delete()){
+					totalBytes -= size;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package tracks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Cache of the features of a track, parsed and filtered, in blocks of BLOCK_SIZE bp keyed by
+ * chromosome and block index. Moving to a window overlapping the current one only needs to
+ * read the blocks not seen before. Blocks are evicted on a least recently used basis once the
+ * estimated memory taken by the cached features exceeds the budget.
+ *
+ * Each track has its own cache since features are stored after applying the track's filters.
+ * The track must clear the cache whenever the visible features change.
+ * See also AlignmentCache for the same idea applied to bam files.
+ * */
+class FeatureBlockCache {
+
+	protected static final int BLOCK_SIZE= 100000;
+
+	private final long maxBytes;
+	private long usedBytes= 0;
+	/** Key: chrom and block index. Iteration order is from least to most recently accessed. */
+	private Map<String, Block> blocks= new LinkedHashMap<String, Block>(16, 0.75f, true);
+
+	private static class Block {
+		/** Features overlapping this block, in the order they are in the file */
+		private final List<IntervalFeature> features;
+		private final long bytes;
+
+		private Block(List<IntervalFeature> features, long bytes){
+			this.features= features;
+			this.bytes= bytes;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	protected FeatureBlockCache(long maxBytes){
+		this.maxBytes= maxBytes;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Features of this block or null if not cached.
+	 * */
+	protected synchronized List<IntervalFeature> get(String chrom, int blockIdx){
+		Block block= this.blocks.get(chrom + '\t' + blockIdx);
+		return block == null ? null : block.features;
+	}
+
+	/** Add these features as the content of this block, evicting the least recently used blocks
+	 * if needed. Blocks larger than the whole budget are not cached.
+	 * */
+	protected synchronized void put(String chrom, int blockIdx, List<IntervalFeature> features){
+		long bytes= 0;
+		for(IntervalFeature x : features){
+			bytes += estimateSize(x);
+		}
+		if(bytes > this.maxBytes){
+			return;
+		}
+		Block old= this.blocks.remove(chrom + '\t' + blockIdx);
+		if(old != null){
+			this.usedBytes -= old.bytes;
+		}
+		Iterator<Block> iter= this.blocks.values().iterator();
+		while(this.usedBytes + bytes > this.maxBytes && iter.hasNext()){
+			this.usedBytes -= iter.next().bytes;
+			iter.remove();
+		}
+		this.blocks.put(chrom + '\t' + blockIdx, new Block(features, bytes));
+		this.usedBytes += bytes;
+	}
+
+	/** Remove all blocks. To be used when the file or the filters have changed.
+	 * */
+	protected synchronized void clear(){
+		this.blocks.clear();
+		this.usedBytes= 0;
+	}
+
+	protected synchronized int size(){
+		return this.blocks.size();
+	}
+
+	/** Rough estimate of the memory taken by this feature, in bytes. Features keep the raw
+	 * line, at two bytes per character, and the position of its tabs. The other columns are
+	 * only split from the line when first needed, e.g. for the features on screen, so allow
+	 * one more byte per character for them.
+	 * */
+	private static long estimateSize(IntervalFeature x){
+		return 300 + 3 * x.getRaw().length();
+	}
+}
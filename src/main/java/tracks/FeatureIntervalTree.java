@@ -0,0 +1,240 @@
+package tracks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.validator.routines.UrlValidator;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.tribble.readers.LineIterator;
+
+/** Features of a small file held in memory, as an alternative to sorting, compressing and
+ * indexing the file with tabix. Queries return the same lines, in the same order, as a
+ * tabix query on the indexed file would.
+ *
+ * Each chromosome is an augmented interval tree laid out implicitly in arrays sorted by
+ * start position, as in cgranges by Heng Li: The node at index i has level k if the k lowest
+ * bits of i are 1 and its children are i - 2^(k-1) and i + 2^(k-1). Each node stores the
+ * largest end position in its subtree. Being read-only once built, the tree can be queried
+ * from more than one thread.
+ * */
+class FeatureIntervalTree {
+
+	private Map<String, Chrom> chroms= new LinkedHashMap<String, Chrom>();
+
+	private static class Chrom {
+		private final String[] lines;
+		/** 0-based start and end of each line as in tabix: Overlap [start, end) */
+		private final int[] starts;
+		private final int[] ends;
+		/** Largest end in the subtree of each node */
+		private final int[] maxEnds;
+		private final int rootLevel;
+
+		private Chrom(List<Record> records){
+			int n= records.size();
+			this.lines= new String[n];
+			this.starts= new int[n];
+			this.ends= new int[n];
+			this.maxEnds= new int[n];
+			for(int i= 0; i < n; i++){
+				this.lines[i]= records.get(i).line;
+				this.starts[i]= records.get(i).start;
+				this.ends[i]= records.get(i).end;
+			}
+			this.rootLevel= this.index();
+		}
+
+		/** Fill in maxEnds and return the level of the root. */
+		private int index(){
+			int n= this.lines.length;
+			if(n == 0){
+				return -1;
+			}
+			long lastI= 0;
+			int last= 0;
+			for(int i= 0; i < n; i += 2){
+				lastI= i;
+				last= this.maxEnds[i]= this.ends[i];
+			}
+			int k;
+			for(k= 1; (1L << k) <= n; k++){
+				long x= 1L << (k - 1);
+				long step= x << 2;
+				for(long i= (x << 1) - 1; i < n; i += step){
+					int el= this.maxEnds[(int) (i - x)];
+					int er= i + x < n ? this.maxEnds[(int) (i + x)] : last;
+					this.maxEnds[(int) i]= Math.max(this.ends[(int) i], Math.max(el, er));
+				}
+				lastI= ((lastI >> k) & 1) == 1 ? lastI - x : lastI + x;
+				if(lastI < n && this.maxEnds[(int) lastI] > last){
+					last= this.maxEnds[(int) lastI];
+				}
+			}
+			return k - 1;
+		}
+
+		/** Lines overlapping [start, end), sorted by start. */
+		private List<String> query(int start, int end){
+			List<String> out= new ArrayList<String>();
+			int n= this.lines.length;
+			if(n == 0){
+				return out;
+			}
+			// Stack of nodes to visit: index, level, whether the left child is done
+			long[] stackNode= new long[64];
+			int[] stackLevel= new int[64];
+			boolean[] stackLeftDone= new boolean[64];
+			int t= 0;
+			stackNode[t]= (1L << this.rootLevel) - 1;
+			stackLevel[t]= this.rootLevel;
+			stackLeftDone[t++]= false;
+			while(t > 0){
+				t--;
+				long node= stackNode[t];
+				int k= stackLevel[t];
+				if(k <= 3){
+					// Small subtree: Linear scan
+					long i0= node >> k << k;
+					long i1= Math.min(n, i0 + (1L << (k + 1)) - 1);
+					for(long i= i0; i < i1 && this.starts[(int) i] < end; i++){
+						if(start < this.ends[(int) i]){
+							out.add(this.lines[(int) i]);
+						}
+					}
+				} else if( ! stackLeftDone[t]){
+					// Visit again after the left child, if the left child may overlap
+					long left= node - (1L << (k - 1));
+					stackLeftDone[t++]= true;
+					if(left >= n || this.maxEnds[(int) left] > start){
+						stackNode[t]= left;
+						stackLevel[t]= k - 1;
+						stackLeftDone[t++]= false;
+					}
+				} else if(node < n && this.starts[(int) node] < end){
+					if(start < this.ends[(int) node]){
+						out.add(this.lines[(int) node]);
+					}
+					stackNode[t]= node + (1L << (k - 1));
+					stackLevel[t]= k - 1;
+					stackLeftDone[t++]= false;
+				}
+			}
+			return out;
+		}
+	}
+
+	private static class Record {
+		private final String line;
+		private final int start;
+		private final int end;
+
+		private Record(String line, int start, int end){
+			this.line= line;
+			this.start= start;
+			this.end= end;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	private FeatureIntervalTree(){
+
+	}
+
+	/*  M E T H O D S  */
+
+	/** True if filename is a local file small enough to be held in memory.
+	 * */
+	protected static boolean fitsInMemory(String filename){
+		if(new UrlValidator().isValid(filename)){
+			return false;
+		}
+		String maxKb= Config.get(ConfigKey.in_memory_max_kb);
+		if(maxKb == null){
+			// Configuration not loaded: Index as usual
+			return false;
+		}
+		File file= new File(filename);
+		long maxBytes= Long.parseLong(maxKb) * 1024;
+		return file.isFile() && file.length() <= maxBytes;
+	}
+
+	/** Read the lines of filename into a tree. Lines are filtered as in MakeTabixIndex and
+	 * parsed by track to get their coordinates.
+	 * */
+	protected static FeatureIntervalTree read(String filename, TrackIntervalFeature track) throws IOException{
+
+		Map<String, List<Record>> records= new LinkedHashMap<String, List<Record>>();
+		int nWarnings= 10;
+		LineIterator lin= utils.IOUtils.openURIForLineIterator(filename);
+		try{
+			while(lin.hasNext()){
+				String line= lin.next().trim();
+				if(line.startsWith("##FASTA")){
+					break;
+				}
+				if(line.isEmpty() || line.startsWith("track ") || line.startsWith("#")){
+					continue;
+				}
+				IntervalFeature x;
+				try{
+					x= track.parseFeature(line);
+				} catch(Exception e){
+					if(nWarnings >= 0){
+						System.err.println("Warning: " + e.getMessage() + ". Skipping:\n" + line);
+					}
+					if(nWarnings == 0){
+						System.err.println("Additional warnings will not be show.");
+					}
+					nWarnings--;
+					continue;
+				}
+				if( ! records.containsKey(x.getChrom())){
+					records.put(x.getChrom(), new ArrayList<Record>());
+				}
+				// Same as tabix: 0-based start, end at least 1
+				records.get(x.getChrom()).add(new Record(line, Math.max(0, x.getFrom() - 1), Math.max(1, x.getTo())));
+			}
+		} finally {
+			CloserUtil.close(lin);
+		}
+		FeatureIntervalTree tree= new FeatureIntervalTree();
+		for(String chrom : records.keySet()){
+			List<Record> chromRecords= records.get(chrom);
+			// Stable: Lines with the same start stay in file order
+			Collections.sort(chromRecords, new Comparator<Record>() {
+				@Override
+				public int compare(Record a, Record b) {
+					return Integer.compare(a.start, b.start);
+				}
+			});
+			tree.chroms.put(chrom, new Chrom(chromRecords));
+		}
+		return tree;
+	}
+
+	protected Set<String> getChromosomes(){
+		return Collections.unmodifiableSet(this.chroms.keySet());
+	}
+
+	/** Lines on chrom overlapping the 0-based, half-open interval [start, end) sorted by
+	 * start. Same as TabixReader.query(chrom, start, end).
+	 * */
+	protected List<String> query(String chrom, int start, int end){
+		Chrom c= this.chroms.get(chrom);
+		if(c == null){
+			return new ArrayList<String>();
+		}
+		return c.query(start, end);
+	}
+}
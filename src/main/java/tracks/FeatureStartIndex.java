@@ -0,0 +1,208 @@
+package tracks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import exceptions.InvalidGenomicCoordsException;
+
+/** Start and end of all the features of a track, one chromosome at a time, to find the next
+ * and previous feature relative to a position with a binary search instead of scanning the file.
+ *
+ * The coordinates of a chromosome are read the first time the chromosome is queried. Whether
+ * a feature passes the track filters (grep and awk) is tested only when needed, in batches,
+ * and remembered until the filters change. See clearVisibility().
+ * */
+class FeatureStartIndex {
+
+	/** Number of features read at once to test whether they pass the filters */
+	protected static final int BATCH_SIZE= 1000;
+
+	private final TrackIntervalFeature track;
+	private Map<String, ChromIndex> chroms= new HashMap<String, ChromIndex>();
+
+	/** Features of one chromosome in the order they are in the file, i.e. sorted by start. */
+	private static class ChromIndex {
+		private int[] starts= new int[1024];
+		private int[] ends= new int[1024];
+		private int size= 0;
+		/** Features whose visibility is known */
+		private BitSet tested= new BitSet();
+		/** Features passing the filters. Meaningful only where tested is set */
+		private BitSet visible= new BitSet();
+
+		private void add(int start, int end){
+			if(this.size == this.starts.length){
+				this.starts= Arrays.copyOf(this.starts, this.size * 2);
+				this.ends= Arrays.copyOf(this.ends, this.size * 2);
+			}
+			this.starts[this.size]= start;
+			this.ends[this.size]= end;
+			this.size++;
+		}
+
+		/** Index of the first feature starting after pos or size if none. */
+		private int firstStartAfter(int pos){
+			int lo= 0;
+			int hi= this.size;
+			while(lo < hi){
+				int mid= (lo + hi) >>> 1;
+				if(this.starts[mid] <= pos){
+					lo= mid + 1;
+				} else {
+					hi= mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	protected FeatureStartIndex(TrackIntervalFeature track){
+		this.track= track;
+	}
+
+	/*  M E T H O D S  */
+
+	/** First feature on chrom starting after pos and passing the track filters, or null.
+	 * */
+	protected IntervalFeature next(String chrom, int pos) throws IOException, InvalidGenomicCoordsException{
+		ChromIndex ci= this.getChromIndex(chrom);
+		int k= ci.firstStartAfter(pos);
+		while(k < ci.size){
+			if( ! this.track.hasVisibilityFilter()){
+				return this.getFeature(chrom, ci, k);
+			}
+			if( ! ci.tested.get(k)){
+				this.testVisibility(chrom, ci, k, Math.min(ci.size, k + BATCH_SIZE) - 1);
+			}
+			int untested= ci.tested.nextClearBit(k);
+			int next= ci.visible.nextSetBit(k);
+			if(next >= 0 && next < untested){
+				return this.getFeature(chrom, ci, next);
+			}
+			k= untested;
+		}
+		return null;
+	}
+
+	/** Feature on chrom ending before pos and passing the track filters, or null. If more
+	 * than one, return the one starting last.
+	 * */
+	protected IntervalFeature previous(String chrom, int pos) throws IOException, InvalidGenomicCoordsException{
+		ChromIndex ci= this.getChromIndex(chrom);
+		// Features ending before pos also start before pos
+		for(int k= ci.firstStartAfter(pos - 1) - 1; k >= 0; k--){
+			if(ci.ends[k] >= pos){
+				continue;
+			}
+			if( ! this.track.hasVisibilityFilter()){
+				return this.getFeature(chrom, ci, k);
+			}
+			if( ! ci.tested.get(k)){
+				this.testVisibility(chrom, ci, Math.max(0, k - BATCH_SIZE + 1), k);
+			}
+			if(ci.visible.get(k)){
+				return this.getFeature(chrom, ci, k);
+			}
+		}
+		return null;
+	}
+
+	/** Forget which features pass the filters. To be called when the filters change.
+	 * */
+	protected void clearVisibility(){
+		for(ChromIndex ci : this.chroms.values()){
+			ci.tested.clear();
+			ci.visible.clear();
+		}
+	}
+
+	/** Remove everything. To be called when the file changes.
+	 * */
+	protected void clear(){
+		this.chroms.clear();
+	}
+
+	private ChromIndex getChromIndex(String chrom) throws IOException, InvalidGenomicCoordsException{
+		ChromIndex ci= this.chroms.get(chrom);
+		if(ci != null){
+			return ci;
+		}
+		ci= new ChromIndex();
+		TabixBigBedIterator iter= this.track.getReader().query(chrom, 0, Integer.MAX_VALUE);
+		String line;
+		while((line= iter.next()) != null){
+			IntervalFeature x= this.track.parseFeature(line);
+			ci.add(x.getFrom(), x.getTo());
+		}
+		this.chroms.put(chrom, ci);
+		return ci;
+	}
+
+	/** Read features from index first to last, both included, and test whether they pass the
+	 * filters. Features starting at the same position as the last one are tested too.
+	 * */
+	private void testVisibility(String chrom, ChromIndex ci, int first, int last) throws IOException, InvalidGenomicCoordsException{
+		while(last + 1 < ci.size && ci.starts[last + 1] == ci.starts[last]){
+			last++;
+		}
+		List<IntervalFeature> batch= this.readFeatures(chrom, ci.starts[first], ci.starts[last]);
+		List<IntervalFeature> passed= new ArrayList<IntervalFeature>(batch);
+		this.track.removeInvisibleFeatures(passed);
+
+		// Features come in the same order as in the index. Match them by coordinates in case
+		// some are not returned by the query, like features of length zero.
+		int k= first;
+		int p= 0;
+		for(IntervalFeature x : batch){
+			while(k <= last && (ci.starts[k] != x.getFrom() || ci.ends[k] != x.getTo())){
+				ci.tested.set(k);
+				k++;
+			}
+			if(k > last){
+				break;
+			}
+			boolean isVisible= p < passed.size() && passed.get(p) == x;
+			if(isVisible){
+				p++;
+			}
+			ci.tested.set(k);
+			ci.visible.set(k, isVisible);
+			k++;
+		}
+		ci.tested.set(first, last + 1);
+	}
+
+	/** Features starting between from and to, both included, in file order. */
+	private List<IntervalFeature> readFeatures(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
+		List<IntervalFeature> features= new ArrayList<IntervalFeature>();
+		TabixBigBedIterator iter= this.track.getReader().query(chrom, Math.max(0, from - 1), to);
+		String line;
+		while((line= iter.next()) != null){
+			IntervalFeature x= this.track.parseFeature(line);
+			if(x.getFrom() >= from && x.getFrom() <= to){
+				features.add(x);
+			}
+		}
+		return features;
+	}
+
+	/** Read from file the k-th feature of this chromosome. */
+	private IntervalFeature getFeature(String chrom, ChromIndex ci, int k) throws IOException, InvalidGenomicCoordsException{
+		int start= ci.starts[k];
+		int nth= k - ci.firstStartAfter(start - 1); // Features before this one with the same start
+		for(IntervalFeature x : this.readFeatures(chrom, start, start)){
+			if(nth == 0){
+				return x;
+			}
+			nth--;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,213 @@
+package tracks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import exceptions.UpdateCancelledException;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.util.RuntimeIOException;
+import samTextViewer.Utils;
+
+/** Iterate through sam records returning only those passing the filters in FeatureFilter:
+ * sam flags and mapq, variant reads, grep and awk. Records are read only once from the
+ * underlying iterator. Since awk is expensive to start, records passing all the other
+ * filters are sent to awk in batches of at most AWK_BATCH_SIZE.
+ * Use next() until it returns null, same as TabixBigBedIterator.
+ * */
+class FilteredSamIterator {
+
+	/** Max number of records held in memory waiting for the awk filter */
+	protected static final int AWK_BATCH_SIZE= 20000;
+
+	private Iterator<SAMRecord> sam;
+	private FeatureFilter featureFilter;
+	private AggregateFilter aggregateFilter;
+	private boolean hasAwk;
+	private boolean hasGrep;
+	private boolean hasVariantFilter;
+	/** Records that passed all filters and are ready to be returned */
+	private Deque<SAMRecord> passed= new ArrayDeque<SAMRecord>();
+	/** Stop with UpdateCancelledException if track updates are cancelled */
+	private boolean cancellable= true;
+
+	protected FilteredSamIterator(Iterator<SAMRecord> sam, FeatureFilter featureFilter){
+		this.sam= sam;
+		this.featureFilter= featureFilter;
+		this.aggregateFilter= new AggregateFilter(featureFilter.getSamRecordFilter());
+		this.hasAwk= featureFilter.getAwk() != null && ! featureFilter.getAwk().equals(Filter.DEFAULT_AWK.getValue());
+		this.hasGrep= ! featureFilter.getShowRegex().pattern().equals(Filter.DEFAULT_SHOW_REGEX.getValue()) ||
+				      ! featureFilter.getHideRegex().pattern().equals(Filter.DEFAULT_HIDE_REGEX.getValue());
+		this.hasVariantFilter= ! featureFilter.getVariantChrom().equals(Filter.DEFAULT_VARIANT_CHROM.getValue());
+	}
+
+	/** Return the next record passing all filters or null if there are no more records.
+	 * */
+	protected SAMRecord next() throws IOException{
+		try{
+			while(this.passed.isEmpty() && this.sam.hasNext()){
+				this.fillBatch();
+			}
+		} catch(RuntimeIOException e){
+			// Iterators can only throw unchecked exceptions
+			if(e.getCause() instanceof UpdateCancelledException){
+				throw (UpdateCancelledException) e.getCause();
+			}
+			throw e;
+		}
+		return this.passed.pollFirst();
+	}
+
+	/** Set to false for iterators not reading data for a track update, so that they
+	 * are not affected by Track.setUpdatesCancelled(). Default is true.
+	 * */
+	protected void setCancellable(boolean cancellable){
+		this.cancellable= cancellable;
+	}
+
+	/** Read records from the underlying iterator until one passes the filters or, if awk is set,
+	 * until a batch of records is ready to be sent to awk.
+	 * */
+	private void fillBatch() throws IOException{
+		List<SAMRecord> batch= new ArrayList<SAMRecord>();
+		List<String> awkDataInput= new ArrayList<String>();
+		while(this.sam.hasNext() && batch.size() < AWK_BATCH_SIZE){
+			if(this.cancellable){
+				Track.checkCancelled();
+			}
+			SAMRecord rec= this.sam.next();
+			String raw= this.passFilters(rec);
+			if(raw == null){
+				continue;
+			}
+			if( ! this.hasAwk){
+				this.passed.add(rec);
+				return;
+			}
+			batch.add(rec);
+			awkDataInput.add(raw.isEmpty() ? rec.getSAMString().trim() : raw);
+		}
+		if(batch.size() == 0){
+			return;
+		}
+		boolean[] awkResults= Utils.passAwkFilter(awkDataInput.toArray(new String[awkDataInput.size()]), this.featureFilter.getAwk());
+		for(int i= 0; i < batch.size(); i++){
+			if(awkResults[i]){
+				this.passed.add(batch.get(i));
+			}
+		}
+	}
+
+	/** Apply all filters except awk. Return null if the record does not pass, otherwise the raw
+	 * sam string if it has been computed for grep or an empty string if not.
+	 * */
+	private String passFilters(SAMRecord rec){
+		if(rec.getReadUnmappedFlag() ||
+		   this.aggregateFilter.filterOut(rec) ||
+		   rec.getAlignmentEnd() < rec.getAlignmentStart()){
+			return null;
+		}
+		// Filter for variant reads: Do it only if there is an intersection between variant interval and current genomic window
+		if(this.hasVariantFilter && ! this.isSNVRead(rec, this.featureFilter.isVariantOnly())){
+			return null;
+		}
+		if( ! this.hasGrep){
+			return "";
+		}
+		String raw= rec.getSAMString().trim();
+		boolean showIt= this.featureFilter.getShowRegex().matcher(raw).find();
+		boolean hideIt= this.featureFilter.getHideRegex().matcher(raw).find();
+		if(!showIt || hideIt){
+			return null;
+		}
+		return raw;
+	}
+
+	/**Return true if samrecord contains a mismatch or insertion/deletion in the target region.
+	 * */
+	private boolean isSNVRead(SAMRecord rec, boolean variantOnly) {
+		boolean passed= false;
+
+		int varFrom= this.featureFilter.getVariantFrom();
+		int varTo= this.featureFilter.getVariantTo();
+
+		if(this.featureFilter.getVariantChrom().equals(rec.getReferenceName()) &&
+		        varFrom <= rec.getAlignmentEnd() &&
+		        rec.getAlignmentStart() <= varTo){
+			// Variant read filter is set and this read overlaps it.
+			if( ! variantOnly){
+				return true; // No need to check whether read is variant.
+			}
+			int readPos= 0;
+			int refPos= rec.getAlignmentStart();
+			for(CigarElement cigar : rec.getCigar().getCigarElements()){
+				if(cigar.getOperator().equals(CigarOperator.SOFT_CLIP)){
+					readPos += cigar.getLength();
+				}
+				else if(cigar.getOperator().equals(CigarOperator.M) ||
+						cigar.getOperator().equals(CigarOperator.EQ) ||
+						cigar.getOperator().equals(CigarOperator.X)){
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo && rec.getReadLength() > 0){
+							byte readBase= rec.getReadBases()[readPos];
+							byte refBase= this.featureFilter.getFaSeq()[refPos-varFrom];
+							if(readBase != refBase){
+								passed= true;
+								break;
+							}
+						}
+						readPos++;
+						refPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.DELETION)){ // Consumes ref base, not read base
+					// REF  ACTGTTTTACTG
+					// READ   TG----AC
+					//          ^^^^
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo){
+							passed= true;
+							break;
+						}
+						refPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.INSERTION)){ // Consumes read, not ref
+					//  REF ACTG----ACTG
+					// READ   TGttttAC
+					//         ^
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo){
+							passed= true;
+							break;
+						}
+						readPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.HARD_CLIP)){
+					//
+				}
+				else if(cigar.getOperator().equals(CigarOperator.SKIPPED_REGION)){ // Same deletion but it's not a mismatch
+					refPos += cigar.getLength();
+				}
+				else if(cigar.getOperator().equals(CigarOperator.PADDING)){
+					// Not sure what to do with this...
+				}
+				if(passed){
+					break;
+				}
+			}
+		}
+		else {
+			// Variant read filter is set and this read does not overlap it.
+			passed= false;
+		}
+		return passed;
+	}
+}
@@ -0,0 +1,306 @@
+package tracks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import exceptions.InvalidGenomicCoordsException;
+
+/** Index of the text of a track to make the find command fast when the query is a plain
+ * string. The file is split in bins of consecutive lines and, for each trigram of letters,
+ * digits and underscore, the index stores the bins containing it, case insensitive.
+ * A line can match a string only if its bin contains all the trigrams of the string so only
+ * these bins need to be read. Regular expressions and strings too short to have a trigram
+ * are not indexable and require reading the whole file.
+ *
+ * The index is built with one pass through the file. If the work file is a copy made by
+ * ASCIIGenome, the index is saved next to it and reused as long as the work file does not
+ * change. If the copy is kept in the cache across sessions, see DerivedFileCache, so is the
+ * index.
+ * */
+class FindIndex {
+
+	private static final int VERSION= 1;
+	/** Approximate number of lines in a bin */
+	protected static final int LINES_PER_BIN= 1024;
+	/** Characters that are part of trigrams, i.e. a-z, 0-9, _ */
+	private static final int N_CHARS= 37;
+	/** Give up building the index if it takes more than this memory */
+	private static final long MAX_BYTES= Runtime.getRuntime().maxMemory() / 16;
+	private static final String SUFFIX= ".find";
+	private static final String REGEX_META= "\\^$.|?*+()[]{}";
+
+	/** For each bin: chromosome and range of start positions of the lines in it. A position is
+	 * never split between bins so the lines of a bin are those starting in this range. */
+	private List<String> binChrom= new ArrayList<String>();
+	private List<Integer> binFrom= new ArrayList<Integer>();
+	private List<Integer> binTo= new ArrayList<Integer>();
+	/** Bins containing each trigram or null if not present at all */
+	private BitSet[] trigrams= new BitSet[N_CHARS * N_CHARS * N_CHARS];
+
+	/*   C O N S T R U C T O R   */
+
+	private FindIndex(){
+
+	}
+
+	/*  M E T H O D S  */
+
+	/** Index for this track, read from file if saved before or built from the track's file
+	 * otherwise. Return null if the index would take too much memory.
+	 * */
+	protected static FindIndex open(TrackIntervalFeature track) throws IOException, InvalidGenomicCoordsException{
+		File indexFile= getIndexFile(track);
+		File workFile= new File(track.getWorkFilename());
+		if(indexFile != null && indexFile.exists() && indexFile.lastModified() >= workFile.lastModified()){
+			try{
+				return read(indexFile);
+			} catch(IOException e){
+				// Invalid or incomplete file: Build again
+			}
+		}
+		FindIndex index= build(track);
+		if(index != null && indexFile != null){
+			boolean cached= DerivedFileCache.isCached(workFile);
+			if( ! cached){
+				indexFile.deleteOnExit();
+			}
+			try{
+				index.write(indexFile);
+			} catch(IOException e){
+				indexFile.delete();
+			}
+			if(cached){
+				// The index adds to the size of the cache
+				DerivedFileCache.trim();
+			}
+		}
+		return index;
+	}
+
+	/** Delete the index saved for this track, if any. To be called when the work file changes.
+	 * */
+	protected static void delete(TrackIntervalFeature track){
+		File indexFile= getIndexFile(track);
+		if(indexFile != null){
+			indexFile.delete();
+		}
+	}
+
+	/** Index file for this track or null if the index should not be saved, i.e. if the work file
+	 * is the user's file.
+	 * */
+	private static File getIndexFile(TrackIntervalFeature track){
+		if(track.getWorkFilename() == null || 
+		   new File(track.getWorkFilename()).getAbsolutePath().equals(new File(track.getFilename()).getAbsolutePath())){
+			return null;
+		}
+		return new File(track.getWorkFilename() + SUFFIX);
+	}
+
+	private static FindIndex build(TrackIntervalFeature track) throws IOException, InvalidGenomicCoordsException{
+		FindIndex index= new FindIndex();
+		TabixBigBedReader reader= track.getReader();
+		int nTrigrams= 0;
+		for(String chrom : reader.getChromosomes()){
+			TabixBigBedIterator iter= reader.query(chrom, 0, Integer.MAX_VALUE);
+			int nLines= 0;
+			int bin= -1;
+			String line;
+			while((line= iter.next()) != null){
+				int from= track.parseFeature(line).getFrom();
+				if(bin < 0 || (nLines >= LINES_PER_BIN && from != index.binTo.get(bin))){
+					// Start new bin
+					index.binChrom.add(chrom);
+					index.binFrom.add(from);
+					index.binTo.add(from);
+					bin= index.binChrom.size() - 1;
+					nLines= 0;
+					if((long)nTrigrams * (bin / 8 + 8) > MAX_BYTES){
+						return null;
+					}
+				}
+				index.binTo.set(bin, from);
+				nLines++;
+				int a= -1;
+				int b= -1;
+				for(int i= 0; i < line.length(); i++){
+					int c= charIdx(line.charAt(i));
+					if(a >= 0 && b >= 0 && c >= 0){
+						int id= a * N_CHARS * N_CHARS + b * N_CHARS + c;
+						if(index.trigrams[id] == null){
+							index.trigrams[id]= new BitSet();
+							nTrigrams++;
+						}
+						index.trigrams[id].set(bin);
+					}
+					a= b;
+					b= c;
+				}
+			}
+		}
+		return index;
+	}
+
+	/** True if the index can find the matches of this pattern. If false, all the lines need to
+	 * be searched.
+	 * */
+	protected static boolean isIndexable(Pattern pattern){
+		String literal= getLiteral(pattern);
+		return literal != null && trigramsOf(literal).length > 0;
+	}
+
+	/** Bins that may contain a match for this pattern. The pattern must be indexable.
+	 * */
+	protected BitSet candidateBins(Pattern pattern){
+		int[] ids= trigramsOf(getLiteral(pattern));
+		BitSet bins= new BitSet();
+		bins.set(0, this.binChrom.size());
+		for(int id : ids){
+			if(this.trigrams[id] == null){
+				return new BitSet();
+			}
+			bins.and(this.trigrams[id]);
+		}
+		return bins;
+	}
+
+	/** Bins among candidates on this chromosome and with lines starting after pos, in file order.
+	 * */
+	protected List<Integer> binsOnChrom(String chrom, BitSet candidates, int pos){
+		List<Integer> bins= new ArrayList<Integer>();
+		for(int bin= candidates.nextSetBit(0); bin >= 0; bin= candidates.nextSetBit(bin + 1)){
+			if(this.binChrom.get(bin).equals(chrom) && this.binTo.get(bin) > pos){
+				bins.add(bin);
+			}
+		}
+		return bins;
+	}
+
+	/** Lines of this bin matching the pattern, in file order. */
+	protected List<IntervalFeature> findInBin(TrackIntervalFeature track, int bin, Pattern pattern) throws IOException, InvalidGenomicCoordsException{
+		List<IntervalFeature> matched= new ArrayList<IntervalFeature>();
+		int from= this.binFrom.get(bin);
+		int to= this.binTo.get(bin);
+		TabixBigBedIterator iter= track.getReader().query(this.binChrom.get(bin), Math.max(0, from - 1), to);
+		String line;
+		while((line= iter.next()) != null){
+			if( ! pattern.matcher(line).find()){
+				continue;
+			}
+			IntervalFeature x= track.parseFeature(line);
+			if(x.getFrom() >= from && x.getFrom() <= to){
+				matched.add(x);
+			}
+		}
+		return matched;
+	}
+
+	/** The string matched by this pattern if the pattern is a plain string, null otherwise. */
+	private static String getLiteral(Pattern pattern){
+		if((pattern.flags() & Pattern.LITERAL) != 0){
+			return pattern.pattern();
+		}
+		for(char c : pattern.pattern().toCharArray()){
+			if(REGEX_META.indexOf(c) >= 0){
+				return null;
+			}
+		}
+		return pattern.pattern();
+	}
+
+	/** Distinct trigram ids in this string ignoring case. */
+	private static int[] trigramsOf(String x){
+		BitSet seen= new BitSet();
+		int a= -1;
+		int b= -1;
+		for(int i= 0; i < x.length(); i++){
+			int c= charIdx(x.charAt(i));
+			if(a >= 0 && b >= 0 && c >= 0){
+				seen.set(a * N_CHARS * N_CHARS + b * N_CHARS + c);
+			}
+			a= b;
+			b= c;
+		}
+		return seen.stream().toArray();
+	}
+
+	private static int charIdx(char c){
+		if(c >= 'a' && c <= 'z'){
+			return c - 'a';
+		}
+		if(c >= 'A' && c <= 'Z'){
+			return c - 'A';
+		}
+		if(c >= '0' && c <= '9'){
+			return 26 + c - '0';
+		}
+		if(c == '_'){
+			return 36;
+		}
+		return -1;
+	}
+
+	private void write(File file) throws IOException{
+		DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try{
+			out.writeInt(VERSION);
+			out.writeInt(this.binChrom.size());
+			for(int i= 0; i < this.binChrom.size(); i++){
+				out.writeUTF(this.binChrom.get(i));
+				out.writeInt(this.binFrom.get(i));
+				out.writeInt(this.binTo.get(i));
+			}
+			for(int id= 0; id < this.trigrams.length; id++){
+				if(this.trigrams[id] == null){
+					continue;
+				}
+				long[] words= this.trigrams[id].toLongArray();
+				out.writeInt(id);
+				out.writeInt(words.length);
+				for(long w : words){
+					out.writeLong(w);
+				}
+			}
+			out.writeInt(-1);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static FindIndex read(File file) throws IOException{
+		DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			if(in.readInt() != VERSION){
+				throw new IOException("Unexpected version of index file " + file);
+			}
+			FindIndex index= new FindIndex();
+			int nBins= in.readInt();
+			for(int i= 0; i < nBins; i++){
+				index.binChrom.add(in.readUTF());
+				index.binFrom.add(in.readInt());
+				index.binTo.add(in.readInt());
+			}
+			int id;
+			while((id= in.readInt()) != -1){
+				long[] words= new long[in.readInt()];
+				for(int i= 0; i < words.length; i++){
+					words[i]= in.readLong();
+				}
+				index.trigrams[id]= BitSet.valueOf(words);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -14,17 +14,8 @@ public class FormatGTF {
 	private static final Set<String> txSuperFeatures= new LinkedHashSet<String>();
 	private static final Set<String> txSubFeatures= new LinkedHashSet<String>();
 	
-	/* C O N S T R U C T O R */
-	
-	public FormatGTF(){
-
-		
-	}
-
-	/* G E T T E R S */
-	
-	public static HashMap<Character, HashMap<String, Character>> getFeatureToTextCharDict(){
-		
+	// Filled once here since these maps are read by tracks updated in parallel
+	static {
 		/* Map GTF features to characters. Forward capital LETTERS, reverse small letters  
 		 * Feature names are case insensitive */
 		HashMap<String, Character> fwdFeature= new HashMap<String, Character>();
@@ -62,7 +53,45 @@ public class FormatGTF {
 		featureToTextCharDict.put('+', fwdFeature);
 		featureToTextCharDict.put('-', revFeature);
 		featureToTextCharDict.put('.', unstrFeature);
+	}
+
+	static {
+		// Features that define a record as a transcript:
+		// Manually extracted from ensembl Homo_sapiens.GRCh38.86.chromosome.7.gff3.gz  
+		txSuperFeatures.add("mrna");
+		txSuperFeatures.add("transcript");
+		txSuperFeatures.add("processed_transcript");
+		txSuperFeatures.add("aberrant_processed_transcript");
+		txSuperFeatures.add("NMD_transcript_variant");
+		txSuperFeatures.add("pseudogenic_transcript");
+		txSuperFeatures.add("lincrna");
+	}
+
+	static {
+		// Features that make part of a transcript.
+		// Order matters: Put first the features that should be overwritten on screen by later features. 
+		txSubFeatures.add("intron");
+		txSubFeatures.add("exon");
+		txSubFeatures.add("utr");
+		txSubFeatures.add("5utr");
+		txSubFeatures.add("five_prime_utr");
+		txSubFeatures.add("3utr");
+		txSubFeatures.add("three_prime_utr");
+		txSubFeatures.add("cds");
+		txSubFeatures.add("start_codon");
+		txSubFeatures.add("stop_codon");
+	}
+
+	/* C O N S T R U C T O R */
+	
+	public FormatGTF(){
+
 		
+	}
+
+	/* G E T T E R S */
+	
+	public static HashMap<Character, HashMap<String, Character>> getFeatureToTextCharDict(){
 		return featureToTextCharDict; 
 	}
 	
@@ -111,35 +140,10 @@ public class FormatGTF {
 //	}
 
 	protected static Set<String> getTxSuperFeatures() {
-
-		// Features that define a record as a transcript:
-		// Manually extracted from ensembl Homo_sapiens.GRCh38.86.chromosome.7.gff3.gz  
-		txSuperFeatures.add("mrna");
-		txSuperFeatures.add("transcript");
-		txSuperFeatures.add("processed_transcript");
-		txSuperFeatures.add("aberrant_processed_transcript");
-		txSuperFeatures.add("NMD_transcript_variant");
-		txSuperFeatures.add("pseudogenic_transcript");
-		txSuperFeatures.add("lincrna");
-
 		return txSuperFeatures;
 	}
 
 	protected static Set<String> getTxSubFeatures() {
-		
-		// Features that make part of a transcript.
-		// Order matters: Put first the features that should be overwritten on screen by later features. 
-		txSubFeatures.add("intron");
-		txSubFeatures.add("exon");
-		txSubFeatures.add("utr");
-		txSubFeatures.add("5utr");
-		txSubFeatures.add("five_prime_utr");
-		txSubFeatures.add("3utr");
-		txSubFeatures.add("three_prime_utr");
-		txSubFeatures.add("cds");
-		txSubFeatures.add("start_codon");
-		txSubFeatures.add("stop_codon");
-		
 		return txSubFeatures;
 	}
 }
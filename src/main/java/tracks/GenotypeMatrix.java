@@ -26,10 +26,12 @@ import exceptions.InvalidGenomicCoordsException;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFormatHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFHeaderLineType;
 import htsjdk.variant.vcf.VCFInfoHeaderLine;
+import samTextViewer.Utils;
 
 class GenotypeMatrix {
 
@@ -50,6 +52,12 @@ class GenotypeMatrix {
 	                             // The engine maybe called 1000s of times. So if created only once.
 	private final Set<String> genotypes= new HashSet<String>();
 	
+	/** Codec decoding VCF lines cut down to the samples in sampleCodecSamples. 
+	 * Kept across calls to makeMatrix() since the selected samples rarely change. */
+	private VCFCodec sampleCodec;
+	private VCFHeader sampleCodecHeader;
+	private List<String> sampleCodecSamples;
+	
 	
     protected GenotypeMatrix() {
     	this.subSampleRegex.put("pattern", "$^"); // Default pattern-replacement to match nothing
@@ -78,36 +86,51 @@ class GenotypeMatrix {
     		return;
     	}
 
-    	Map<VariantContext, String> vcfRecordWithScript= new HashMap<VariantContext, String>();
-		if(vcfHeader != null && this.getJsScriptFilter() != null &&  ! this.getJsScriptFilter().trim().isEmpty()){
-	    	// We assign to each VCF record the JS script formatted with the fields that
-			// do not change across samples, so we do the formatting only once.
-	    	for(IntervalFeature ctx : variantList){
-	    		String js= this.formatJsScriptWithFixedFields(this.getJsScriptFilter(), ctx.getVariantContext());
-	    		js= this.formatJsScriptWithInfo(js, ctx.getVariantContext(), vcfHeader);
-	    		vcfRecordWithScript.put(ctx.getVariantContext(), js);
-	    	}
-		}
+    	boolean hasJsFilter= vcfHeader != null && this.getJsScriptFilter() != null &&  ! this.getJsScriptFilter().trim().isEmpty();
+    	
 		List<String> samples= new ArrayList<String>();
 		if(vcfHeader != null){
 			samples= vcfHeader.getGenotypeSamples(); 
 		} else {
 			samples= variantList.get(0).getVariantContext().getSampleNamesOrderedByName();
 		}
+		// Only the samples that may be shown are decoded. With a javascript filter
+		// we cannot tell in advance which samples will pass, so take all those matching the regex
+		Pattern selectSample= Pattern.compile(this.getSelectSampleRegex());
+		List<String> selected= new ArrayList<String>();
+		for(String sampleName : samples){
+    		if( ! hasJsFilter && selected.size() >= this.getnMaxSamples() && this.getnMaxSamples() >= 0){
+    			break;
+    		}
+    		if(selectSample.matcher(sampleName).find()){
+    			selected.add(sampleName);
+    		}
+		}
+		if(selected.size() == 0){
+			// Nothing to show, e.g. zero samples requested or no sample matching the regex
+			return;
+		}
+		List<VariantContext> variantContexts= this.decodeSamples(variantList, selected, vcfHeader);
+		
+    	Map<VariantContext, String> vcfRecordWithScript= new HashMap<VariantContext, String>();
+		if(hasJsFilter){
+	    	// We assign to each VCF record the JS script formatted with the fields that
+			// do not change across samples, so we do the formatting only once.
+	    	for(VariantContext ctx : variantContexts){
+	    		String js= this.formatJsScriptWithFixedFields(this.getJsScriptFilter(), ctx);
+	    		js= this.formatJsScriptWithInfo(js, ctx, vcfHeader);
+	    		vcfRecordWithScript.put(ctx, js);
+	    	}
+		}
     	int n= 0;
-        for(String sampleName : samples){
+        for(String sampleName : selected){
 
     		if(n >= this.getnMaxSamples() && this.getnMaxSamples() >= 0){
     			break;
     		}
         	
-    		boolean matched= Pattern.compile(this.getSelectSampleRegex()).matcher(sampleName).find();
-    		if( ! matched){
-    			continue;
-			}
-    		
     		boolean keep= true;
-    		if(vcfHeader != null && this.getJsScriptFilter() != null &&  ! this.getJsScriptFilter().trim().isEmpty()){
+    		if(hasJsFilter && this.getJsScriptFilter() != null){ // Filter is reset if invalid
     			keep= this.isPassedFilter(vcfRecordWithScript, sampleName, vcfHeader);
         		if( ! keep ){
         			continue;
@@ -121,12 +144,12 @@ class GenotypeMatrix {
         		genotypeRow.add(na); // Initialise row. Potentially there is one genotype per screen column.
         	}
         	
-        	for(IntervalFeature variant : variantList){
-        		int col= variant.getScreenMid();
+        	for(int i= 0; i < variantList.size(); i++){
+        		int col= variantList.get(i).getScreenMid();
         		if(col < 0){
         			continue;
         		}
-                Genotype gt= variant.getVariantContext().getGenotype(sampleName);
+                Genotype gt= variantContexts.get(i).getGenotype(sampleName);
                 FeatureChar fmtGt= new FeatureChar();
                 fmtGt.addFormatGenotype(gt);
                 if(genotypeRow.get(col).getText() == '*'){
@@ -146,6 +169,35 @@ class GenotypeMatrix {
         }
     }
     
+    /** Return the variant context of each variant with the genotypes of only the given samples.
+     * Files like those from the 1000 Genomes project have thousands of samples and decoding 
+     * all of them for each variant is much slower than decoding the few to be shown.
+     * */
+    private List<VariantContext> decodeSamples(List<IntervalFeature> variantList, List<String> samples, VCFHeader vcfHeader){
+    	
+    	List<VariantContext> variantContexts= new ArrayList<VariantContext>();
+    	if(vcfHeader == null || samples.size() == vcfHeader.getNGenotypeSamples()){
+    		for(IntervalFeature variant : variantList){
+    			variantContexts.add(variant.getVariantContext());
+    		}
+    		return variantContexts;
+    	}
+    	if(this.sampleCodec == null || this.sampleCodecHeader != vcfHeader || ! this.sampleCodecSamples.equals(samples)){
+    		this.sampleCodec= new VCFCodec();
+    		this.sampleCodec.setVCFHeader(new VCFHeader(vcfHeader.getMetaDataInInputOrder(), samples), Utils.getVCFHeaderVersion(vcfHeader));
+    		this.sampleCodecHeader= vcfHeader;
+    		this.sampleCodecSamples= new ArrayList<String>(samples);
+    	}
+    	int[] sampleIdx= new int[samples.size()];
+    	for(int i= 0; i < samples.size(); i++){
+    		sampleIdx[i]= vcfHeader.getSampleNameToOffset().get(samples.get(i));
+    	}
+    	for(IntervalFeature variant : variantList){
+    		variantContexts.add(variant.getVariantContext(this.sampleCodec, sampleIdx));
+    	}
+    	return variantContexts;
+    }
+    
     /** Parse sampleNames to remove redundant substring(s)
      * */
     private List<String> cleanSampleNames(List<String> sampleNames) {
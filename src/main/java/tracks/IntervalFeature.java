@@ -8,14 +8,12 @@ import org.apache.commons.lang3.math.NumberUtils;
 import org.biojava.nbio.genome.parsers.gff.Feature;
 import org.biojava.nbio.genome.parsers.gff.Location;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
-
 import exceptions.InvalidColourException;
 import exceptions.InvalidGenomicCoordsException;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
+import samTextViewer.ScreenMapper;
 import samTextViewer.Utils;
 
 /**
@@ -38,11 +36,22 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	private String feature= "."; // Gtf specific
 
 	private String raw; // Raw input string exactly as read from source.
+	/** Line as passed to the constructor. Columns are read from here */
+	private String line;
+	/** Index in line of each tab separating the columns */
+	private int[] tabs;
+	/** False if the columns other than chrom, from and to are still to be read from line */
+	private boolean decoded= true;
+	private VCFCodec vcfCodec;
 	private TrackFormat trackFormat= TrackFormat.BED;
 	/** Name to be displayed to the user */
 	private String name= ".";
 	/** Use this attribute to as key to assign the name field */
 	private String gtfAttributeForName= null;
+	/** Name read from the gtf attributes by getName(), to avoid parsing the attributes at
+	 * each call. Reset when the name or the attribute to use change. */
+	private String gtfName= null;
+	private boolean hasGtfName= false;
 	private int bedFieldName= 3; // Column index for feature name **0-based**
 	/** Start position of feature in screen coordinates. -1 if the feature is not part of the screenshot. 
 	 * screenFrom/To are both 0-based. So a feature that occupies one character only (e.g. a SNP) 
@@ -62,6 +71,9 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	/**
 	 * Create an IntervalFeature from a String. Typically this is a line read from file.
 	 * vcfHeader can be null if trackformat is not VCF.
+	 * Only chrom, from and to are parsed here. The other columns, and for VCF the 
+	 * VariantContext, are parsed when first needed since most features read from 
+	 * file are filtered out or never shown.
 	 */
 	public IntervalFeature(String line, TrackFormat format, VCFCodec vcfCodec, int scoreColIdx) throws InvalidGenomicCoordsException{
 
@@ -78,21 +90,20 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		if(format.equals(TrackFormat.BED) || 
 				format.equals(TrackFormat.BEDGRAPH) || 
 				format.equals(TrackFormat.BIGBED)){
-			this.intervalFeatureFromBedLine(line, this.scoreColIdx);
+			this.setLine(line);
+			this.intervalFeatureFromBedLine();
 			this.trackFormat= TrackFormat.BED;
 		
 		} else if(format.equals(TrackFormat.GFF) || format.equals(TrackFormat.GTF)){
-			this.intervalFeatureFromGtfLine(line);
+			this.setLine(line);
+			this.intervalFeatureFromGtfLine();
 			this.trackFormat= TrackFormat.GFF;
 					
 		} else if(format.equals(TrackFormat.VCF)) {
-			this.variantContext= vcfCodec.decode(line);
-			this.setRaw(line);
+			this.setLine(line);
+			this.vcfCodec= vcfCodec;
 			this.trackFormat= TrackFormat.VCF;
-			this.chrom= this.variantContext.getContig();
-			this.from= this.setFromForVCF();
-			this.to= this.setToForVCF();
-			this.name= this.variantContext.getID();
+			this.intervalFeatureFromVcfLine();
 
 		} else {
 			System.err.println("Format " + format + " not supported");
@@ -100,42 +111,52 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		}
 	}
 
-	private int setFromForVCF() {
-		int from= this.variantContext.getStart();
-		this.setToForVCF();
-		return from;
-	}
-
 	private int setToForVCF() {
-		if(this.variantContext.getAlleles().size() > 2){ // Multiallelic
-			return this.variantContext.getEnd();
+		VariantContext variantContext= this.getVariantContext();
+		if(variantContext.getAlleles().size() > 2){ // Multiallelic
+			return variantContext.getEnd();
 		}
-		else if(this.variantContext.isSNP()){
-			return this.variantContext.getStart();
+		else if(variantContext.isSNP()){
+			return variantContext.getStart();
 		}
-		else if(this.variantContext.isSimpleInsertion()){
-			int alt_len= this.variantContext.getAlleles().get(1).length();
-			return this.variantContext.getStart() + alt_len - 1;
+		else if(variantContext.isSimpleInsertion()){
+			int alt_len= variantContext.getAlleles().get(1).length();
+			return variantContext.getStart() + alt_len - 1;
 		}
-		else if(this.variantContext.isSimpleDeletion() || this.variantContext.isMNP()){
-			int ref_len= this.variantContext.getAlleles().get(0).length();
-			return this.variantContext.getStart() + ref_len - 1;
+		else if(variantContext.isSimpleDeletion() || variantContext.isMNP()){
+			int ref_len= variantContext.getAlleles().get(0).length();
+			return variantContext.getStart() + ref_len - 1;
 		} 
-		else if(this.variantContext.isComplexIndel()){
-			int ref_len= this.variantContext.getAlleles().get(0).length();
-			int alt_len= this.variantContext.getAlleles().get(1).length();
+		else if(variantContext.isComplexIndel()){
+			int ref_len= variantContext.getAlleles().get(0).length();
+			int alt_len= variantContext.getAlleles().get(1).length();
 			if(ref_len > alt_len){ // Similar to a deletion
-				return this.variantContext.getStart() + ref_len - 1;	
+				return variantContext.getStart() + ref_len - 1;	
 			} else {
 				// Similar to an insertion
-				return this.variantContext.getStart() + alt_len - 1;	
+				return variantContext.getStart() + alt_len - 1;	
 			}
 		}
 		else {
-			return this.variantContext.getEnd();
+			return variantContext.getEnd();
 		}
 	}
 
+	/** True if the allele is made only of bases, so that it is neither missing, 
+	 * symbolic nor multiallelic. */
+	private static boolean isPlainAllele(String allele){
+		if(allele.isEmpty()){
+			return false;
+		}
+		for(int i= 0; i < allele.length(); i++){
+			char c= allele.charAt(i);
+			if(c != 'A' && c != 'C' && c != 'G' && c != 'T' && c != 'N'){
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public IntervalFeature(String chrom, int from, int to, TrackFormat format) throws InvalidGenomicCoordsException{
 
 		if(chrom == null || chrom.isEmpty()){
@@ -160,71 +181,140 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	
 	/* M e t h o d s */
 	
-	private IntervalFeature intervalFeatureFromBedLine (String bedLine, int scoreColIdx) throws InvalidGenomicCoordsException{
-		this.setRaw(bedLine);
-
-		List<String> bedList = Lists.newArrayList(Splitter.on("\t").split(bedLine));
-		if(bedList.size() < 3){
-			throw new RuntimeException("intervalFeatureFromBedLine: Invalid bed line:\n" + bedList);
+	private void setLine(String line){
+		this.setRaw(line);
+		this.line= line;
+		int n= 0;
+		for(int i= 0; i < line.length(); i++){
+			if(line.charAt(i) == '\t'){
+				n++;
+			}
+		}
+		this.tabs= new int[n];
+		n= 0;
+		for(int i= 0; i < line.length(); i++){
+			if(line.charAt(i) == '\t'){
+				this.tabs[n]= i;
+				n++;
+			}
 		}
-		this.chrom= bedList.get(0).trim();
-		this.from= Integer.parseInt(bedList.get(1)) + 1; // Make it 1-based
-		this.to= Integer.parseInt(bedList.get(2));
+		this.decoded= false;
+	}
+	
+	private int getColumnCount(){
+		return this.tabs.length + 1;
+	}
+	
+	/** Column i, 0-based, of the input line */
+	private String getColumn(int i){
+		if(i >= this.getColumnCount()){
+			throw new IndexOutOfBoundsException("Column " + (i + 1) + " not found in line:\n" + this.line);
+		}
+		int start= i == 0 ? 0 : this.tabs[i - 1] + 1;
+		int end= i < this.tabs.length ? this.tabs[i] : this.line.length();
+		return this.line.substring(start, end);
+	}
+	
+	private void intervalFeatureFromBedLine() throws InvalidGenomicCoordsException{
+		if(this.getColumnCount() < 3){
+			throw new RuntimeException("intervalFeatureFromBedLine: Invalid bed line:\n" + this.line);
+		}
+		this.chrom= this.getColumn(0).trim();
+		this.from= Integer.parseInt(this.getColumn(1)) + 1; // Make it 1-based
+		this.to= Integer.parseInt(this.getColumn(2));
+		this.validateIntervalFeature();
+	}
 
+	private void decodeBedColumns(){
 		if(this.bedFieldName < 0) {
 			this.name= ".";
 		}
-		else if(bedList.size() > this.bedFieldName){
-			this.name= bedList.get(this.bedFieldName);
+		else if(this.getColumnCount() > this.bedFieldName){
+			this.name= this.getColumn(this.bedFieldName);
 		}
-		scoreColIdx -= 1; // Make 0-based
-		if(bedList.size() > scoreColIdx){
-			if(NumberUtils.isCreatable(bedList.get(scoreColIdx))){ // NB: Returns false if leading or trailing spaces are present.
-				this.score= Float.valueOf(bedList.get(scoreColIdx));
+		int scoreColIdx= this.scoreColIdx - 1; // Make 0-based
+		if(this.getColumnCount() > scoreColIdx){
+			String x= this.getColumn(scoreColIdx);
+			if(NumberUtils.isCreatable(x)){ // NB: Returns false if leading or trailing spaces are present.
+				this.score= Float.valueOf(x);
 			}
 		}
-		if(bedList.size() > 5){
-			if(bedList.get(5).equals("+")){
+		if(this.getColumnCount() > 5){
+			String x= this.getColumn(5);
+			if(x.equals("+")){
 				this.strand= '+';
-			} else if(bedList.get(5).equals("-")){
+			} else if(x.equals("-")){
 				this.strand= '-';
 			} else {
 				this.strand= '.';
 			}
 		}
-		this.validateIntervalFeature();
-		return this;
 	}
 	
-	private IntervalFeature intervalFeatureFromGtfLine (String gtfLine) throws InvalidGenomicCoordsException{
+	private void intervalFeatureFromGtfLine() throws InvalidGenomicCoordsException{
 		//chr1    unknown exon    11874   12227   .       +       .       gene_id "DDX11L1"; transcript_id "NR_046018_1"; gene_name "DDX11L1"; tss_id "TSS14523";
-		this.setRaw(gtfLine);
-		List<String> gtfList = Lists.newArrayList(Splitter.on("\t").split(gtfLine));
-		this.chrom= gtfList.get(0).trim();
-		this.source= gtfList.get(1).trim();
-		this.feature= gtfList.get(2).trim();
-		this.from= Integer.parseInt(gtfList.get(3));
-		this.to= Integer.parseInt(gtfList.get(4));
+		if(this.getColumnCount() < 7){
+			throw new IndexOutOfBoundsException("intervalFeatureFromGtfLine: Invalid gtf line:\n" + this.line);
+		}
+		this.chrom= this.getColumn(0).trim();
+		this.from= Integer.parseInt(this.getColumn(3));
+		this.to= Integer.parseInt(this.getColumn(4));
+		this.validateIntervalFeature();
+	}
+
+	private void decodeGtfColumns(){
+		this.source= this.getColumn(1).trim();
+		this.feature= this.getColumn(2).trim();
 		try{
-			this.score= Float.parseFloat(gtfList.get(5));
+			this.score= Float.parseFloat(this.getColumn(5));
 		} catch (NumberFormatException e){
 			this.score= Float.NaN;
 		}
 		
 		// Strand
-		if(gtfList.get(6).trim().length() == 0){
+		String x= this.getColumn(6).trim();
+		if(x.length() == 0){
 			this.strand= '.';
 		} else {
-			char strand= gtfList.get(6).trim().charAt(0);	
+			char strand= x.charAt(0);	
 			if(strand == '+' || strand == '-'){
 				this.strand= strand;
 			} else {
 				this.strand= '.';
 			}
 		}
-		this.name= this.getNameForIdeogram(null);
-		this.validateIntervalFeature();
-		return this;
+	}
+
+	/** Set chrom, from and to without decoding the line with the VCFCodec, unless 
+	 * the alleles are not simple enough to tell the end position.
+	 * */
+	private void intervalFeatureFromVcfLine(){
+		this.chrom= this.getColumn(0);
+		this.from= Integer.parseInt(this.getColumn(1));
+		String ref= this.getColumn(3);
+		String alt= this.getColumn(4);
+		if(isPlainAllele(ref) && isPlainAllele(alt) && ! ref.equals(alt)){
+			// Biallelic SNP, MNP or indel: Same as setToForVCF()
+			this.to= this.from + Math.max(ref.length(), alt.length()) - 1;
+		} else {
+			this.to= this.setToForVCF();
+		}
+	}
+
+	/** Read from the line the columns not read by the constructor. 
+	 * */
+	private void decodeColumns(){
+		if(this.decoded){
+			return;
+		}
+		this.decoded= true;
+		if(this.trackFormat.equals(TrackFormat.BED)){
+			this.decodeBedColumns();
+		} else if(this.trackFormat.equals(TrackFormat.GFF)){
+			this.decodeGtfColumns();
+		} else if(this.trackFormat.equals(TrackFormat.VCF)){
+			this.name= this.getColumn(2); // Same as VariantContext.getID()
+		}
 	}
 	
 	/**
@@ -255,6 +345,14 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	 * width mapping genome coords to screen coords.
 	 * */
 	public void mapToScreen(List<Double> rulerMap) {
+		this.mapToScreen(new ScreenMapper(rulerMap));
+	}
+
+	/** 
+	 * Map interval to screen coordinates using the provided mapper, typically 
+	 * from GenomicCoords.getScreenMapper().
+	 * */
+	public void mapToScreen(ScreenMapper screenMapper) {
 
 		int xfrom= this.from;
 		int xto= this.to;
@@ -262,10 +360,10 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		// For INDELS where the first base of the ALT allele is the same as the REF allele,
 		// we bump the start position by 1 so that 1bp indels are shown as 1 character rather than 2.
 		if(this.trackFormat.equals(TrackFormat.VCF) &&
-			this.variantContext.getReference().getBases().length > 0 &&
-			this.variantContext.getAlleles().size() > 1 &&
-			this.variantContext.getAlleles().get(1).getBases().length > 0 &&
-			this.variantContext.getReference().getBases()[0] == this.variantContext.getAlleles().get(1).getBases()[0]){
+			this.getVariantContext().getReference().getBases().length > 0 &&
+			this.getVariantContext().getAlleles().size() > 1 &&
+			this.getVariantContext().getAlleles().get(1).getBases().length > 0 &&
+			this.getVariantContext().getReference().getBases()[0] == this.getVariantContext().getAlleles().get(1).getBases()[0]){
 			xfrom= xfrom + 1;
 			if(xfrom > xto){ // This can happen for multiallelic. See docstring this.variantContext.getEnd()
 				xto= xfrom;
@@ -274,8 +372,8 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		/*        |============| <- ruler
 		 *   ===                  ===  <- Interval(s) 
 		 */	
-		if((xfrom < rulerMap.get(0) && xto < rulerMap.get(0)) ||
-				(xfrom > rulerMap.get(rulerMap.size()-1)) && xto > rulerMap.get(rulerMap.size()-1)){
+		if((xfrom < screenMapper.getGenomePosition(0) && xto < screenMapper.getGenomePosition(0)) ||
+				(xfrom > screenMapper.getGenomePosition(screenMapper.size()-1)) && xto > screenMapper.getGenomePosition(screenMapper.size()-1)){
 			this.screenFrom= -1;
 			this.screenTo= -1;
 			return;
@@ -286,15 +384,15 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		 *        |============| <- ruler
 		 *   ===================== <- Interval 
 		 */
-		if(xfrom <= rulerMap.get(0) && this.to >= rulerMap.get(rulerMap.size()-1)){
+		if(xfrom <= screenMapper.getGenomePosition(0) && this.to >= screenMapper.getGenomePosition(screenMapper.size()-1)){
 			this.screenFrom= 0;
-			this.screenTo= rulerMap.size()-1;
+			this.screenTo= screenMapper.size()-1;
 			return;
 		}
 		
 		// Feature is all or partially contained
-		screenFrom= Utils.getIndexOfclosestValue(xfrom, rulerMap);
-		screenTo= Utils.getIndexOfclosestValue(xto, rulerMap);
+		screenFrom= screenMapper.getScreenIndex(xfrom);
+		screenTo= screenMapper.getScreenIndex(xto);
 		/*        |============|      <- ruler
 		 *   ========   ===    =====  <- Interval(s) 
 		 */	
@@ -302,7 +400,7 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 			 screenFrom= 0;
 		 }
 		 if(screenTo == -1){
-			 screenTo= rulerMap.size()-1;
+			 screenTo= screenMapper.size()-1;
 		 }
 		 if(screenFrom == -1 || screenTo == -1){
 			 System.err.println("Unexpected mapping of features to ruler.");
@@ -334,7 +432,7 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		if(x == null){
 			return false;
 		}
-		return (this.chrom.equals(x.chrom) && this.from == x.from && this.to == x.to && this.strand == x.strand);
+		return (this.chrom.equals(x.chrom) && this.from == x.from && this.to == x.to && this.getStrand() == x.getStrand());
 	}
 	
 
@@ -387,9 +485,9 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		char text;
 		// Get feature strand
 		char strand= '.'; // Default for NA
-		if(this.strand == '+'){
+		if(this.getStrand() == '+'){
 			strand= '+';
-		} else if(this.strand == '-'){
+		} else if(this.getStrand() == '-'){
 			strand= '-';
 		}
 		// Get feature type
@@ -406,23 +504,24 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 
 	private char getCharForVCFIdeogram(){
 
-		if(this.variantContext.getAlleles().size() > 2){ // Multiallelic
+		VariantContext variantContext= this.getVariantContext();
+		if(variantContext.getAlleles().size() > 2){ // Multiallelic
 			return '|';
 		}
-		else if(this.variantContext.isSNP()){
-			Allele alt = this.variantContext.getAlleles().get(1);
+		else if(variantContext.isSNP()){
+			Allele alt = variantContext.getAlleles().get(1);
 			return alt.getBaseString().charAt(0);
 		}
-		else if(this.variantContext.isSimpleInsertion()){
+		else if(variantContext.isSimpleInsertion()){
 			return 'I';
 		}
-		else if(this.variantContext.isSimpleDeletion()){
+		else if(variantContext.isSimpleDeletion()){
 			return 'D';
 		}
-		else if(this.variantContext.isMNP()){
+		else if(variantContext.isMNP()){
 			return 'M';
 		}
-		else if(this.variantContext.isComplexIndel()){
+		else if(variantContext.isComplexIndel()){
 			return 'X';
 		}
 		else {
@@ -517,6 +616,7 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	 * */
 	private String getNameForIdeogram(String attributeKey){
 
+		this.decodeColumns();
 		String xname= this.name;
 		
 		if(attributeKey == null){
@@ -609,28 +709,38 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 
 	/** Name be shown to the user */
 	public String getName() {
+		this.decodeColumns();
 		if(this.gtfAttributeForName != null && this.gtfAttributeForName.equals(this.NAME_NA)){
 			return ".";
 		}
 		if(this.name != null &&  ! this.name.equals(".") && ! this.name.isEmpty() || this.raw == null){
 			return this.name;
 		}
-		return this.getNameForIdeogram(this.gtfAttributeForName);
+		if( ! this.hasGtfName){
+			this.gtfName= this.getNameForIdeogram(this.gtfAttributeForName);
+			this.hasGtfName= true;
+		}
+		return this.gtfName;
 	}
 
 	public void setName(String name) {
+		this.decodeColumns();
 		this.name= name;
+		this.hasGtfName= false;
 	}
 	
 	public float getScore() {
+		this.decodeColumns();
 		return score;
 	}
 
 	public char getStrand() {
+		this.decodeColumns();
 		return strand;
 	}
 
 	public void setStrand(char strand) {
+		this.decodeColumns();
 		this.strand= strand;
 	}
 	
@@ -650,18 +760,22 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	
 	
 	public String getSource() {
+		this.decodeColumns();
 		return source;
 	}
 
 	public void setSource(String source) {
+		this.decodeColumns();
 		this.source = source;
 	}
 
 	public String getFeature() {
+		this.decodeColumns();
 		return feature;
 	}
 
 	public void setFeature(String feature) {
+		this.decodeColumns();
 		this.feature = feature;
 	}
 
@@ -669,16 +783,45 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		return raw;
 	}
 
+	/** For VCF features, the line is decoded on first call. */
 	protected VariantContext getVariantContext(){
+		if(this.variantContext == null && this.vcfCodec != null){
+			// The codec is shared by all the features of the track 
+			synchronized(this.vcfCodec){
+				this.variantContext= this.vcfCodec.decode(this.line);
+			}
+		}
 		return this.variantContext;
 	}
 	
+	/** VariantContext with the genotypes of only some of the samples. Unlike 
+	 * getVariantContext(), only the columns of these samples are decoded. 
+	 * @param codec Codec with a header listing only these samples, in the same order as sampleIdx.
+	 * @param sampleIdx 0-based index of each sample in the header of the file.
+	 * */
+	protected VariantContext getVariantContext(VCFCodec codec, int[] sampleIdx){
+		if(this.vcfCodec == null || this.tabs.length < 9){
+			// No genotypes
+			return this.getVariantContext();
+		}
+		// Without samples the FORMAT column must go too
+		StringBuilder sb= new StringBuilder(this.line.substring(0, this.tabs[sampleIdx.length == 0 ? 7 : 8]));
+		for(int i : sampleIdx){
+			sb.append('\t');
+			sb.append(this.getColumn(9 + i));
+		}
+		synchronized(codec){
+			return codec.decode(sb.toString());
+		}
+	}
+	
 	public String getGtfAttributeForName() {
 		return this.gtfAttributeForName;
 	}
 
 	public void setGtfAttributeForName(String gtfAttributeForName) {
 		this.gtfAttributeForName = gtfAttributeForName;
+		this.hasGtfName= false;
 	}
 		
 	@Override
@@ -696,7 +839,7 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	    i = this.to - other.to;
 		    if (i != 0) return i;
 
-		i= Character.toString(this.strand).compareTo(Character.toString(other.strand));
+		i= Character.toString(this.getStrand()).compareTo(Character.toString(other.getStrand()));
 		    if (i != 0) return i;
 		    
 		return i;
@@ -733,7 +876,11 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	}
 
 	protected void setBedFieldName(int i) throws InvalidGenomicCoordsException {
+		this.decodeColumns();
 		this.bedFieldName= i;
-		this.intervalFeatureFromBedLine(this.getRaw(), this.scoreColIdx);
+		if(this.line != null){
+			// Read the columns again, as a new feature would
+			this.decoded= false;
+		}
 	}
 }
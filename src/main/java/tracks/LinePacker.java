@@ -0,0 +1,82 @@
+package tracks;
+
+import java.util.Arrays;
+
+/** Assign intervals to lines of text so that intervals on the same line do not overlap.
+ * Intervals are processed in input order and each one goes to the first line, i.e. the
+ * topmost, where it starts after the end of the last interval on that line plus a gap.
+ * This is the same layout obtained by filling one line at a time with repeated scans of
+ * the remaining intervals, but it takes O(n log n) instead of O(n^2).
+ *
+ * The end of the last interval of each line is kept in a tree where each node is the
+ * minimum of its children, a heap laid out over the lines, so that the first line
+ * with enough room can be found in O(log n) time.
+ * See TrackReads.stackReads() and TrackIntervalFeature.stackFeatures().
+ * */
+class LinePacker {
+
+	/** Return the line index, 0-based, of each interval. Intervals are given as
+	 * arrays of start and end positions, typically screen positions. An interval
+	 * is added to a line if its start is greater than the end of the last interval
+	 * on that line plus gap. Line indexes are assigned in order of creation.
+	 * */
+	protected static int[] pack(int[] starts, int[] ends, int gap){
+
+		if(starts.length != ends.length){
+			throw new IllegalArgumentException("Arrays of start and end positions differ in length");
+		}
+		int[] lineIdx= new int[starts.length];
+		int capacity= 16; // Number of leaves, i.e. lines the tree can hold
+		long[] tree= newTree(capacity);
+		int nLines= 0;
+		for(int i= 0; i < starts.length; i++){
+			// This interval fits on a line if the end of the line is less than this threshold
+			long threshold= (long)starts[i] - gap;
+			int line;
+			if(tree[1] < threshold){
+				// Descend to the leftmost line with enough room
+				int node= 1;
+				while(node < capacity){
+					node= tree[2 * node] < threshold ? 2 * node : 2 * node + 1;
+				}
+				line= node - capacity;
+			} else {
+				// No room: Start a new line
+				if(nLines == capacity){
+					tree= grow(tree, capacity);
+					capacity *= 2;
+				}
+				line= nLines;
+				nLines++;
+			}
+			// Update the end of this line and its ancestors
+			int node= capacity + line;
+			tree[node]= ends[i];
+			for(node= node / 2; node >= 1; node= node / 2){
+				tree[node]= Math.min(tree[2 * node], tree[2 * node + 1]);
+			}
+			lineIdx[i]= line;
+		}
+		return lineIdx;
+	}
+
+	/** Tree for this many lines, all empty. Empty lines have infinite end so they are never
+	 * selected. */
+	private static long[] newTree(int capacity){
+		long[] tree= new long[2 * capacity];
+		Arrays.fill(tree, Long.MAX_VALUE);
+		return tree;
+	}
+
+	/** Double the number of lines the tree can hold keeping the current ones.
+	 * */
+	private static long[] grow(long[] tree, int capacity){
+		int newCapacity= 2 * capacity;
+		long[] newTree= newTree(newCapacity);
+		System.arraycopy(tree, capacity, newTree, newCapacity, capacity);
+		for(int node= newCapacity - 1; node >= 1; node--){
+			newTree[node]= Math.min(newTree[2 * node], newTree[2 * node + 1]);
+		}
+		return newTree;
+	}
+}
@@ -0,0 +1,169 @@
+package tracks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/** Read the lines of a list of chromosomes in parallel, keeping those matching a pattern, for
+ * genome-wide searches like find and next. Each worker has its own reader and takes the next
+ * chromosome in search order as soon as it is done with the previous one. Results are
+ * consumed in search order with get(), so the caller can stop at the first chromosome with a
+ * match and close() the scan to stop the workers.
+ *
+ * Only the patterns are applied here since they are thread safe. Anything else, like parsing
+ * lines into features and the awk filter, is left to the caller.
+ * */
+class ParallelChromScan {
+
+	private static ThreadPoolExecutor pool= null;
+
+	private final TrackIntervalFeature track;
+	private final List<String> chroms;
+	private final int firstFrom;
+	private final Pattern include;
+	private final Pattern exclude;
+	private final int maxLines;
+	private final boolean trim;
+	private final List<CompletableFuture<List<String>>> results= new ArrayList<CompletableFuture<List<String>>>();
+	/** Index of the next chromosome to be scanned */
+	private final AtomicInteger nextChrom= new AtomicInteger(0);
+	private volatile boolean closed= false;
+
+	/*   C O N S T R U C T O R   */
+
+	/** Start scanning.
+	 * @param chroms Chromosomes in search order. The same chromosome can be present more than once.
+	 * @param firstFrom Scan the first chromosome from this position.
+	 * @param include Keep lines matching this pattern. Null to keep all lines.
+	 * @param exclude Skip lines matching this pattern. Null to skip none.
+	 * @param trim Match the patterns against the lines without leading and trailing whitespace,
+	 * as the track filters do.
+	 * @param maxLines Stop scanning a chromosome after having kept this many lines.
+	 * @param nThreads Number of chromosomes to scan at the same time.
+	 * */
+	protected ParallelChromScan(TrackIntervalFeature track, List<String> chroms, int firstFrom, Pattern include, Pattern exclude, boolean trim, int maxLines, int nThreads){
+		this.track= track;
+		this.chroms= new ArrayList<String>(chroms);
+		this.firstFrom= firstFrom;
+		this.include= include;
+		this.exclude= exclude;
+		this.trim= trim;
+		this.maxLines= maxLines;
+		for(int i= 0; i < chroms.size(); i++){
+			this.results.add(new CompletableFuture<List<String>>());
+		}
+		int nWorkers= Math.max(1, Math.min(nThreads, chroms.size()));
+		ThreadPoolExecutor pool= getPool(nWorkers);
+		for(int w= 0; w < nWorkers; w++){
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					scan();
+				}
+			});
+		}
+	}
+
+	protected ParallelChromScan(TrackIntervalFeature track, List<String> chroms, int firstFrom, Pattern include, Pattern exclude, boolean trim, int maxLines){
+		this(track, chroms, firstFrom, include, exclude, trim, maxLines, Runtime.getRuntime().availableProcessors());
+	}
+
+	/*  M E T H O D S  */
+
+	/** Lines kept for the i-th chromosome of the search order, waiting for them if necessary.
+	 * */
+	protected List<String> get(int i) throws IOException{
+		try {
+			return this.results.get(i).get();
+		} catch (InterruptedException e) {
+			this.close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while searching " + this.chroms.get(i));
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** True if the i-th chromosome has more lines matching than those returned by get().
+	 * */
+	protected boolean isTruncated(int i) throws IOException{
+		return this.get(i).size() >= this.maxLines;
+	}
+
+	/** Stop scanning. Results not ready yet will never be.
+	 * */
+	protected void close(){
+		this.closed= true;
+	}
+
+	/** Work done by each worker: Scan chromosomes until none is left. */
+	private void scan(){
+		TabixBigBedReader reader= null;
+		try{
+			reader= this.track.openReader();
+			int i;
+			while( ! this.closed && (i= this.nextChrom.getAndIncrement()) < this.chroms.size()){
+				this.results.get(i).complete(this.scanChrom(reader, i));
+			}
+		} catch(Throwable e){
+			// Whoever waits for the chromosomes not done yet gets the error
+			for(CompletableFuture<List<String>> x : this.results){
+				x.completeExceptionally(e);
+			}
+		} finally {
+			if(reader != null){
+				reader.close();
+			}
+		}
+	}
+
+	private List<String> scanChrom(TabixBigBedReader reader, int i) throws IOException{
+		List<String> lines= new ArrayList<String>();
+		TabixBigBedIterator iter= reader.query(this.chroms.get(i), i == 0 ? this.firstFrom : 0, Integer.MAX_VALUE);
+		String line;
+		while( ! this.closed && lines.size() < this.maxLines && (line= iter.next()) != null){
+			String x= this.trim ? line.trim() : line;
+			if(this.include != null && ! this.include.matcher(x).find()){
+				continue;
+			}
+			if(this.exclude != null && this.exclude.matcher(x).find()){
+				continue;
+			}
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	private static synchronized ThreadPoolExecutor getPool(int nThreads){
+		if(pool == null){
+			pool= new ThreadPoolExecutor(nThreads, nThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "chrom-scan");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+		} else if(nThreads > pool.getMaximumPoolSize()){
+			pool.setMaximumPoolSize(nThreads);
+			pool.setCorePoolSize(nThreads);
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,285 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Read counts along the genome stored in flat int arrays, one array per block of
+ * BLOCK_SIZE consecutive positions. For each position we count each base (A, C, G, T, N and D for
+ * deletion) split by strand and by mate, so 24 ints per position instead of the
+ * Locus objects and string-keyed multisets used before.
+ * Blocks are kept in LRU order and the least recently used ones are discarded
+ * once there are more than maxBlocks in memory.
+ * */
+class PileupCounts {
+
+	/** Number of genomic positions in each block. Must be a power of 2. */
+	protected static final int BLOCK_SIZE= 4096;
+	private static final int BLOCK_SHIFT= Integer.numberOfTrailingZeros(BLOCK_SIZE);
+
+	/** Bases in the order they are stored in the count arrays */
+	private static final char[] BASES= {'A', 'C', 'G', 'T', 'N', 'D'};
+	/** Order of preference used to break ties when calling the consensus. It is the same order
+	 * in which the old HashMap<Character, Integer> of counts happened to be iterated */
+	private static final char[] TIE_ORDER= {'A', 'C', 'T', 'D', 'G', 'N'};
+	/** Slots for each base: first/second in pair x forward/reverse */
+	private static final int N_STRATA= 4;
+	private static final int N_SLOTS= BASES.length * N_STRATA;
+
+	private static final int MIN_DEPTH_ALT= 3; // Min read depth for alternative allele to be taken into account
+	private static final double MIN_PCT_ALT= 0.01; // Min % of alternative allele to be taken into account
+	private static final double MIN_PCT_TOT= 0.98; // % (Reference + Alternative) must be above this otherwise set consensus to N.
+
+	private final int maxBlocks;
+	/** Key: chrom and block index. Iteration order is from least to most recently accessed. */
+	private Map<String, Block> blocks= new LinkedHashMap<String, Block>(16, 0.75f, true);
+	/** Last block looked up, possibly null if it did not exist. Consecutive calls
+	 * mostly hit the same block so this saves building the key and the map lookup. */
+	private String lastChrom= null;
+	private int lastBlockIdx= -1;
+	private Block lastBlock= null;
+
+	private static class Block {
+		/** Counts for each position and slot. Allocated when the first read is added */
+		private int[] counts= null;
+		/** Sum of counts at each position */
+		private int[] depth= null;
+		/** Positions that have been queried, whether or not they have coverage. */
+		private BitSet visited= new BitSet(BLOCK_SIZE);
+	}
+
+	/*   C O N S T R U C T O R   */
+
+	/**
+	 * @param maxBlocks Keep at most this many blocks in memory. This limit may be exceeded if
+	 * a single window spans more blocks than this.
+	 * */
+	protected PileupCounts(int maxBlocks){
+		this.maxBlocks= maxBlocks;
+	}
+
+	/*  M E T H O D S  */
+
+	/** Increment the count of base at chrom:pos. Base D is for a deletion in the read.
+	 * */
+	protected void add(String chrom, int pos, char base, boolean isReverse, boolean isFirstOFPair){
+		int baseIdx= baseIndex(Character.toUpperCase(base));
+		Block block= this.getBlock(chrom, pos, true);
+		if(block.counts == null){
+			block.counts= new int[BLOCK_SIZE * N_SLOTS];
+			block.depth= new int[BLOCK_SIZE];
+		}
+		int offset= pos & (BLOCK_SIZE - 1);
+		int stratum= (isFirstOFPair ? 0 : 2) + (isReverse ? 1 : 0);
+		block.counts[offset * N_SLOTS + baseIdx * N_STRATA + stratum]++;
+		block.depth[offset]++;
+	}
+
+	/** Add the counts in other to these counts. Positions visited in other are not marked
+	 * as visited here.
+	 * */
+	protected void addAll(PileupCounts other){
+		for(Map.Entry<String, Block> entry : other.blocks.entrySet()){
+			Block from= entry.getValue();
+			if(from.counts == null){
+				continue;
+			}
+			Block to= this.blocks.get(entry.getKey());
+			if(to == null){
+				to= new Block();
+				this.blocks.put(entry.getKey(), to);
+				this.lastChrom= null;
+			}
+			if(to.counts == null){
+				to.counts= from.counts.clone();
+				to.depth= from.depth.clone();
+				continue;
+			}
+			for(int i= 0; i < from.counts.length; i++){
+				to.counts[i] += from.counts[i];
+			}
+			for(int i= 0; i < from.depth.length; i++){
+				to.depth[i] += from.depth[i];
+			}
+		}
+	}
+
+	protected int getDepth(String chrom, int pos){
+		Block block= this.getBlock(chrom, pos, false);
+		if(block == null || block.depth == null){
+			return 0;
+		}
+		return block.depth[pos & (BLOCK_SIZE - 1)];
+	}
+
+	/** Count of the given base at chrom:pos summed across strands and mates.
+	 * */
+	protected int getCount(String chrom, int pos, char base){
+		Block block= this.getBlock(chrom, pos, false);
+		if(block == null || block.counts == null){
+			return 0;
+		}
+		return getCount(block, pos & (BLOCK_SIZE - 1), base);
+	}
+
+	private static int getCount(Block block, int offset, char base){
+		int start= offset * N_SLOTS + baseIndex(base) * N_STRATA;
+		int n= 0;
+		for(int i= start; i < start + N_STRATA; i++){
+			n += block.counts[i];
+		}
+		return n;
+	}
+
+	/** Call consensus base at chrom:pos. Return ' ' if there is no coverage.
+	 * */
+	protected char getConsensus(String chrom, int pos){
+
+		Block block= this.getBlock(chrom, pos, false);
+		int offset= pos & (BLOCK_SIZE - 1);
+		if(block == null || block.depth == null || block.depth[offset] == 0){
+			return ' ';
+		}
+		int depth= block.depth[offset];
+		// Find the two most frequent alleles
+		char allele1= TIE_ORDER[0];
+		char allele2= TIE_ORDER[1];
+		int cnt1= -1;
+		int cnt2= -1;
+		for(char base : TIE_ORDER){
+			int n= getCount(block, offset, base);
+			if(n > cnt1){
+				allele2= allele1;
+				cnt2= cnt1;
+				allele1= base;
+				cnt1= n;
+			} else if(n > cnt2){
+				allele2= base;
+				cnt2= n;
+			}
+		}
+		// Is allele2 supported by at least n calls?
+		// Is allele2 making up more than x % of the total?
+		if((float)(cnt1 + cnt2)/depth < MIN_PCT_TOT){
+			return 'N';
+		} else if(cnt2 >= MIN_DEPTH_ALT && (float)cnt2/depth >= MIN_PCT_ALT){
+			return iupacAmbiguity(allele1, allele2);
+		} else {
+			return allele1;
+		}
+	}
+
+	/** Mark the positions from-to as queried.
+	 * */
+	protected void setVisited(String chrom, int from, int to){
+		for(int blockStart= from; blockStart <= to; blockStart= ((blockStart >> BLOCK_SHIFT) + 1) << BLOCK_SHIFT){
+			Block block= this.getBlock(chrom, blockStart, true);
+			int blockEnd= Math.min(to, (((blockStart >> BLOCK_SHIFT) + 1) << BLOCK_SHIFT) - 1);
+			block.visited.set(blockStart & (BLOCK_SIZE - 1), (blockEnd & (BLOCK_SIZE - 1)) + 1);
+		}
+	}
+
+	/** Return the intervals in from-to not queried yet. Each interval is an array of
+	 * [start, end], 1-based, end included. Intervals are sorted and adjacent ones are merged.
+	 * */
+	protected List<int[]> getMissingIntervals(String chrom, int from, int to){
+		List<int[]> missing= new ArrayList<int[]>();
+		int[] current= null;
+		int pos= from;
+		while(pos <= to){
+			Block block= this.getBlock(chrom, pos, false);
+			int blockEnd= Math.min(to, (((pos >> BLOCK_SHIFT) + 1) << BLOCK_SHIFT) - 1);
+			int next;
+			if(block == null){
+				next= blockEnd + 1; // Nothing visited in this block
+			} else {
+				int offset= pos & (BLOCK_SIZE - 1);
+				if(block.visited.get(offset)){
+					// Skip visited positions and start again from the next unvisited one
+					int clear= block.visited.nextClearBit(offset);
+					pos= Math.min(blockEnd + 1, pos + clear - offset);
+					current= null;
+					continue;
+				}
+				int set= block.visited.nextSetBit(offset);
+				next= set == -1 ? blockEnd + 1 : Math.min(blockEnd + 1, pos + set - offset);
+			}
+			if(current == null){
+				current= new int[] {pos, next - 1};
+				missing.add(current);
+			} else {
+				current[1]= next - 1;
+			}
+			pos= next;
+		}
+		return missing;
+	}
+
+	/** Discard least recently used blocks until there are at most maxBlocks in
+	 * memory. Blocks overlapping chrom:from-to are kept regardless.
+	 * */
+	protected void evict(String chrom, int from, int to){
+		Iterator<Map.Entry<String, Block>> iter= this.blocks.entrySet().iterator();
+		int excess= this.blocks.size() - this.maxBlocks;
+		while(excess > 0 && iter.hasNext()){
+			String key= iter.next().getKey();
+			int sep= key.lastIndexOf('\t');
+			int idx= Integer.parseInt(key.substring(sep + 1));
+			if(key.substring(0, sep).equals(chrom) && idx >= (from >> BLOCK_SHIFT) && idx <= (to >> BLOCK_SHIFT)){
+				continue;
+			}
+			iter.remove();
+			excess--;
+			this.lastChrom= null;
+		}
+	}
+
+	protected void clear(){
+		this.blocks.clear();
+		this.lastChrom= null;
+	}
+
+	protected int size(){
+		return this.blocks.size();
+	}
+
+	private Block getBlock(String chrom, int pos, boolean create){
+		int blockIdx= pos >> BLOCK_SHIFT;
+		if(blockIdx != this.lastBlockIdx || ! chrom.equals(this.lastChrom)){
+			this.lastBlock= this.blocks.get(chrom + '\t' + blockIdx);
+			this.lastChrom= chrom;
+			this.lastBlockIdx= blockIdx;
+		}
+		if(this.lastBlock == null && create){
+			this.lastBlock= new Block();
+			this.blocks.put(chrom + '\t' + blockIdx, this.lastBlock);
+		}
+		return this.lastBlock;
+	}
+
+	private static int baseIndex(char base){
+		switch(base){
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			case 'N': return 4;
+			case 'D': return 5;
+			default: throw new RuntimeException("Unexpected base: " + base);
+		}
+	}
+
+	private static char iupacAmbiguity(char x, char y){
+
+		if((x == 'A' && y == 'G') || (x == 'G' && y == 'A')){ return 'R'; }
+		if((x == 'C' && y == 'T') || (x == 'T' && y == 'C')){ return 'Y'; }
+		if((x == 'G' && y == 'C') || (x == 'C' && y == 'G')){ return 'S'; }
+		if((x == 'A' && y == 'T') || (x == 'T' && y == 'A')){ return 'W'; }
+		if((x == 'G' && y == 'T') || (x == 'T' && y == 'G')){ return 'K'; }
+		if((x == 'A' && y == 'C') || (x == 'C' && y == 'A')){ return 'M'; }
+		return 'N';
+	}
+}
@@ -0,0 +1,237 @@
+package tracks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.validator.routines.UrlValidator;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.CSIIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SamReader;
+import samTextViewer.ScreenMapper;
+import samTextViewer.Utils;
+
+/** Estimate the number of reads along a chromosome using only the bam index, without
+ * reading any record. The index gives, for each window of 16 kb or so, the virtual file offset
+ * of the first read overlapping that window. The amount of compressed data between the
+ * windows at the start of two screen columns is converted to reads using the average size
+ * of a record on this chromosome.
+ *
+ * The linear index of bai files is not exposed by htsjdk so it is read from the file.
+ * For csi indexes we use the chunks of the bins at the finest level.
+ * */
+class ReadDensityEstimator {
+
+	private final String chrom;
+	/** Size of the windows of the index */
+	private int windowSize;
+	/** Virtual offset of the first read overlapping each window. Windows without reads have
+	 * the offset of the next window with reads, or the end of the chromosome. */
+	private long[] windowOffsets;
+	private long chromStart;
+	private long chromEnd;
+	private long nRecs;
+
+	/*   C O N S T R U C T O R   */
+
+	private ReadDensityEstimator(String chrom){
+		this.chrom= chrom;
+	}
+
+	/** Read the index of this bam for chrom. Return null if the bam has no bai or csi index or chrom is
+	 * not in the header. */
+	protected static ReadDensityEstimator fromIndex(String bam, String chrom) throws IOException{
+		SamReader samReader= Utils.getSamReader(bam);
+		try{
+			if( ! samReader.hasIndex() || samReader.getFileHeader().getSequence(chrom) == null){
+				return null;
+			}
+			int ref= samReader.getFileHeader().getSequenceIndex(chrom);
+			ReadDensityEstimator estimator= new ReadDensityEstimator(chrom);
+			BAMIndex index= samReader.indexing().getIndex();
+			if(index instanceof CSIIndex){
+				estimator.readCsi((CSIIndex) index, ref);
+			} else {
+				InputStream bai= openBai(bam);
+				if(bai == null){
+					return null;
+				}
+				try{
+					estimator.readBai(new DataInputStream(new BufferedInputStream(bai)), ref);
+				} finally {
+					bai.close();
+				}
+			}
+			estimator.fillEmptyWindows();
+			return estimator;
+		} finally {
+			samReader.close();
+		}
+	}
+
+	/*  M E T H O D S  */
+
+	private static InputStream openBai(String bam) throws IOException{
+		if(new UrlValidator().isValid(bam)){
+			return new URL(bam + ".bai").openStream();
+		}
+		File bai= new File(bam + ".bai");
+		if( ! bai.isFile()){
+			bai= new File(bam.replaceAll("\\.bam$", "") + ".bai");
+		}
+		if( ! bai.isFile()){
+			return null;
+		}
+		return new FileInputStream(bai);
+	}
+
+	/** Bai layout: magic, n_ref then for each reference the bins, each with its chunks, and the
+	 * linear index. Pseudo-bin 37450 holds the offsets spanning the reference and the read counts.
+	 * */
+	private void readBai(DataInputStream is, int ref) throws IOException{
+		byte[] magic= new byte[4];
+		is.readFully(magic);
+		if( ! new String(magic, "US-ASCII").equals("BAI\1")){
+			throw new IOException("Invalid bai index");
+		}
+		int nRef= readInt(is);
+		for(int r= 0; r < nRef && r <= ref; r++){
+			int nBin= readInt(is);
+			for(int b= 0; b < nBin; b++){
+				int bin= readInt(is);
+				int nChunk= readInt(is);
+				if(r == ref && bin == 37450 && nChunk == 2){
+					this.chromStart= readLong(is);
+					this.chromEnd= readLong(is);
+					this.nRecs= readLong(is) + readLong(is);
+				} else {
+					skip(is, 16L * nChunk);
+				}
+			}
+			int nIntv= readInt(is);
+			if(r == ref){
+				this.windowSize= 1 << 14;
+				this.windowOffsets= new long[nIntv];
+				for(int i= 0; i < nIntv; i++){
+					this.windowOffsets[i]= readLong(is);
+				}
+			} else {
+				skip(is, 8L * nIntv);
+			}
+		}
+		if(this.windowOffsets == null){
+			this.windowOffsets= new long[0];
+		}
+	}
+
+	private void readCsi(CSIIndex index, int ref){
+		int level= index.getBinDepth() - 1;
+		int firstBin= index.getFirstBinInLevelForCSI(level);
+		this.windowSize= 1 << index.getMinShift();
+		this.windowOffsets= new long[index.getLevelSize(level)];
+		this.chromStart= Long.MAX_VALUE;
+		this.chromEnd= 0;
+		BinningIndexContent content= (BinningIndexContent) index.getQueryResults(ref);
+		if(content == null){
+			return;
+		}
+		for(Bin bin : content.getBins()){
+			if(bin == null){
+				continue;
+			}
+			int w= bin.getBinNumber() - firstBin;
+			for(Chunk chunk : bin.getChunkList()){
+				if(w >= 0 && w < this.windowOffsets.length && (this.windowOffsets[w] == 0 || chunk.getChunkStart() < this.windowOffsets[w])){
+					this.windowOffsets[w]= chunk.getChunkStart();
+				}
+				this.chromStart= Math.min(this.chromStart, chunk.getChunkStart());
+				this.chromEnd= Math.max(this.chromEnd, chunk.getChunkEnd());
+			}
+		}
+		if(this.chromStart == Long.MAX_VALUE){
+			this.chromStart= 0;
+		}
+		BAMIndexMetaData meta= index.getMetaData(ref);
+		this.nRecs= meta == null ? 0 : meta.getAlignedRecordCount() + meta.getUnalignedRecordCount();
+	}
+
+	private void fillEmptyWindows(){
+		long next= this.chromEnd;
+		for(int i= this.windowOffsets.length - 1; i >= 0; i--){
+			if(this.windowOffsets[i] == 0){
+				this.windowOffsets[i]= next;
+			}
+			next= this.windowOffsets[i];
+		}
+	}
+
+	/** Virtual offset of the first read overlapping the window containing pos. */
+	private long offsetAt(int pos){
+		int w= Math.max(0, pos - 1) / this.windowSize;
+		if(w >= this.windowOffsets.length){
+			return this.chromEnd;
+		}
+		return Math.max(this.chromStart, Math.min(this.windowOffsets[w], this.chromEnd));
+	}
+
+	/** Estimated number of reads in each screen column. */
+	protected List<Float> estimate(ScreenMapper screenMapper){
+		List<Float> density= new ArrayList<Float>();
+		double bytesPerRec= (toBytes(this.chromEnd) - toBytes(this.chromStart)) / this.nRecs;
+		double[] offsets= new double[screenMapper.size() + 1];
+		offsets[screenMapper.size()]= toBytes(this.offsetAt(screenMapper.getGenomeTo(screenMapper.size() - 1) + 1));
+		for(int i= screenMapper.size() - 1; i >= 0; i--){
+			offsets[i]= Math.min(toBytes(this.offsetAt(screenMapper.getGenomeFrom(i))), offsets[i+1]);
+		}
+		for(int i= 0; i < screenMapper.size(); i++){
+			if(this.nRecs == 0 || bytesPerRec <= 0){
+				density.add(0f);
+			} else {
+				density.add((float) ((offsets[i+1] - offsets[i]) / bytesPerRec));
+			}
+		}
+		return density;
+	}
+
+	protected String getChrom(){
+		return this.chrom;
+	}
+
+	/** Approximate position in the compressed file of this BGZF virtual offset. The offset within
+	 * the uncompressed block is scaled by a typical compression ratio of bam files.
+	 * */
+	private static double toBytes(long virtualOffset){
+		long blockAddress= virtualOffset >>> 16;
+		int offsetInBlock= (int) (virtualOffset & 0xFFFF);
+		return blockAddress + offsetInBlock / 3.0;
+	}
+
+	private static int readInt(DataInputStream is) throws IOException{
+		return Integer.reverseBytes(is.readInt());
+	}
+
+	private static long readLong(DataInputStream is) throws IOException{
+		return Long.reverseBytes(is.readLong());
+	}
+
+	private static void skip(DataInputStream is, long n) throws IOException{
+		while(n > 0){
+			long skipped= is.skip(n);
+			if(skipped <= 0){
+				throw new IOException("Unexpected end of index");
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -3,8 +3,10 @@ package tracks;
 /** Info about a screen position for wiggle-like data. Somewhat counterpart to ScreenLocusInfo */
 public class ScreenWiggleLocusInfo {
 	
-	private int cntGenomicLoci= 0; // Count of genomic loci mapped to this screen position
-	private float sumScore= 0; // Sum of scores accumulated from wiggle sites mapped to this screen locus
+	private double cntGenomicLoci= 0; // Count of genomic loci mapped to this screen position
+	private double sumScore= 0; // Sum of scores accumulated from wiggle sites mapped to this screen locus
+	private float minScore= Float.NaN;
+	private float maxScore= Float.NaN;
 	
 	/* C o n s t r u c t o r */
 	public ScreenWiggleLocusInfo(){ }
@@ -12,8 +14,22 @@ public class ScreenWiggleLocusInfo {
 	/* M e t h o d s */
 	/** Increment attributes by given score */
 	public void increment(float score){
-		cntGenomicLoci++;
-		sumScore += score;
+		this.increment(1, score, score, score);
+	}
+
+	/** Increment attributes with a summary of several loci, typically from a bigWig zoom record.
+	 * @param cntLoci Number of genomic loci, may be fractional if only part of the record maps here.
+	 * @param sum Sum of the scores of these loci.
+	 * */
+	public void increment(double cntLoci, double sum, float min, float max){
+		cntGenomicLoci += cntLoci;
+		sumScore += sum;
+		if(Float.isNaN(minScore) || min < minScore){
+			minScore= min;
+		}
+		if(Float.isNaN(maxScore) || max > maxScore){
+			maxScore= max;
+		}
 	}
 
 	public String toString(){
@@ -23,6 +39,19 @@ public class ScreenWiggleLocusInfo {
 	
 	/*   G e t t e r s   */
 	protected float getMeanScore(){
-		return (float)this.sumScore / this.cntGenomicLoci; 
+		return (float) (this.sumScore / this.cntGenomicLoci); 
+	}
+
+	protected float getScore(WiggleStatistic statistic){
+		if(statistic.equals(WiggleStatistic.MIN)){
+			return this.minScore;
+		}
+		if(statistic.equals(WiggleStatistic.MAX)){
+			return this.maxScore;
+		}
+		if(statistic.equals(WiggleStatistic.COUNT)){
+			return (float) this.cntGenomicLoci;
+		}
+		return this.getMeanScore();
 	}
 }
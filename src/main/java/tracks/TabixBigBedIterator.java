@@ -1,6 +1,7 @@
 package tracks;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.broad.igv.bbfile.BBFileReader;
 import org.broad.igv.bbfile.BedFeature;
@@ -13,6 +14,8 @@ public class TabixBigBedIterator {
 
 	Iterator tabixIterator;
 	BigBedIterator bigBedIterator;
+	List<String> lines;
+	int linesIdx= 0;
 	
 	protected TabixBigBedIterator(TabixReader reader, String chrom, int start, int end){
 		this.tabixIterator= reader.query(chrom, start, end);
@@ -21,9 +24,14 @@ public class TabixBigBedIterator {
 	protected TabixBigBedIterator(BBFileReader reader, String chrom, int start, int end){
 		this.bigBedIterator= reader.getBigBedIterator(chrom, start, chrom, end, false);
 	}
+
+	protected TabixBigBedIterator(FeatureIntervalTree tree, String chrom, int start, int end){
+		this.lines= tree.query(chrom, start, end);
+	}
 	
 	protected String next() throws IOException{
 		
+		Track.checkCancelled();
 		if(this.tabixIterator != null){
 			return this.tabixIterator.next();
 
@@ -46,6 +54,8 @@ public class TabixBigBedIterator {
 				sb.append(field);
 			}
 			return sb.toString();
+		} else if(this.lines != null){
+			return this.linesIdx < this.lines.size() ? this.lines.get(this.linesIdx++) : null;
 		} else {
 			throw new RuntimeException();
 		}
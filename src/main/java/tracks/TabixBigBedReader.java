@@ -12,6 +12,7 @@ public class TabixBigBedReader {
 
 	private TabixReader tabixReader; 
 	private BBFileReader bigBedReader;
+	private FeatureIntervalTree intervalTree;
 	
 	protected TabixBigBedReader(TabixReader tabixReader){
 		this.tabixReader= tabixReader;
@@ -21,6 +22,10 @@ public class TabixBigBedReader {
 		this.bigBedReader = bigBedReader;
 	};
 	
+	protected TabixBigBedReader(FeatureIntervalTree intervalTree){
+		this.intervalTree = intervalTree;
+	};
+	
 	protected TabixBigBedIterator query(String chrom, int start, int end){
 
 		if(this.tabixReader != null){
@@ -29,6 +34,9 @@ public class TabixBigBedReader {
 		} else if(this.bigBedReader != null){
 			return new TabixBigBedIterator(this.bigBedReader, chrom, start, end);
 		
+		} else if(this.intervalTree != null){
+			return new TabixBigBedIterator(this.intervalTree, chrom, start, end);
+		
 		} else {
 			throw new RuntimeException();
 		}
@@ -36,7 +44,10 @@ public class TabixBigBedReader {
 
 	public Set<String> getChromosomes() {
 
-		if(this.tabixReader != null && this.bigBedReader == null){
+		if(this.intervalTree != null){
+			return this.intervalTree.getChromosomes();
+		
+		} else if(this.tabixReader != null && this.bigBedReader == null){
 		return this.tabixReader.getChromosomes();		
 	
 		} else if(this.tabixReader == null && this.bigBedReader != null){
@@ -49,5 +60,14 @@ public class TabixBigBedReader {
 
 
 	}
+
+	protected void close(){
+		if(this.tabixReader != null){
+			this.tabixReader.close();
+		}
+		if(this.bigBedReader != null){
+			this.bigBedReader.close();
+		}
+	}
 	
 }
@@ -158,7 +158,7 @@ class TextRead extends IntervalFeature{
 			this.textStart= 1;
 			return;
 		}		
-		this.textStart= Utils.getIndexOfclosestValue(alnStart, gc.getMapping()) + 1;
+		this.textStart= this.gc.getScreenMapper().getScreenIndex(alnStart) + 1;
 		return;
 	}
 	
@@ -197,7 +197,7 @@ class TextRead extends IntervalFeature{
 		} else {
 			alnEnd= samRecord.getAlignmentEnd();
 		}	
-		this.textEnd= Utils.getIndexOfclosestValue(alnEnd, gc.getMapping()) + 1;
+		this.textEnd= this.gc.getScreenMapper().getScreenIndex(alnEnd) + 1;
 		return;
 	}
 
@@ -244,8 +244,8 @@ class TextRead extends IntervalFeature{
 			if(el.getOperator().equals(CigarOperator.SKIPPED_REGION)){
 				int[] textPositions= new int[2];
 				// +1 because textPosition is 1-based
-				textPositions[0]= Utils.getIndexOfclosestValue(genomicPosition, this.gc.getMapping()) + 1; 
-				textPositions[1]= Utils.getIndexOfclosestValue(genomicPosition + el.getLength(), this.gc.getMapping()) + 1;
+				textPositions[0]= this.gc.getScreenMapper().getScreenIndex(genomicPosition) + 1; 
+				textPositions[1]= this.gc.getScreenMapper().getScreenIndex(genomicPosition + el.getLength()) + 1;
 				this.textPositionsOfSkippedBases.add(textPositions);
 			};
 			if(el.getOperator().consumesReferenceBases()){
@@ -16,7 +16,6 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,11 +35,7 @@ import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.filter.AggregateFilter;
+import exceptions.UpdateCancelledException;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -75,6 +70,9 @@ public abstract class Track {
 		  }
 		}
 	
+	/** Set to abort the updates in progress. See checkCancelled() */
+	private static volatile boolean updatesCancelled= false;
+	
 	protected int yMaxLines= 10;
 	private String filename= "N/A"; // File name as given in input
 	private String workFilename= "N/A"; // File actually used by ASCIIGenome. E.g. tmp tabix files 
@@ -97,6 +95,7 @@ public abstract class Track {
 	private int printNumDecimals= 3;
 	private boolean explainSamFlag= false;
 	private FeatureDisplayMode featureDisplayMode= FeatureDisplayMode.EXPANDED;
+	private WiggleStatistic wiggleStatistic= WiggleStatistic.MEAN;
 	private int gap= 1;
 	protected boolean readsAsPairs= false;
 	protected boolean rpm= false;
@@ -113,6 +112,8 @@ public abstract class Track {
 	private String printFormattedVep= null;
 	private boolean printNormalizedVcf= false;
 	private long lastModified;
+	/** True if an update of this track has been cancelled so its content may be incomplete */
+	private boolean stale= false;
 	
 	private FeatureFilter featureFilter= new FeatureFilter(); 
 	private VCFHeader vcfHeader;
@@ -198,6 +199,38 @@ public abstract class Track {
 	public void setGc(GenomicCoords gc) throws MalformedURLException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
 		this.gc = gc;
 		this.update();
+		this.stale= false;
+	}
+
+	/** Abort, or allow, the track updates in progress and those to come. Updates
+	 * check this setting with checkCancelled() as they go through files.
+	 * */
+	public static void setUpdatesCancelled(boolean cancelled){
+		updatesCancelled= cancelled;
+	}
+
+	public static boolean isUpdatesCancelled(){
+		return updatesCancelled;
+	}
+
+	/** Throw UpdateCancelledException if updates have been cancelled. To be called
+	 * regularly by loops reading or filtering records.
+	 * */
+	public static void checkCancelled() throws UpdateCancelledException{
+		if(updatesCancelled){
+			throw new UpdateCancelledException();
+		}
+	}
+
+	/** A stale track has been left incomplete by a cancelled update and it must be updated
+	 * again even if the coordinates have not changed.
+	 * */
+	public boolean isStale() {
+		return this.stale;
+	}
+
+	public void setStale(boolean stale) {
+		this.stale= stale;
 	}
 
 	public boolean isNoFormat() { 
@@ -305,6 +338,16 @@ public abstract class Track {
 		this.featureDisplayMode = featureDisplayMode;
 	}
 
+	public WiggleStatistic getWiggleStatistic() {
+		return wiggleStatistic;
+	}
+
+	/** Statistic used to summarize the data values mapped to the same screen column. 
+	 * Only relevant to bigWig tracks.*/
+	public void setWiggleStatistic(WiggleStatistic wiggleStatistic) throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+		this.wiggleStatistic = wiggleStatistic;
+	}
+
 	protected int getGap() {
 		return gap;
 	}
@@ -371,6 +414,14 @@ public abstract class Track {
 
 	public abstract void update() throws MalformedURLException, IOException, InvalidGenomicCoordsException, InvalidRecordException, ClassNotFoundException, SQLException;
 
+	/** Load in the track caches the data for the region in gc so that moving there later is faster.
+	 * This must not change what the track shows. It is called from a background thread while
+	 * the user is idle at the prompt, never at the same time as other methods of this track.
+	 * Tracks without a cache do nothing. See Prefetcher.
+	 * */
+	public void prefetch(GenomicCoords gc) throws IOException, InvalidGenomicCoordsException {
+	}
+
 	public String getSeqRegex() {
 		return null;
 	}
@@ -933,169 +984,12 @@ public abstract class Track {
 		return title + track; 
 	}
 	
-	public List<Boolean> filterReads(SamReader samReader, String chrom, int from, int to) throws IOException {
-
-		Iterator<SAMRecord> filterSam= samReader.query(chrom, from, to, false);
-		
-		AggregateFilter aggregateFilter= new AggregateFilter(this.getFeatureFilter().getSamRecordFilter());
-
-		// This array will contain true/false to indicate whether a record passes the 
-		// sam filters AND the awk filter (if given).
-		// boolean[] results= new boolean[(int) this.nRecsInWindow];
-		List<Boolean> results= new ArrayList<Boolean>();
-
-		List<String> awkDataInput= new ArrayList<String>();
-		while(filterSam.hasNext()){ 
-			// Record whether a read passes the sam filters. If necessary, we also 
-			// store the raw reads for awk.
-			SAMRecord rec= filterSam.next();
-			boolean passed;
-			if(!rec.getReadUnmappedFlag() && 
-			        !aggregateFilter.filterOut(rec) &&
-			        rec.getAlignmentEnd() >= rec.getAlignmentStart()){
-				passed= true;
-			} else {
-				passed= false;
-			}
-
-			// Filter for variant reads: Do it only if there is an intersection between variant interval and current genomic window
-			if(this.getFeatureFilter().getVariantChrom().equals(Filter.DEFAULT_VARIANT_CHROM.getValue())){
-				// Variant read filter is not set. Nothing to do.
-			}
-			else if(passed){ 
-				// Memo: Test filter(s) only if a read is passed==true. 
-				passed= this.isSNVRead(rec, this.getFeatureFilter().isVariantOnly());
-			}
-			
-			String raw= null;
-
-			if(passed && (! this.getFeatureFilter().getShowRegex().equals(Filter.DEFAULT_SHOW_REGEX.getValue()) || 
-					      ! this.getFeatureFilter().getHideRegex().equals(Filter.DEFAULT_HIDE_REGEX.getValue()))){
-				// grep
-				raw= rec.getSAMString().trim();
-				boolean showIt= true;
-				if(! this.getFeatureFilter().getShowRegex().equals(Filter.DEFAULT_SHOW_REGEX.getValue())){
-					showIt= this.getFeatureFilter().getShowRegex().matcher(raw).find();
-				}
-				boolean hideIt= false;
-				if(! this.getFeatureFilter().getHideRegex().equals(Filter.DEFAULT_HIDE_REGEX.getValue())){
-					hideIt= this.getFeatureFilter().getHideRegex().matcher(raw).find();	
-				}
-				if(!showIt || hideIt){
-					passed= false;
-				}
-			}
-			results.add(passed);
-			if(passed && this.getAwk() != null && ! this.getAwk().isEmpty()){
-				// We pass to awk only records that have been kept so far.
-				if(raw == null){
-					raw= rec.getSAMString().trim();
-				}
-				awkDataInput.add(raw);
-			}
-		} // End loop through reads
-
-		// Apply the awk filter, if given
-		if(this.getAwk() != null && ! this.getAwk().equals(Filter.DEFAULT_AWK.getValue())){
-			String[] rawLines= new String[awkDataInput.size()];
-			rawLines= awkDataInput.toArray(rawLines);
-			boolean[] awkResults= Utils.passAwkFilter(rawLines, this.getAwk());
-			// Compare the results array with awk filtered. Flip as appropriate the results array
-			int awkIdx= 0;
-			int i= 0;
-			for(boolean isPassed : results){
-				if(isPassed){
-					if( ! awkResults[awkIdx]){
-						results.set(i, false);
-					}
-					awkIdx++;
-				}
-				i++;
-			}
-		}
-		return results;
-	}
-
-	/**Return true if samrecord contains a mismatch or insertion/deletion in the target region.
+	/** Query the work file over chrom:from-to and return the records passing the filters
+	 * set for this track. Records are decoded once and streamed to the caller. Decoded records
+	 * are cached and shared with other tracks reading the same file. 
 	 * */
-	private boolean isSNVRead(SAMRecord rec, boolean variantOnly) {
-		boolean passed= false;
-		
-		int varFrom= this.getFeatureFilter().getVariantFrom();
-		int varTo= this.getFeatureFilter().getVariantTo();
-
-		if(this.getFeatureFilter().getVariantChrom().equals(rec.getReferenceName()) &&
-		        varFrom <= rec.getAlignmentEnd() &&
-		        rec.getAlignmentStart() <= varTo){
-			// Variant read filter is set and this read overlaps it. 
-			if( ! variantOnly){
-				return true; // No need to check whether read is variant.
-			}
-			int readPos= 0;
-			int refPos= rec.getAlignmentStart();
-			for(CigarElement cigar : rec.getCigar().getCigarElements()){
-				if(cigar.getOperator().equals(CigarOperator.SOFT_CLIP)){
-					readPos += cigar.getLength();
-				}
-				else if(cigar.getOperator().equals(CigarOperator.M) ||
-						cigar.getOperator().equals(CigarOperator.EQ) || 
-						cigar.getOperator().equals(CigarOperator.X)){
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo && rec.getReadLength() > 0){
-							byte readBase= rec.getReadBases()[readPos];
-							byte refBase= this.getFeatureFilter().getFaSeq()[refPos-varFrom];
-							if(readBase != refBase){
-								passed= true;
-								break;
-							}
-						}
-						readPos++;
-						refPos++;
-					}
-				}
-				else if(cigar.getOperator().equals(CigarOperator.DELETION)){ // Consumes ref base, not read base
-					// REF  ACTGTTTTACTG
-					// READ   TG----AC
-					//          ^^^^
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo){
-							passed= true;
-							break;
-						}
-						refPos++;							
-					}
-				}
-				else if(cigar.getOperator().equals(CigarOperator.INSERTION)){ // Consumes read, not ref 
-					//  REF ACTG----ACTG
-					// READ   TGttttAC
-					//         ^    
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo){
-							passed= true;
-							break;
-						}
-						readPos++;							
-					}
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.HARD_CLIP)){ 
-					//
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.SKIPPED_REGION)){ // Same deletion but it's not a mismatch 
-					refPos += cigar.getLength();
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.PADDING)){ 
-					// Not sure what to do with this...
-				} 
-				if(passed){
-					break;
-				}
-			}
-		} 
-		else {
-			// Variant read filter is set and this read does not overlap it.
-			passed= false;
-		}
-		return passed;
+	protected FilteredSamIterator filterReads(String chrom, int from, int to) {
+		return new FilteredSamIterator(AlignmentCache.getInstance().query(this.getWorkFilename(), chrom, from, to), this.getFeatureFilter());
 	}
 
 	protected void setColorForRegex(List<Argument> xcolorForRegex) {
@@ -44,7 +44,7 @@ public class TrackBedgraph extends TrackIntervalFeature {
         }
 
         for(IntervalFeature ift : intervalFeatureList) {
-            ift.mapToScreen(this.getGc().getMapping());
+            ift.mapToScreen(this.getGc().getScreenMapper());
             for(int i= ift.getScreenFrom(); i <= ift.getScreenTo(); i++){
                 screenWigLocInfoList.get(i).increment(ift.getScore());
             }
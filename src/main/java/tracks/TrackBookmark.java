@@ -95,6 +95,7 @@ public class TrackBookmark extends TrackIntervalFeature {
 		new MakeTabixIndex(plainNew.getAbsolutePath(), new File(this.getWorkFilename()), TabixFormat.GFF);
 		plainNew.delete();
 		this.tabixReader= new TabixReader(this.getWorkFilename());
+		this.clearFeatureCache();
 		// Update track.
 		this.update();
 	}
@@ -154,6 +155,7 @@ public class TrackBookmark extends TrackIntervalFeature {
 		new MakeTabixIndex(plainNew.getAbsolutePath(), new File(this.getWorkFilename()), TabixFormat.GFF);
 		plainNew.delete();
 		this.tabixReader= new TabixReader(this.getWorkFilename());
+		this.clearFeatureCache();
 		// Update track.
 		this.update();
 	}
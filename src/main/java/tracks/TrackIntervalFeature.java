@@ -7,6 +7,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -21,12 +22,14 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
+import coloring.Config;
+import coloring.ConfigKey;
 import coloring.Xterm256;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.util.FileExtensions;
+import exceptions.UpdateCancelledException;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.readers.LineIterator;
 import htsjdk.tribble.readers.TabixReader;
@@ -35,8 +38,8 @@ import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapper;
 import samTextViewer.Utils;
-import sortBgzipIndex.MakeTabixIndex;
 
 public class TrackIntervalFeature extends Track {
  
@@ -45,11 +48,25 @@ public class TrackIntervalFeature extends Track {
      * */
     protected TabixReader tabixReader; // Leave *protected* for TrackBookmark to work
     private BBFileReader bigBedReader;
+    /** Features of small files held in memory instead of tabixReader */
+    private FeatureIntervalTree intervalTree;
     protected int scoreColIdx = -1;
     private List<Argument> colorForRegex= null;
     private VCFCodec vcfCodec;
     private String gtfAttributeForName= null;
     private int bedFieldForName= 3; // 0-based!
+    /** Features already read and filtered. Windows spanning more than MAX_CACHED_BLOCKS
+     * blocks are read directly from file. */
+    private FeatureBlockCache featureCache= new FeatureBlockCache(Runtime.getRuntime().maxMemory() / 16);
+    private static final int MAX_CACHED_BLOCKS= 50;
+    /** Lines to collect from each chromosome in genome-wide searches before checking them */
+    private static final int SCAN_BATCH_SIZE= 1000;
+    /** Feature coordinates for next/previous feature on sparse or filtered tracks */
+    private FeatureStartIndex featureStartIndex= new FeatureStartIndex(this);
+    /** Index for find, built on first use */
+    private FindIndex findIndex= null;
+    /** True if the find index would take too much memory */
+    private boolean findIndexTooLarge= false;
     
     /* C o n s t r u c t o r */
 
@@ -73,19 +90,15 @@ public class TrackIntervalFeature extends Track {
             }
             this.setWorkFilename(filename);
             
-        } else if( ! Utils.hasTabixIndex(filename)){
-            // Tabix index not found for this file. Sort and index input to tmp.
-
-            String suffix= new File(filename).getName();
-            if( ! suffix.endsWith(".gz")){
-                suffix += ".gz";
-            }
-            String tmpWorkFile= Utils.createTempFile(".asciigenome.", "." + suffix, true).getAbsolutePath();
-            new File(tmpWorkFile + FileExtensions.TABIX_INDEX).deleteOnExit();
-            this.setWorkFilename(tmpWorkFile);
-
-            new MakeTabixIndex(filename, new File(this.getWorkFilename()), Utils.trackFormatToTabixFormat(this.getTrackFormat()));    
+        } else if(FeatureIntervalTree.fitsInMemory(filename) && ! Utils.hasTabixIndex(filename)){
+            // Small file: Hold it in memory rather than sorting and indexing it to a tmp file.
+            this.setWorkFilename(filename);
+            this.readIntervalTree();
             
+        } else if( ! Utils.hasTabixIndex(filename)){
+            // Tabix index not found for this file. Sort and index input to the cache, 
+            // unless done in a previous session, or to tmp.
+            this.setWorkFilename(DerivedFileCache.getTabixIndexed(filename, Utils.trackFormatToTabixFormat(this.getTrackFormat())));
             this.tabixReader= this.getTabixReader(this.getWorkFilename());
             
         } else { // This means the input is tabix indexed.
@@ -129,10 +142,22 @@ public class TrackIntervalFeature extends Track {
                 this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
 
         for(IntervalFeature ift : this.intervalFeatureList){
-            ift.mapToScreen(this.getGc().getMapping());
+            ift.mapToScreen(this.getGc().getScreenMapper());
         }    
     }
     
+    @Override
+    public void prefetch(GenomicCoords gc) throws IOException, InvalidGenomicCoordsException {
+        if(this.tabixReader == null && this.bigBedReader == null && this.intervalTree == null){
+            return;
+        }
+        int nBlocks= (gc.getTo() - 1) / FeatureBlockCache.BLOCK_SIZE - (gc.getFrom() - 1) / FeatureBlockCache.BLOCK_SIZE + 1;
+        if(nBlocks <= MAX_CACHED_BLOCKS){
+            // Windows larger than this are not cached, no point reading them
+            this.getFeaturesInInterval(gc.getChrom(), gc.getFrom(), gc.getTo());
+        }
+    }
+    
     protected List<IntervalFeature> getFeaturesInInterval(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
 
         if(from < 1){
@@ -148,6 +173,38 @@ public class TrackIntervalFeature extends Track {
             throw new InvalidGenomicCoordsException();
         }        
         
+        int firstBlock= (from - 1) / FeatureBlockCache.BLOCK_SIZE;
+        int lastBlock= (to - 1) / FeatureBlockCache.BLOCK_SIZE;
+        if(lastBlock - firstBlock + 1 > MAX_CACHED_BLOCKS){
+            return this.readFeaturesInInterval(chrom, from, to);
+        }
+        // Concatenate the features of the blocks spanning the interval. Features spanning more than one
+        // block are taken only from the first block where they are found.
+        List<IntervalFeature> xFeatures= new ArrayList<IntervalFeature>();
+        for(int blockIdx= firstBlock; blockIdx <= lastBlock; blockIdx++){
+            int blockStart= blockIdx * FeatureBlockCache.BLOCK_SIZE + 1;
+            List<IntervalFeature> blockFeatures= this.featureCache.get(chrom, blockIdx);
+            if(blockFeatures == null){
+                blockFeatures= this.readFeaturesInInterval(chrom, blockStart, blockStart + FeatureBlockCache.BLOCK_SIZE - 1);
+                this.featureCache.put(chrom, blockIdx, blockFeatures);
+            }
+            for(IntervalFeature x : blockFeatures){
+                if(blockIdx > firstBlock && x.getFrom() < blockStart){
+                    continue; // Already added from the previous block
+                }
+                if(x.getFrom() > to || x.getTo() < from){
+                    continue; // In this block but outside the query interval
+                }
+                xFeatures.add(x);
+            }
+        }
+        return xFeatures;
+    }
+
+    /** Read from file the features overlapping chrom:from-to and apply the filters. 
+     * */
+    private List<IntervalFeature> readFeaturesInInterval(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
+        
         List<IntervalFeature> xFeatures= new ArrayList<IntervalFeature>();
         
         if(this.getTrackFormat().equals(TrackFormat.VCF)){
@@ -232,6 +289,8 @@ public class TrackIntervalFeature extends Track {
             // Awk
             try {
                 passAwk= Utils.passAwkFilter(rawLines, this.getAwk());
+            } catch (UpdateCancelledException e) {
+                throw e;
             } catch (Exception e) {
                 System.err.print(Utils.padEndMultiLine("Error processing awk script.", this.getGc().getUserWindowSize()));
                 try {
@@ -329,12 +388,31 @@ public class TrackIntervalFeature extends Track {
             chroms.remove(startChrom);     
             chroms.add(startChrom);            
         }
-        for(String chrom : chroms){
-            next = this.getNextFeatureOnChrom(chrom, 0); // Use 0 so if the next feature starts at the beginning of the chrom,
-                                                    // i.e. at start=1, it is not missed. See issue #50 
-            if(next != null){
-                return next;
-            }            
+        // Read the chromosomes in parallel. Only grep filters can be applied by the scan, the
+        // others are applied here.
+        Pattern show= this.getShowRegex();
+        if(show != null && show.pattern().equals(Filter.DEFAULT_SHOW_REGEX.getValue())){
+            show= null;
+        }
+        Pattern hide= this.getHideRegex();
+        if(hide != null && (hide.pattern().isEmpty() || hide.pattern().equals(Filter.DEFAULT_HIDE_REGEX.getValue()))){
+            hide= null;
+        }
+        ParallelChromScan scan= new ParallelChromScan(this, chroms, 0, show, hide, true, SCAN_BATCH_SIZE);
+        try{
+            for(int i= 0; i < chroms.size(); i++){
+                // Use 0 so if the next feature starts at the beginning of the chrom,
+                // i.e. at start=1, it is not missed. See issue #50 
+                next= this.firstVisibleFeature(scan.get(i), 0);
+                if(next == null && scan.isTruncated(i)){
+                    next = this.getNextFeatureOnChrom(chroms.get(i), 0);
+                }
+                if(next != null){
+                    return next;
+                }            
+            }
+        } finally {
+            scan.close();
         }
         return null;
     }
@@ -372,10 +450,9 @@ public class TrackIntervalFeature extends Track {
             if(line == null){
                 return null;
             } 
-//            IntervalFeature x= new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
-//            if(x.getFrom() > from && this.featureIsVisible(x.getRaw())){
-//                return x;
-//            }
+            // Nothing visible right after from: The track is sparse or heavily filtered so
+            // use the index to jump over the features known to be invisible.
+            return this.featureStartIndex.next(chrom, from);
         }
     }
 
@@ -409,7 +486,7 @@ public class TrackIntervalFeature extends Track {
         int chunkTo= pos - 1; // -1 because we don't include the current position
         IntervalFeature last= null;
 
-        while(chunkTo > 0){
+        if(chunkTo > 0){
             
             TabixBigBedIterator iter= this.getReader().query(chrom, chunkFrom, chunkTo);
             
@@ -442,16 +519,11 @@ public class TrackIntervalFeature extends Track {
 //                    last= new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
 //                }
             }
-            if(last != null){
-                break; // The last feature is not null and valid. Stop looking 
-            } else {
-                // Move to previous chunk;
-                chunkTo= chunkFrom; 
-                chunkFrom= Math.max(0, chunkFrom-1000000);
-            }
         }
         if(last == null) {
-            return null;
+            // Nothing in the chunk before pos: Rather than reading the chromosome backwards 
+            // chunk by chunk, use the index to find the previous feature. 
+            return this.featureStartIndex.previous(chrom, pos);
         }
         List<IntervalFeature> xLast = new ArrayList<IntervalFeature>();
         xLast.add(last);
@@ -532,40 +604,47 @@ public class TrackIntervalFeature extends Track {
         chromSearchOrder = getChromListStartingAt(currentGc.getChrom());
         
         chromSearchOrder.add(currentGc.getChrom());        
-        for(String curChrom : chromSearchOrder){
-        
-            TabixBigBedIterator iter = this.getReader().query(curChrom , 0, Integer.MAX_VALUE);
-            
-            while(true){
-                String line= iter.next();
-                if(line == null) {
-                    break;
-                }
-                boolean matched= pattern.matcher(line).find();
-                if(matched){
-                    IntervalFeature x= new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
-                    matchedFeatures.add(x);
-                    //if(this.featureIsVisible(x.getRaw())){
-                    //    matchedFeatures.add(x);
-                    //}
-                }
-            }
-            // Now you have all the features matching regex on this chromosome. We need to exclude those that are not visible
-            this.removeInvisibleFeatures(matchedFeatures);
+        BitSet bins= this.getFindCandidates(pattern);
+        ParallelChromScan scan= null;
+        if(bins == null){
+            // No index: Read the chromosomes in parallel
+            scan= new ParallelChromScan(this, chromSearchOrder, 0, pattern, null, false, Integer.MAX_VALUE);
+        }
+        try{
+            for(int i= 0; i < chromSearchOrder.size(); i++){
+                String curChrom= chromSearchOrder.get(i);
             
-            if(matchedFeatures.size() > 0){
-                // At least one feature matching regex found on this chrom.
-                // Check we are at the same position as the beginning. if so, continue to other chroms
-                if(matchedFeatures.get(0).getChrom().equals(currentGc.getChrom()) && 
-                   matchedFeatures.get(0).getFrom() == currentGc.getFrom() &&
-                   matchedFeatures.get(matchedFeatures.size()-1).getTo() == currentGc.getTo()){
-                   // Discard results and keep searching other chroms.
-                    matchedFeatures= new ArrayList<IntervalFeature>();
+                if(bins != null){
+                    // Only read the parts of the file that may contain a match
+                    for(int bin : this.findIndex.binsOnChrom(curChrom, bins, 0)){
+                        matchedFeatures.addAll(this.findIndex.findInBin(this, bin, pattern));
+                    }
                 } else {
-                    break;
+                    for(String line : scan.get(i)){
+                        matchedFeatures.add(this.parseFeature(line));
+                    }
                 }
+                // Now you have all the features matching regex on this chromosome. We need to exclude those that are not visible
+                this.removeInvisibleFeatures(matchedFeatures);
+                
+                if(matchedFeatures.size() > 0){
+                    // At least one feature matching regex found on this chrom.
+                    // Check we are at the same position as the beginning. if so, continue to other chroms
+                    if(matchedFeatures.get(0).getChrom().equals(currentGc.getChrom()) && 
+                       matchedFeatures.get(0).getFrom() == currentGc.getFrom() &&
+                       matchedFeatures.get(matchedFeatures.size()-1).getTo() == currentGc.getTo()){
+                       // Discard results and keep searching other chroms.
+                        matchedFeatures= new ArrayList<IntervalFeature>();
+                    } else {
+                        break;
+                    }
+                }
+            } // Loop chrom
+        } finally {
+            if(scan != null){
+                scan.close();
             }
-        } // Loop chrom
+        }
         return matchedFeatures;
     }
 
@@ -635,42 +714,20 @@ public class TrackIntervalFeature extends Track {
             intervals = flatListOfTx;
         }
         
-        // Make a copy of the IntervalFeature list. Items will be popped out as they are 
-        // added to individual lines. 
-        List<IntervalFeature> flatList= new ArrayList<IntervalFeature>(intervals);
-                
         List<List<IntervalFeature>> listOfLines= new ArrayList<List<IntervalFeature>>();
-        if(flatList.size() == 0){
-            return listOfLines;
+        int[] starts= new int[intervals.size()];
+        int[] ends= new int[intervals.size()];
+        for(int i= 0; i < intervals.size(); i++){
+            starts[i]= intervals.get(i).getScreenFrom();
+            ends[i]= intervals.get(i).getScreenTo();
         }
-        List<IntervalFeature> line= new ArrayList<IntervalFeature>();
-        line.add(flatList.get(0)); 
-        flatList.remove(0);
-        listOfLines.add(line);
-
-        while(true){
-            ArrayList<IntervalFeature> trToRemove= new ArrayList<IntervalFeature>();
-            // Find a read in input whose start is greater then end of current
-            for(int i=0; i < flatList.size(); i++){
-                IntervalFeature intervalFeature= flatList.get(i);
-                // int gap= 1; // Add a space between book-end features
-                if(intervalFeature.getScreenFrom() > line.get(line.size()-1).getScreenTo()+this.getGap()){ // +2 because we want some space between adjacent reads
-                    listOfLines.get(listOfLines.size()-1).add(intervalFeature); // Append to the last line. 
-                    trToRemove.add(intervalFeature);
-                }
-            } // At the end of the loop you have put in line as many reads as you can. 
-            for(IntervalFeature intervalFeature : trToRemove){ 
-                flatList.remove(flatList.indexOf(intervalFeature));
-            }
-            // Create a new line, add the first IntervalFeature in list
-            if(flatList.size() > 0){
-                line= new ArrayList<IntervalFeature>();
-                line.add(flatList.get(0));
-                listOfLines.add(line);
-                flatList.remove(0);
-            } else {
-                break;
+        // Each feature goes to the first line where it starts after the end of the last feature plus gap
+        int[] lineIdx= LinePacker.pack(starts, ends, this.getGap());
+        for(int i= 0; i < intervals.size(); i++){
+            if(lineIdx[i] == listOfLines.size()){
+                listOfLines.add(new ArrayList<IntervalFeature>());
             }
+            listOfLines.get(lineIdx[i]).add(intervals.get(i));
         }
         return listOfLines;
     }
@@ -684,7 +741,7 @@ public class TrackIntervalFeature extends Track {
         
         List<String> printable= new ArrayList<String>(); // Each item in this list occupies a character space in the terminal. 
                                                          // NB: Each item is String not char because it might contain the ansi formatting.
-        for(int i= 0; i < this.getGc().getMapping().size(); i++){ // First create empty line
+        for(int i= 0; i < this.getGc().getScreenMapper().size(); i++){ // First create empty line
             printable.add(" ");
         }
         for(IntervalFeature intervalFeature : listToPrint){
@@ -719,7 +776,7 @@ public class TrackIntervalFeature extends Track {
         
         List<IntervalFeature> flatList= new ArrayList<IntervalFeature>(); 
 
-        List<Double> mapToScreen = this.getGc().getMapping();
+        ScreenMapper mapToScreen = this.getGc().getScreenMapper();
         
         if(this.getTrackFormat().equals(TrackFormat.GFF) || this.getTrackFormat().equals(TrackFormat.GTF)){
 
@@ -812,42 +869,136 @@ public class TrackIntervalFeature extends Track {
         List<String> chromSearchOrder = this.getChromListStartingAt(chrom);
         chromSearchOrder.add(chrom);
         
-        for(String curChrom : chromSearchOrder){
-            
-            TabixBigBedIterator iter= this.getReader().query(curChrom , startingPoint, Integer.MAX_VALUE);
-            List<IntervalFeature> buffer = new ArrayList<IntervalFeature>();
-            
-            while(true){
-                String line= iter.next();
-//                if(line == null) {
-//                    break;
-//                }
-                if(line != null) {
-                    boolean matched= pattern.matcher(line).find();
-                    if(matched){
-                        IntervalFeature x = new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
-                        if(x.getFrom() > startingPoint) {
-                            buffer.add(x);
-                        }
-                        //IntervalFeature x= new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
-                        //if(x.getFrom() > startingPoint && this.featureIsVisible(x.getRaw())){
-                        //    return x;
-                        //}
+        BitSet bins= this.getFindCandidates(pattern);
+        ParallelChromScan scan= null;
+        if(bins == null){
+            // No index: Read the chromosomes in parallel
+            scan= new ParallelChromScan(this, chromSearchOrder, startingPoint, pattern, null, false, SCAN_BATCH_SIZE);
+        }
+        try{
+            for(int i= 0; i < chromSearchOrder.size(); i++){
+                String curChrom= chromSearchOrder.get(i);
+                IntervalFeature next;
+                if(bins != null){
+                    next= this.findNextIndexedMatchOnChrom(pattern, curChrom, startingPoint, bins);
+                } else {
+                    next= this.firstVisibleFeature(scan.get(i), startingPoint);
+                    if(next == null && scan.isTruncated(i)){
+                        next= this.findNextRegexOnChrom(pattern, curChrom, startingPoint);
                     }
                 }
-                if(line == null || buffer.size() > 10) {
-                    this.removeInvisibleFeatures(buffer);
-                    if(buffer.size() > 0) {
-                        return buffer.get(0);
+                if(next != null){
+                    return next;
+                }
+                startingPoint= 0;
+            }
+        } finally {
+            if(scan != null){
+                scan.close();
+            }
+        }
+        return null; // Not found anywhere
+    }
+
+    /** Use the find index to get the first visible feature on chrom matching pattern and starting after startingPoint. */
+    private IntervalFeature findNextIndexedMatchOnChrom(Pattern pattern, String chrom, int startingPoint, BitSet bins) throws IOException, InvalidGenomicCoordsException{
+        // Only read the parts of the file that may contain a match
+        for(int bin : this.findIndex.binsOnChrom(chrom, bins, startingPoint)){
+            List<IntervalFeature> buffer = new ArrayList<IntervalFeature>();
+            for(IntervalFeature x : this.findIndex.findInBin(this, bin, pattern)){
+                if(x.getFrom() > startingPoint) {
+                    buffer.add(x);
+                }
+            }
+            this.removeInvisibleFeatures(buffer);
+            if(buffer.size() > 0) {
+                return buffer.get(0);
+            }
+        }
+        return null;
+    }
+    
+    /** Read chrom from startingPoint to get the first visible feature matching pattern. */
+    private IntervalFeature findNextRegexOnChrom(Pattern pattern, String chrom, int startingPoint) throws IOException, InvalidGenomicCoordsException{
+
+        TabixBigBedIterator iter= this.getReader().query(chrom , startingPoint, Integer.MAX_VALUE);
+        List<IntervalFeature> buffer = new ArrayList<IntervalFeature>();
+        
+        while(true){
+            String line= iter.next();
+            if(line != null) {
+                boolean matched= pattern.matcher(line).find();
+                if(matched){
+                    IntervalFeature x = new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
+                    if(x.getFrom() > startingPoint) {
+                        buffer.add(x);
                     }
                 }
-                if(line == null) {
-                    break;
+            }
+            if(line == null || buffer.size() > 10) {
+                this.removeInvisibleFeatures(buffer);
+                if(buffer.size() > 0) {
+                    return buffer.get(0);
                 }
             }
-            startingPoint= 0;
-        } 
-        return null; // Not found anywhere
+            if(line == null) {
+                return null;
+            }
+        }
+    }
+    
+    /** Parse these lines and return the first feature visible and starting after pos, if any. */
+    private IntervalFeature firstVisibleFeature(List<String> lines, int pos) throws IOException, InvalidGenomicCoordsException{
+        List<IntervalFeature> features= new ArrayList<IntervalFeature>();
+        for(String line : lines){
+            IntervalFeature x= this.parseFeature(line);
+            if(x.getFrom() > pos){
+                features.add(x);
+            }
+        }
+        this.removeInvisibleFeatures(features);
+        return features.size() > 0 ? features.get(0) : null;
+    }
+
+    /** Bins of the find index that may contain a match for this pattern or null if the index
+     * cannot be used and the whole file must be searched. The index is built on first use. 
+     * */
+    private BitSet getFindCandidates(Pattern pattern) throws IOException, InvalidGenomicCoordsException{
+        if( ! Utils.asBoolean(Config.get(ConfigKey.find_index)) || ! FindIndex.isIndexable(pattern) || this.findIndexTooLarge){
+            return null;
+        }
+        if(this.findIndex == null){
+            this.findIndex= FindIndex.open(this);
+            if(this.findIndex == null){
+                this.findIndexTooLarge= true;
+                return null;
+            }
+        }
+        return this.findIndex.candidateBins(pattern);
+    }
+    
+    /** Discard the find index since the work file has changed. */
+    private void clearFindIndex(){
+        FindIndex.delete(this);
+        this.findIndex= null;
+        this.findIndexTooLarge= false;
+    }
+    
+    /** Parse a line of this track's file. */
+    protected IntervalFeature parseFeature(String line) throws InvalidGenomicCoordsException{
+        return new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec(), this.getScoreColIdx());
+    }
+    
+    /** True if grep or awk may hide some of the features. */
+    protected boolean hasVisibilityFilter(){
+        if(this.getShowRegex() != null && ! this.getShowRegex().pattern().equals(Filter.DEFAULT_SHOW_REGEX.getValue())){
+            return true;
+        }
+        if(this.getHideRegex() != null && ! this.getHideRegex().pattern().isEmpty() && 
+           ! this.getHideRegex().pattern().equals(Filter.DEFAULT_HIDE_REGEX.getValue())){
+            return true;
+        }
+        return ! this.getAwk().isEmpty() && ! this.getAwk().equals(Filter.DEFAULT_AWK.getValue());
     }
 
     private VCFCodec getVCFCodec() {
@@ -993,7 +1144,7 @@ public class TrackIntervalFeature extends Track {
      * @throws InvalidGenomicCoordsException 
      * @throws InvalidColourException 
      * */
-    private IntervalFeature collapseGFFTranscript(List<IntervalFeature> txFeatures, List<Double> mapToScreen) throws InvalidGenomicCoordsException, InvalidColourException{
+    private IntervalFeature collapseGFFTranscript(List<IntervalFeature> txFeatures, ScreenMapper mapToScreen) throws InvalidGenomicCoordsException, InvalidColourException{
         
         if(txFeatures.size() == 0){
             System.err.println("Unexpected transcript: Length zero!");
@@ -1100,7 +1251,7 @@ public class TrackIntervalFeature extends Track {
         return x;
     }
     
-    private TabixBigBedReader getReader(){
+    protected TabixBigBedReader getReader(){
         
         if(this.bigBedReader != null && this.tabixReader != null){
             System.err.println("You cannot have both tabix and bigBed readers set!");
@@ -1111,18 +1262,45 @@ public class TrackIntervalFeature extends Track {
             return new TabixBigBedReader(this.bigBedReader);
         } else if(this.tabixReader != null){
             return new TabixBigBedReader(this.tabixReader);
+        } else if(this.intervalTree != null){
+            return new TabixBigBedReader(this.intervalTree);
         } else {
             System.err.println("Tabix and bigBed reader both null.");
             throw new RuntimeException();
         }
     }
 
+    /** A new reader of the work file, independent from the one used by this track so that it
+     * can be used by another thread. To be closed by the caller. */
+    protected TabixBigBedReader openReader() throws IOException{
+        if(this.bigBedReader != null){
+            return new TabixBigBedReader(new BBFileReader(this.getWorkFilename()));
+        }
+        if(this.intervalTree != null){
+            return new TabixBigBedReader(this.intervalTree); // Read-only, can be shared
+        }
+        return new TabixBigBedReader(new TabixReader(this.getWorkFilename()));
+    }
+
+    /** Read the work file in memory. For vcf, the header is read first since it is needed 
+     * to parse the records. */
+    private void readIntervalTree() throws IOException{
+        if(this.getTrackFormat().equals(TrackFormat.VCF)){
+            this.setVcfHeader(Utils.getVCFHeader(this.getWorkFilename()));
+            this.vcfCodec= null;
+        }
+        this.intervalTree= FeatureIntervalTree.read(this.getWorkFilename(), this);
+    }
+
     private TabixReader getTabixReader(String tabixFile) throws IOException {
         return new TabixReader(new File(tabixFile).getAbsolutePath());
     }
     
     /** This setter is for TrackBookmark to work.*/
     protected void setTabixReader(TabixReader tabixReader) {
+        this.featureCache.clear();
+        this.featureStartIndex.clear();
+        this.clearFindIndex();
         this.tabixReader = tabixReader;
     }
     protected TabixReader getTabixReader() {
@@ -1209,14 +1387,43 @@ public class TrackIntervalFeature extends Track {
         }
     }
     
+    @Override
+    public void setShowHideRegex(Pattern showRegex, Pattern hideRegex) throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+        this.featureCache.clear();
+        this.featureStartIndex.clearVisibility();
+        super.setShowHideRegex(showRegex, hideRegex);
+    }
+    
+    @Override
+    public void setAwk(String awk) throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+        this.featureCache.clear();
+        this.featureStartIndex.clearVisibility();
+        super.setAwk(awk);
+    }
+    
+    /** Discard the features read so far. To be called when the file or the way features are 
+     * parsed or filtered change. */
+    protected void clearFeatureCache(){
+        this.featureCache.clear();
+        this.featureStartIndex.clear();
+        this.clearFindIndex();
+    }
+    
     @Override
     public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+        this.featureCache.clear();
+        this.featureStartIndex.clear();
+        this.clearFindIndex();
+        if(this.intervalTree != null){
+            this.readIntervalTree();
+            this.update();
+            return;
+        }
         if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
+            // Use the new copy rather than overwriting the current one: It may be in the 
+            // cache, shared with other tracks and sessions. 
             TrackIntervalFeature tr= new TrackIntervalFeature(this.getFilename(), this.getGc());
-            String fname= this.getWorkFilename();
-            Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            Files.move(Paths.get(tr.getWorkFilename() + FileExtensions.TABIX_INDEX), 
-                    Paths.get(fname + FileExtensions.TABIX_INDEX), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            this.setWorkFilename(tr.getWorkFilename());
         }
         this.tabixReader= this.getTabixReader(this.getWorkFilename());
         this.update();
@@ -1247,6 +1454,7 @@ public class TrackIntervalFeature extends Track {
     }
 
     protected void setScoreColIdx(int scoreColIdx) throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+        this.featureCache.clear();
         this.scoreColIdx = scoreColIdx;
         this.update();
     }
@@ -7,13 +7,9 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Random;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -27,34 +23,31 @@ import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
-import htsjdk.samtools.util.IntervalTree;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapper;
 import samTextViewer.Utils;
 
 /** Collect depth and coverage info over a region of a chromosome
  * */
 public class TrackPileup extends TrackBedgraph {
 
-	/** Key: Position of the locus. Value: information at this position. 
-	 * NB: This is a hashmap so positions are not returned in order. The method(s)
-	 * getDepth(), etc should return a TreeMap for positions to be sorted. Here we use
-	 * HashMap because is faster to build. 
+	/** Read counts at the positions visited so far. Blocks not overlapping the current window
+	 * are discarded on a least recently used basis. 128 blocks is about 500,000 positions.
 	 * */
-	private Map<String, Map<Integer, Locus>> loci= new HashMap<String, Map<Integer, Locus>>();
-	@SuppressWarnings("rawtypes")
-	private Map<String, IntervalTree> zeroDepthIntervals= new HashMap<String, IntervalTree>(); 
+	private PileupCounts pileup= new PileupCounts(128);
 	
 	private List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList= new ArrayList<ScreenWiggleLocusInfo>();
 	private long alnRecCnt= -1;
+	/** Title tag telling whether the coverage pyramid is being prepared */
+	private String pyramidStatus= "";
 	
 	/*        C O N S T R U C T O R         */
 
-	/** Initialize pileup with a list of empty loci at the region given by chrom:from-to
-	 * At the start, the loci map is empty as no information is provided yet. 
-	 * Positions without info (i.e. 0 coverage) are not present in the map at all 
+	/** Initialize pileup at the region given by chrom:from-to
+	 * At the start, the pileup counts are empty as no information is provided yet. 
+	 * Counts are allocated in blocks only where reads are found
 	 * (to save memory and cpu). 
 	 * @throws IOException 
 	 * @throws SQLException 
@@ -67,9 +60,7 @@ public class TrackPileup extends TrackBedgraph {
 		this.setTrackFormat(TrackFormat.BAM);
 		
 		if(!Utils.bamHasIndex(bam)){
-			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
-			Utils.sortAndIndexSamOrBam(bam, temp.getAbsolutePath(), true);
-			this.setWorkFilename(temp.getAbsolutePath());
+			this.setWorkFilename(DerivedFileCache.getSortedBam(bam));
 		} else {
 			this.setWorkFilename(bam);
 		}
@@ -115,7 +106,6 @@ public class TrackPileup extends TrackBedgraph {
 	
 	/*       M E T H O D S        */
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public void update() throws InvalidGenomicCoordsException, IOException{
 		
@@ -124,64 +114,64 @@ public class TrackPileup extends TrackBedgraph {
 		}
 		String chrom= this.getGc().getChrom();
 		
-		if(! this.loci.containsKey(chrom)){
-			this.loci.put(chrom, new HashMap<Integer, Locus>());
-		}
-		if(! this.zeroDepthIntervals.containsKey(chrom)){
-			this.zeroDepthIntervals.put(chrom, new IntervalTree());
+		this.pyramidStatus= "";
+		if(this.getGc().getGenomicWindowSize() >= this.MAX_REGION_SIZE && this.getTitleForActiveFilters().isEmpty()){
+			// Zoomed out: Summarize depth from the coverage pyramid rather than walking every base.
+			// Filters other than the default ones are not in the pyramid so they need the live pileup.
+			CoveragePyramid pyramid= CoveragePyramid.getInstance(this.getFilename(), this.getWorkFilename());
+			int level= CoveragePyramid.getLevel(this.getGc().getScreenMapper().getStep());
+			if(level >= 0 && pyramid.isReady()){
+				this.setScreenScores(this.prepareScreenScoresFromPyramid(pyramid, level));
+				return;
+			}
+			if(level >= 0 && ! pyramid.isFailed()){
+				pyramid.buildInBackground();
+				if( ! pyramid.isFailed()){
+					// Show an empty track until the pyramid is ready
+					this.pyramidStatus= "; building coverage";
+					List<Float> screenScores= new ArrayList<Float>();
+					for(int i= 0; i < this.getGc().getUserWindowSize(); i++){
+						screenScores.add(Float.NaN);
+					}
+					this.setScreenScores(screenScores);
+					return;
+				}
+			}
 		}
-
+		
 		// Check cache is not growing too much
-		if(this.loci.get(chrom).keySet().size() > 500000){
-			this.loci.get(chrom).clear();
-			this.zeroDepthIntervals.get(chrom).clear();
-		}
+		this.pileup.evict(chrom, this.getGc().getFrom(), this.getGc().getTo());
 		
 		// Find the positions that we haven't visited before:
-		List<Integer> missingPos= new ArrayList<Integer>();
-		for(int pos= this.getGc().getFrom(); pos <= this.getGc().getTo(); pos++){
-			if( ! this.loci.get(chrom).containsKey(pos) &&  
-				! this.zeroDepthIntervals.get(chrom).overlappers(pos, pos).hasNext()){
-				missingPos.add(pos);
-			}
-		}
-		for(List<Integer> gap : mergePositionsInIntervals(missingPos)){
+		for(int[] gap : this.pileup.getMissingIntervals(chrom, this.getGc().getFrom(), this.getGc().getTo())){
 
-			int qryFrom= gap.get(0);
-			int qryTo= gap.get(1);
+			int qryFrom= gap[0];
+			int qryTo= gap[1];
 			
-			SamReader samReader= Utils.getSamReader(this.getWorkFilename());
-			List<Boolean> passFilter= this.filterReads(samReader, chrom, qryFrom, qryTo);
-			samReader.close();
-			
-			samReader= Utils.getSamReader(this.getWorkFilename());
-			
-			Iterator<SAMRecord> sam= samReader.query(chrom, qryFrom, qryTo, false);
-	
-			ListIterator<Boolean> pass = passFilter.listIterator();
-			while(sam.hasNext()){
-				SAMRecord rec= sam.next();
-				if(pass.next()){
-					this.add(rec, qryFrom, qryTo, this.loci.get(chrom));
-				}
-			}
-			samReader.close();
-			// Now add the loci that have been collected in this last update
-			List<Integer> zeroDepthPos= new ArrayList<Integer>();
-			for(int pos= qryFrom; pos <= qryTo; pos++){
-				if( ! this.loci.get(chrom).containsKey(pos)){
-					zeroDepthPos.add(pos);
-				}
-			}
-			List<List<Integer>> zeroDepthGaps = mergePositionsInIntervals(zeroDepthPos);
-			for(List<Integer> z : zeroDepthGaps){
-				this.zeroDepthIntervals.get(chrom).put(z.get(0), z.get(1), null);
+			// Count into a scratch pileup first: If the update is cancelled half way through
+			// the gap, the reads already counted must not be added again by the next update.
+			PileupCounts gapCounts= new PileupCounts(Integer.MAX_VALUE);
+			FilteredSamIterator sam= this.filterReads(chrom, qryFrom, qryTo);
+			SAMRecord rec;
+			while((rec= sam.next()) != null){
+				this.add(rec, qryFrom, qryTo, gapCounts);
 			}
+			this.pileup.addAll(gapCounts);
+			// Positions in this gap are now known, whether or not they have coverage
+			this.pileup.setVisited(chrom, qryFrom, qryTo);
 		}
 		List<Float> screenScores= this.prepareScreenScores();
 		this.setScreenScores(screenScores);
 	}
 
+	@Override
+	public void prefetch(GenomicCoords gc) throws IOException, InvalidGenomicCoordsException{
+		if(gc.getGenomicWindowSize() < this.MAX_REGION_SIZE){
+			// Larger windows come from the coverage pyramid
+			AlignmentCache.getInstance().prefetch(this.getWorkFilename(), gc.getChrom(), gc.getFrom(), gc.getTo());
+		}
+	}
+
 	private List<Float> prepareScreenScores() throws InvalidGenomicCoordsException, IOException{
 		// We need to walk along the genomic window spanned by the current coordinates and 
 		// collect depth. Depth as to be binned into screen scores.
@@ -192,8 +182,7 @@ public class TrackPileup extends TrackBedgraph {
 			this.screenWiggleLocusInfoList.add(new ScreenWiggleLocusInfo());
 		}		
 		
-		List<Double> mapping= this.getGc().getMapping();
-		Map<Integer, Integer> depthMap = this.getDepth(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
+		ScreenMapper screenMapper= this.getGc().getScreenMapper();
 		// Winsorise here:
 //		if(this.getWinsorizeMultiple() > 0){
 //			Map<Integer, Float> depthMapWins= depthMap; 
@@ -202,11 +191,13 @@ public class TrackPileup extends TrackBedgraph {
 //				//
 //		}
 		
-		for(int refPos : depthMap.keySet()){
-			int screenIdx= Utils.getIndexOfclosestValue(refPos, mapping);
-			ScreenWiggleLocusInfo sloc = this.screenWiggleLocusInfoList.get(screenIdx);
-			int depth= depthMap.get(refPos);
-			sloc.increment(depth);
+		// Depth goes straight to the screen columns, no need to collect it first
+		String chrom= this.getGc().getChrom();
+		for(int refPos= this.getGc().getFrom(); refPos <= this.getGc().getTo(); refPos++){
+			int depth= this.pileup.getDepth(chrom, refPos);
+			if(depth > 0){
+				this.screenWiggleLocusInfoList.get(screenMapper.getScreenIndex(refPos)).increment(depth);
+			}
 		}
 
 		List<Float> screenScores= new ArrayList<Float>();
@@ -217,15 +208,50 @@ public class TrackPileup extends TrackBedgraph {
 		return screenScores;
 	}
 
+	/** Mean depth of covered positions in each screen column using the bins of this level.
+	 * Bins spanning more than one column are split in proportion to their overlap with
+	 * each column.
+	 * */
+	private List<Float> prepareScreenScoresFromPyramid(CoveragePyramid pyramid, int level) throws IOException{
+		ScreenMapper screenMapper= this.getGc().getScreenMapper();
+		this.screenWiggleLocusInfoList.clear();
+		for(int i= 0; i < screenMapper.size(); i++){
+			this.screenWiggleLocusInfoList.add(new ScreenWiggleLocusInfo());
+		}
+		for(double[] bin : pyramid.getBins(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo(), level)){
+			double binLen= bin[1] - bin[0] + 1;
+			if(bin[3] == 0){
+				continue;
+			}
+			float mean= (float) (bin[2] / bin[3]);
+			int firstIdx= screenMapper.getScreenIndex(bin[0]);
+			int lastIdx= screenMapper.getScreenIndex(bin[1]);
+			for(int screenIdx= firstIdx; screenIdx <= lastIdx; screenIdx++){
+				double from= Math.max(bin[0], screenMapper.getGenomeFrom(screenIdx));
+				double to= Math.min(bin[1], screenMapper.getGenomeTo(screenIdx));
+				if(to < from){
+					continue;
+				}
+				double frac= (to - from + 1) / binLen;
+				this.screenWiggleLocusInfoList.get(screenIdx).increment(bin[3] * frac, bin[2] * frac, mean, mean);
+			}
+		}
+		List<Float> screenScores= new ArrayList<Float>();
+		for(ScreenWiggleLocusInfo screenLocusInfo: this.screenWiggleLocusInfoList){
+			screenScores.add(screenLocusInfo.getMeanScore());
+		}
+		return screenScores;
+	}
+
 	@Override
 	protected List<Float> getScreenScores(){
 		return this.screenScores;
 	}
 	
-	/** Update the given map of loci with the information in this record. Only consider positions
+	/** Update the given pileup counts with the information in this record. Only consider positions
 	 * between qryFrom and qryTo. 
 	 * */
-	private void add(SAMRecord samRecord, int qryFrom, int qryTo, Map<Integer, Locus> accumulator){
+	private void add(SAMRecord samRecord, int qryFrom, int qryTo, PileupCounts accumulator){
 		
 		// Is this read forward or reverse? First or second in pair?
 		boolean isFirstOFPair= ! samRecord.getFirstOfPairFlag();
@@ -264,11 +290,7 @@ public class TrackPileup extends TrackBedgraph {
 				char base= samRecord.getReadBases().length == 0 ? 'N' : (char) samRecord.getReadBases()[readPos-1];				
 
 				// Start collecting info	
-				if( ! accumulator.containsKey(refPos)){
-					// Add this position to the map.
-					accumulator.put(refPos, new Locus(this.getGc().getChrom(), refPos));
-				}
-				accumulator.get(refPos).add(base, isReverse, isFirstOFPair);
+				accumulator.add(samRecord.getReferenceName(), refPos, base, isReverse, isFirstOFPair);
 			}
 		}
 		// Now we need to increment counts corresponding to deletions in the reference
@@ -278,11 +300,7 @@ public class TrackPileup extends TrackBedgraph {
 				if(refPos < qryFrom || refPos > qryTo){
 					continue; // Position is outside user's coordinates.
 				}
-				if( ! accumulator.containsKey(refPos)){
-					// Add this position to the map.
-					accumulator.put(refPos, new Locus(this.getGc().getChrom(), refPos));
-				}
-				accumulator.get(refPos).add('D', isReverse, isFirstOFPair);
+				accumulator.add(samRecord.getReferenceName(), refPos, 'D', isReverse, isFirstOFPair);
 			}
 		}
 	}
@@ -324,28 +342,18 @@ public class TrackPileup extends TrackBedgraph {
 		return deletedBlocks;
 	}
 
-	/** Depth at each position. Key: reference position. Value: depth. 
+	/** Depth at each position with coverage. Key: reference position. Value: depth. 
+	 * Positions are returned sorted. Meant for inspecting small windows, the screen scores
+	 * read the depth directly from the pileup counts.
 	 * @throws IOException 
 	 * */
 	protected Map<Integer, Integer> getDepth(String chrom, int from, int to) throws IOException{
 		
-		List<Integer> posInWindow= new ArrayList<Integer>();  
-		for(int pos : this.loci.get(chrom).keySet()){
-			if(pos < from || pos > to){
-				// Because of locus caching, some loci maybe outside the current window.
-				continue;
-			} else {
-				posInWindow.add(pos);
-			}
-		}
-
-		double samplingRate= (200000.0) / posInWindow.size();
-		Random rand = new Random();
 		// Important: Use have positions returned sorted. 
 		Map<Integer, Integer> depth= new LinkedHashMap<Integer, Integer>();
-		for(int pos : posInWindow){
-			int posDepth= this.loci.get(chrom).get(pos).getDepth();
-			if(rand.nextFloat() < samplingRate){
+		for(int pos= from; pos <= to; pos++){
+			int posDepth= this.pileup.getDepth(chrom, pos);
+			if(posDepth > 0){
 				depth.put(pos, posDepth);			
 			}
 		}
@@ -364,15 +372,12 @@ public class TrackPileup extends TrackBedgraph {
 		char[] consensusSequence= new char[this.getGc().getTo() - this.getGc().getFrom() + 1];
 		int i= 0;
 		for(int pos= this.getGc().getFrom(); pos <= this.getGc().getTo(); pos++){
-			char consensus= ' '; // Empty char assuming there is no coverage.
-			if(this.loci.get(this.getGc().getChrom()).containsKey(pos)){ // If containsKey then the position has coverage.
-				Locus loc= this.loci.get(this.getGc().getChrom()).get(pos);
-				consensus= loc.getConsensus();
-				if(refSeq != null){
-					char ref= Character.toUpperCase((char) refSeq[loc.pos - this.getGc().getFrom()]);
-					if(ref == Character.toUpperCase(consensus)){
-						consensus= '=';
-					}
+			// Empty char if there is no coverage.
+			char consensus= this.pileup.getConsensus(this.getGc().getChrom(), pos);
+			if(consensus != ' ' && refSeq != null){
+				char ref= Character.toUpperCase((char) refSeq[pos - this.getGc().getFrom()]);
+				if(ref == Character.toUpperCase(consensus)){
+					consensus= '=';
 				}
 			}
 			consensusSequence[i]= consensus;
@@ -381,6 +386,28 @@ public class TrackPileup extends TrackBedgraph {
 		return consensusSequence;
 	}
 
+	/** One line for each position in the current window with coverage: chrom, position, 
+	 * depth and counts of A, C, G, T, N and deletions. 
+	 * */
+	@Override
+	public List<String> printPileupList(){
+		List<String> pileupList= new ArrayList<String>();
+		String chrom= this.getGc().getChrom();
+		for(int pos= this.getGc().getFrom(); pos <= this.getGc().getTo(); pos++){
+			int depth= this.pileup.getDepth(chrom, pos);
+			if(depth == 0){
+				continue;
+			}
+			StringBuilder sb= new StringBuilder();
+			sb.append(chrom).append('\t').append(pos).append('\t').append(depth);
+			for(char base : new char[] {'A', 'C', 'G', 'T', 'N', 'D'}){
+				sb.append('\t').append(this.pileup.getCount(chrom, pos, base));
+			}
+			pileupList.add(sb.toString());
+		}
+		return pileupList;
+	}
+	
 	public String getPrintableConsensusSequence() throws IOException, InvalidGenomicCoordsException, InvalidColourException{
 		if( ! this.getGc().isSingleBaseResolution || this.isBisulf()){
 			return "";
@@ -466,7 +493,8 @@ public class TrackPileup extends TrackBedgraph {
 				+ "; range[" + rounded[0] + " " + rounded[1] + "]"
 				+ libsize
 				+ rpmTag
-				+ this.getTitleForActiveFilters();
+				+ this.getTitleForActiveFilters()
+				+ this.pyramidStatus;
 		return this.formatTitle(xtitle) + "\n";
 	}
 
@@ -514,18 +542,18 @@ public class TrackPileup extends TrackBedgraph {
 	}
 
 	private void clearCache(){
-		this.loci.clear(); // clear cached positions
-		this.zeroDepthIntervals.clear();
+		this.pileup.clear(); // clear cached positions
 	}
 	
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
+			// Use the new copy rather than overwriting the current one, possibly in the cache
 			TrackPileup tr= new TrackPileup(this.getFilename(), this.getGc());
-			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename().replaceAll("\\.bam$", ".bai")), Paths.get(fname.replaceAll("\\.bam$", ".bai")), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			AlignmentCache.getInstance().invalidate(this.getWorkFilename());
+			this.setWorkFilename(tr.getWorkFilename());
 		}
+		AlignmentCache.getInstance().invalidate(this.getWorkFilename());
 		this.clearCache();
 		this.update();
 	}
@@ -1,16 +1,17 @@
 package tracks;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.regex.Pattern;
 
@@ -18,11 +19,11 @@ import org.apache.commons.lang3.StringUtils;
 
 import coloring.Config;
 import coloring.ConfigKey;
+import coloring.Xterm256;
 import exceptions.InvalidColourException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
 import samTextViewer.GenomicCoords;
 import samTextViewer.Utils;
 
@@ -36,10 +37,34 @@ public class TrackReads extends Track{
 	private List<List<SamSequenceFragment>> readStack;
 	// private boolean withReadName= false;
 	private long nRecsInWindow= -1;
+	/** Reads per screen column estimated from the bam index when the window is too large to 
+	 * show reads. Null if reads are shown. */
+	private List<Float> estimatedDensity= null;
+	private ReadDensityEstimator densityEstimator= null;
 	private int userWindowSize;
 	private List<Argument> colorForRegex= null;
 	private long alnRecCnt= -1;
 	
+	/** A read selected by the downsampler together with its random key and its 
+	 * position in the input.
+	 * */
+	private static class SampledRead implements Comparable<SampledRead> {
+		private final float key;
+		private final long order;
+		private final SAMRecord rec;
+		
+		private SampledRead(float key, long order, SAMRecord rec){
+			this.key= key;
+			this.order= order;
+			this.rec= rec;
+		}
+
+		@Override
+		public int compareTo(SampledRead other) {
+			return Float.compare(this.key, other.key);
+		}
+	}
+	
 	/* C o n s t r u c t o r s */
 	/**
 	 * Create read track
@@ -58,9 +83,7 @@ public class TrackReads extends Track{
 		this.setTrackFormat(TrackFormat.BAM);
 		
 		if(!Utils.bamHasIndex(bam)){
-			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
-			Utils.sortAndIndexSamOrBam(bam, temp.getAbsolutePath(), true);
-			this.setWorkFilename(temp.getAbsolutePath());
+			this.setWorkFilename(DerivedFileCache.getSortedBam(bam));
 		} else {
 			this.setWorkFilename(bam);
 		}
@@ -84,46 +107,66 @@ public class TrackReads extends Track{
 		this.userWindowSize= this.getGc().getUserWindowSize();
 		
 		this.readStack= new ArrayList<List<SamSequenceFragment>>();
+		this.estimatedDensity= null;
 		if(this.getGc().getGenomicWindowSize() < this.MAX_REGION_SIZE){
 
-			SamReader samReader= Utils.getSamReader(this.getWorkFilename());
-			List<Boolean> passFilter= this.filterReads(samReader, this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
-			samReader.close();
-			
-			this.nRecsInWindow= 0;
-			for(boolean x : passFilter){ // The count of reads in window is the count of reads passing filters
-				if(x){
-					this.nRecsInWindow++;
-				}
-			}
-			samReader= Utils.getSamReader(this.getWorkFilename());
-			Iterator<SAMRecord> sam= samReader.query(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo(), false);
+			FilteredSamIterator sam= this.filterReads(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
 
-			float max_reads= Float.parseFloat(Config.get(ConfigKey.max_reads_in_stack));
-			float probSample= max_reads / this.nRecsInWindow;
+			int max_reads= (int) Float.parseFloat(Config.get(ConfigKey.max_reads_in_stack));
 			
 			// Add this random String to the read name so different screenshot will generate 
 			// different samples. 
 			String rndOffset= Integer.toString(new Random().nextInt());
 
-			List<TextRead> textReads= new ArrayList<TextRead>();
-			ListIterator<Boolean> pass = passFilter.listIterator();
-			while(sam.hasNext() && textReads.size() < max_reads){
-				SAMRecord rec= sam.next();
-				if( pass.next() ){
-					String templ_name= Utils.templateNameFromSamReadName(rec.getReadName());
-					long v= (templ_name + rndOffset).hashCode(); // Hashing.md5().hashBytes((templ_name + rndOffset).getBytes()).asLong();
-					Random rand = new Random(v);
-					if(rand.nextFloat() < probSample){ // Downsampler
-						TextRead tr= new TextRead(rec, this.getGc(), Utils.asBoolean(Config.get(ConfigKey.show_soft_clip)));
-						textReads.add(tr);
-					}
+			// Downsampler: Each template gets a random key and we keep the max_reads reads with the 
+			// smallest keys. Mates have the same key so they are kept or discarded together. 
+			// The queue has the largest key at the head so it's the one to drop when the queue is full.
+			PriorityQueue<SampledRead> sample= new PriorityQueue<SampledRead>(Math.max(1, max_reads), Collections.reverseOrder());
+			this.nRecsInWindow= 0; // The count of reads in window is the count of reads passing filters
+			SAMRecord rec;
+			while((rec= sam.next()) != null){
+				this.nRecsInWindow++;
+				String templ_name= Utils.templateNameFromSamReadName(rec.getReadName());
+				long v= (templ_name + rndOffset).hashCode(); // Hashing.md5().hashBytes((templ_name + rndOffset).getBytes()).asLong();
+				float key= new Random(v).nextFloat();
+				if(sample.size() < max_reads){
+					sample.add(new SampledRead(key, this.nRecsInWindow, rec));
+				} else if(max_reads > 0 && key < sample.peek().key){
+					sample.poll();
+					sample.add(new SampledRead(key, this.nRecsInWindow, rec));
+				}
+			}
+			
+			// Put the sampled reads back in the order they come from the file
+			List<SampledRead> sampled= new ArrayList<SampledRead>(sample);
+			Collections.sort(sampled, new Comparator<SampledRead>() {
+				@Override
+				public int compare(final SampledRead x, final SampledRead y) {
+					return Long.compare(x.order, y.order);
 				}
+			});
+			List<TextRead> textReads= new ArrayList<TextRead>();
+			for(SampledRead x : sampled){
+				TextRead tr= new TextRead(x.rec, this.getGc(), Utils.asBoolean(Config.get(ConfigKey.show_soft_clip)));
+				textReads.add(tr);
 			}
-			samReader.close();
 			this.readStack= stackReads(textReads);
 		} else {
 			this.nRecsInWindow= -1;
+			// Too many reads to show: Give an idea of where they are from the index alone
+			if(this.densityEstimator == null || ! this.densityEstimator.getChrom().equals(this.getGc().getChrom())){
+				this.densityEstimator= ReadDensityEstimator.fromIndex(this.getWorkFilename(), this.getGc().getChrom());
+			}
+			if(this.densityEstimator != null){
+				this.estimatedDensity= this.densityEstimator.estimate(this.getGc().getScreenMapper());
+			}
+		}
+	}
+	
+	@Override
+	public void prefetch(GenomicCoords gc) throws IOException, InvalidGenomicCoordsException{
+		if(gc.getGenomicWindowSize() < this.MAX_REGION_SIZE){
+			AlignmentCache.getInstance().prefetch(this.getWorkFilename(), gc.getChrom(), gc.getFrom(), gc.getTo());
 		}
 	}
 	
@@ -136,6 +179,10 @@ public class TrackReads extends Track{
 		
 		int yMaxLines= (this.getyMaxLines() < 0) ? Integer.MAX_VALUE : this.getyMaxLines();;
 		
+		if(this.estimatedDensity != null && yMaxLines > 0){
+			return this.printEstimatedDensity(Math.min(yMaxLines, 5));
+		}
+		
 		// If there are more lines (inner lists) than desired lines of output (yMaxLines), get a representative sample
 		List<Double> keep= new ArrayList<Double>();
 		if(this.readStack.size() == 0){
@@ -160,6 +207,22 @@ public class TrackReads extends Track{
 		return printable.toString().replaceAll("\n$", "");
 	}
 	
+	/** Profile of the read density estimated from the index, as for coverage tracks.
+	 * */
+	private String printEstimatedDensity(int nLines) throws InvalidColourException{
+		TextProfile textProfile= new TextProfile(this.estimatedDensity, nLines, Float.NaN, Float.NaN);
+		List<String> lineStrings= new ArrayList<String>();
+		for(int i= (textProfile.getProfile().size() - 1); i >= 0; i--){
+			lineStrings.add(StringUtils.join(textProfile.getProfile().get(i), ""));
+		}
+		String printable= StringUtils.join(lineStrings, "\n");
+		if( ! this.isNoFormat()){
+			printable= "\033[48;5;" + Config.get256Color(ConfigKey.background) + ";38;5;"
+					+ Xterm256.colorNameToXterm256(this.getTitleColour()) + "m" + printable;
+		}
+		return printable;
+	}
+	
 	/**		
 	 * Put in the same list reads that will go in the same line of text 
 	 * Example Input, a list of TextRead's:
@@ -183,33 +246,20 @@ public class TrackReads extends Track{
 		}
 
 		List<SamSequenceFragment> fragments= this.makeFragments(textReads, this.getReadsAsPairs()); 
-		List<SamSequenceFragment> line= new ArrayList<SamSequenceFragment>(); // All fragments going in the same line
-		line.add(fragments.get(0)); 
-		fragments.remove(0);
-		listOfLines.add(line);
 		int gap= (this.getGc().isSingleBaseResolution) ? 1 : 0; // If reads are very compressed, do not add space between adjacent ones.
-		while(true){
-			ArrayList<SamSequenceFragment> fragToRemove= new ArrayList<SamSequenceFragment>();
-			// Find a fragment in input whose start is greater then end of current
-			for(int i=0; i < fragments.size(); i++){
-				SamSequenceFragment frag= fragments.get(i);
-				if(frag.getTextStart() > line.get(line.size()-1).getTextEnd()+gap){ // +2 because we want some space between adjacent reads
-					listOfLines.get(listOfLines.size()-1).add(frag); // Append to the last line. 
-					fragToRemove.add(frag);
-				}
-			} // At the end of the loop you have put in line as many reads as you can. 
-			for(SamSequenceFragment tr : fragToRemove){ 
-				fragments.remove(fragments.indexOf(tr));
-			}
-			// Create a new line, add the first textRead in list
-			if(fragments.size() > 0){
-				line= new ArrayList<SamSequenceFragment>();
-				line.add(fragments.get(0));
-				listOfLines.add(line);
-				fragments.remove(0);
-			} else {
-				break;
+		int[] starts= new int[fragments.size()];
+		int[] ends= new int[fragments.size()];
+		for(int i= 0; i < fragments.size(); i++){
+			starts[i]= fragments.get(i).getTextStart();
+			ends[i]= fragments.get(i).getTextEnd();
+		}
+		// Each fragment goes to the first line where it starts after the end of the last fragment plus gap
+		int[] lineIdx= LinePacker.pack(starts, ends, gap);
+		for(int i= 0; i < fragments.size(); i++){
+			if(lineIdx[i] == listOfLines.size()){
+				listOfLines.add(new ArrayList<SamSequenceFragment>());
 			}
+			listOfLines.get(lineIdx[i]).add(fragments.get(i));
 		}
 		return listOfLines;
 	}
@@ -223,10 +273,35 @@ public class TrackReads extends Track{
 
 		List<SamSequenceFragment> fragments= new ArrayList<SamSequenceFragment>();
 
-		while(textReads.size() > 0){
-			// Keep going until all reads have been moved to the list of fragments.
-			TextRead tr= textReads.get(0);
-			textReads.remove(0);
+		// Index of candidate mates: Key is the template name and the position of the mate, value
+		// is the index of the reads with that key in input order. A read is the mate of the
+		// reads whose name and start match the key.
+		Map<String, ArrayDeque<Integer>> mateIndex= new HashMap<String, ArrayDeque<Integer>>();
+		String[] names= new String[textReads.size()];
+		if(asPair){
+			for(int i= 0; i < textReads.size(); i++){
+				SAMRecord rec= textReads.get(i).getSamRecord();
+				if( ! rec.getProperPairFlag()){
+					continue;
+				}
+				names[i]= Utils.cleanSamReadName(rec.getReadName());
+				String key= names[i] + '\t' + rec.getMateAlignmentStart();
+				ArrayDeque<Integer> idx= mateIndex.get(key);
+				if(idx == null){
+					idx= new ArrayDeque<Integer>(2);
+					mateIndex.put(key, idx);
+				}
+				idx.add(i);
+			}
+		}
+
+		boolean[] used= new boolean[textReads.size()];
+		for(int i= 0; i < textReads.size(); i++){
+			if(used[i]){
+				continue; // Already paired with a previous read
+			}
+			used[i]= true;
+			TextRead tr= textReads.get(i);
 			if( ! asPair || ! tr.getSamRecord().getProperPairFlag()){
 				SamSequenceFragment frag= new SamSequenceFragment(tr);
 				if(! asPair){ 
@@ -235,13 +310,15 @@ public class TrackReads extends Track{
 				fragments.add(frag);
 			}
 			else {
-				// Find the mate of this read, if present.
+				// Find the mate of this read, if present: The first read after this one not
+				// already paired with the same name and mate start equal to this read start.
 				TextRead mate= null;
-				for(TextRead candidateMate : textReads){
-					if(candidateMate.getSamRecord().getProperPairFlag() && 
-					   Utils.equalReadNames(tr.getSamRecord().getReadName(), candidateMate.getSamRecord().getReadName()) &&
-					   tr.getSamRecord().getAlignmentStart() == candidateMate.getSamRecord().getMateAlignmentStart()){
-						mate= candidateMate;
+				ArrayDeque<Integer> idx= mateIndex.get(names[i] + '\t' + tr.getSamRecord().getAlignmentStart());
+				while(idx != null && ! idx.isEmpty()){
+					int j= idx.pollFirst();
+					if( ! used[j]){
+						mate= textReads.get(j);
+						used[j]= true;
 						break;
 					}
 				} // After this loop either we have found a mate or not. Either way, create a fragment from a singleton or a pair.
@@ -249,7 +326,6 @@ public class TrackReads extends Track{
 					fragments.add(new SamSequenceFragment(tr));
 				} else {
 					fragments.add(new SamSequenceFragment(tr, mate));
-					textReads.remove(mate);
 				}
 			}
 		}
@@ -323,8 +399,16 @@ public class TrackReads extends Track{
 		if(this.alnRecCnt != -1){
 			libsize= "/" + this.alnRecCnt;
 		}
+		String nReads= String.valueOf(this.nRecsInWindow);
+		if(this.estimatedDensity != null){
+			float tot= 0;
+			for(float x : this.estimatedDensity){
+				tot += x;
+			}
+			nReads= "~" + Math.round(tot) + " estimated from index";
+		}
 		String xtitle= this.getTrackTag() 
-				+ "; Reads: " + this.nRecsInWindow + libsize 
+				+ "; Reads: " + nReads + libsize 
 				+ this.getTitleForActiveFilters(); 
 		return this.formatTitle(xtitle) + "\n";
 	}
@@ -433,11 +517,13 @@ public class TrackReads extends Track{
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
+			// Use the new copy rather than overwriting the current one, possibly in the cache
 			TrackReads tr= new TrackReads(this.getFilename(), this.getGc());
-			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename().replaceAll("\\.bam$", ".bai")), Paths.get(fname.replaceAll("\\.bam$", ".bai")), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			AlignmentCache.getInstance().invalidate(this.getWorkFilename());
+			this.setWorkFilename(tr.getWorkFilename());
 		}
+		AlignmentCache.getInstance().invalidate(this.getWorkFilename());
+		this.densityEstimator= null;
 		this.update();
 	}
 
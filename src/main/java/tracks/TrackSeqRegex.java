@@ -49,7 +49,7 @@ public class TrackSeqRegex extends TrackIntervalFeature {
 
 		this.findRegex();
 		for(IntervalFeature ift : this.getIntervalFeatureList()){
-			ift.mapToScreen(this.getGc().getMapping());
+			ift.mapToScreen(this.getGc().getScreenMapper());
 		}
 	}
 	
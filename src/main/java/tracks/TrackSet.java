@@ -714,6 +714,37 @@ public class TrackSet {
         }
     }
 
+    public void setWiggleStatisticForRegex(List<String> tokens) throws InvalidCommandLineException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+
+        List<String> args= new ArrayList<String>(tokens);
+        args.remove(0); // remove command name
+
+        WiggleStatistic stat= WiggleStatistic.MEAN; // Default if no statistic is given
+        for(WiggleStatistic x : WiggleStatistic.values()){
+            String opt= "-" + x.toString().toLowerCase();
+            if(args.contains(opt)){
+                stat= x;
+                args.remove(opt);
+            }
+        }
+        boolean invertSelection= Utils.argListContainsFlag(args, "-v");
+        
+        // Regex to capture tracks: Everything left after removing command name and args:
+        List<String> trackNameRegex= new ArrayList<String>();
+        if(args.size() > 0){
+            trackNameRegex.addAll(args);
+        } else {
+            trackNameRegex.add(".*"); // Default: Capture everything
+        }
+                
+        List<Track> tracksToReset = this.matchTracks(trackNameRegex, true, invertSelection);
+        for(Track tr : tracksToReset){
+            if(tr.getTrackFormat().equals(TrackFormat.BIGWIG)){
+                tr.setWiggleStatistic(stat);
+            }
+        }
+    }
+
     public void setGenotypeMatrix(List<String> cmdTokens) throws InvalidCommandLineException {
         List<String> argList= new ArrayList<String>(cmdTokens);
         argList.remove(0);
@@ -3,12 +3,17 @@ package tracks;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BBZoomLevelHeader;
 import org.broad.igv.bbfile.BigWigIterator;
 import org.broad.igv.bbfile.WigItem;
+import org.broad.igv.bbfile.ZoomDataRecord;
+import org.broad.igv.bbfile.ZoomLevelIterator;
 import org.broad.igv.tdf.TDFDataset;
 import org.broad.igv.tdf.TDFGroup;
 import org.broad.igv.tdf.TDFReader;
@@ -23,15 +28,31 @@ import coloring.Xterm256;
 import exceptions.InvalidColourException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import exceptions.UpdateCancelledException;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapper;
 import samTextViewer.Utils;
 
 /** Process wiggle file formats. Mostly using IGV classes. 
  * bigBed, bigWig, */
 public class TrackWiggles extends Track {
 
+    /** Number of data bins in each tile of the TDF zoom levels, as set by igvtools */
+    private static final int TDF_BINS_PER_TILE= 700;
+    /** Max number of TDF tiles kept in memory */
+    private static final int TDF_TILE_CACHE_SIZE= 256;
+
     private List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList;
     private BBFileReader bigWigReader;
+    private TDFReader tdfReader;
+    /** Tiles read from the TDF file. Key is dataset name and tile number. */
+    private Map<String, TDFTile> tdfTileCache= new LinkedHashMap<String, TDFTile>(16, 0.75f, true){
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TDFTile> eldest){
+            return this.size() > TDF_TILE_CACHE_SIZE;
+        }
+    };
     
     /* C o n s t r u c t o r s */
     protected TrackWiggles(String filename, GenomicCoords gc, TrackFormat trackFormat) throws IOException, InvalidRecordException, InvalidGenomicCoordsException, ClassNotFoundException, SQLException{
@@ -46,6 +67,10 @@ public class TrackWiggles extends Track {
                 throw new RuntimeException("Invalid file type " + this.getWorkFilename());
             }
         }
+        if(this.getTrackFormat().equals(TrackFormat.TDF)){
+            // Not TDFReader.getReader(): Readers from there are shared and closing one would close it for all tracks
+            this.tdfReader= new TDFReader(new ResourceLocator(this.getWorkFilename()));
+        }
         this.setGc(gc);
     }
     
@@ -60,6 +85,10 @@ public class TrackWiggles extends Track {
         if(this.bigWigReader != null){
             this.bigWigReader.close();
         }
+        if(this.tdfReader != null){
+            this.tdfReader.close();
+        }
+        this.tdfTileCache.clear();
     }
     
     @Override
@@ -78,11 +107,19 @@ public class TrackWiggles extends Track {
         }
     }
 
+    @Override
+    public void prefetch(GenomicCoords gc) throws IOException, InvalidGenomicCoordsException {
+        if(this.getTrackFormat().equals(TrackFormat.TDF)){
+            // Only TDF tiles are cached
+            this.tdfRangeToScreen(gc.getChrom(), gc.getFrom(), gc.getTo(), gc.getScreenMapper());
+        }
+    }
+    
     private void updateTDF() throws InvalidGenomicCoordsException, IOException{
         
         this.screenWiggleLocusInfoList= 
-                this.tdfRangeToScreen(this.getWorkFilename(), this.getGc().getChrom(), 
-                        this.getGc().getFrom(), this.getGc().getTo(), this.getGc().getMapping());
+                this.tdfRangeToScreen(this.getGc().getChrom(), 
+                        this.getGc().getFrom(), this.getGc().getTo(), this.getGc().getScreenMapper());
         
         List<Float> screenScores= new ArrayList<Float>();
         for(ScreenWiggleLocusInfo x : screenWiggleLocusInfoList){
@@ -97,64 +134,98 @@ public class TrackWiggles extends Track {
     
     /** Fetch data in tdf file in given range and puts it in a list of ScreenWiggleLocusInfo. 
      * a Adapted from dumpRange. Really it should implement iterator.
-     * @param genomeToScreenMapping Typically from GenomicCoords.getMapping() 
+     * @param screenMapper Typically from GenomicCoords.getScreenMapper() 
      * 
      * @author berald01
      * */
-    private List<ScreenWiggleLocusInfo> tdfRangeToScreen(String ibfFile, String chrom, int startLocation, int endLocation, List<Double> genomeToScreenMapping) {
+    private List<ScreenWiggleLocusInfo> tdfRangeToScreen(String chrom, int startLocation, int endLocation, ScreenMapper screenMapper) throws UpdateCancelledException {
 
         List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList= new ArrayList<ScreenWiggleLocusInfo>();
-        for(int i= 0; i < genomeToScreenMapping.size(); i++){
+        for(int i= 0; i < screenMapper.size(); i++){
             screenWiggleLocusInfoList.add(new ScreenWiggleLocusInfo());
         }
 
-        TDFReader reader = TDFReader.getReader(ibfFile);
+        String dsName= this.getTDFDatasetName(chrom, screenMapper.getStep());
+        if(dsName == null){ // Not the right chrom or track
+            return screenWiggleLocusInfoList;
+        }
+        TDFDataset ds = this.tdfReader.getDataset(dsName);
 
-        for (String dsName : reader.getDatasetNames()) {
+        int tileWidth = ds.getTileWidth();
+        int startTile = startLocation / tileWidth;
+        int endTile = endLocation / tileWidth;
 
+        for (int tileNumber = startTile; tileNumber <= endTile; tileNumber++) {
+            Track.checkCancelled();
+            TDFTile tile = this.readTDFTile(ds, dsName, tileNumber);
+            if (tile == null) {
+                // System.out.println("Null tile: " + dsName + " [" + tileNumber + "]");
+            } else {
+                int nTracks = this.tdfReader.getTrackNames().length;
+                if(nTracks > 1){
+                    throw new RuntimeException("More than one track found in tdf file " + this.getWorkFilename());
+                }
+                int nBins = tile.getSize();
+                if (nBins > 0) {
+                    for (int b = 0; b < nBins; b++) {
+                        int start = tile.getStartPosition(b);
+                        int end = tile.getEndPosition(b);
+                        if (start > endLocation) {
+                            break;
+                        }
+                        if (end >= startLocation) {
+                            int tileStartPos= tile.getStartPosition(b);
+                            float tileValue= tile.getValue(0, b);
+                            int idx= screenMapper.getScreenIndex(tileStartPos+1); // Where should this position be mapped on screen?
+                            screenWiggleLocusInfoList.get(idx).increment(tileValue);
+
+                        }
+                    } // End process bins in this tile
+                }
+            } // End process this tile
+        } // End iter tiles
+        return screenWiggleLocusInfoList;
+    }
+    
+    /** Name of the TDF dataset to read for this chromosome given the number of bp per screen
+     * column. Datasets are named /chrom/raw for the raw data and /chrom/z<N>/mean for the 
+     * zoom levels, where each tile of level N has TDF_BINS_PER_TILE bins. Return the zoom level 
+     * with the largest bins not exceeding bpPerColumn or the raw data if no zoom level has bins
+     * small enough. Return null if there is no data for this chromosome.
+     * */
+    private String getTDFDatasetName(String chrom, double bpPerColumn){
+        String rawName= null;
+        String zoomName= null;
+        double zoomBinSize= 0;
+        for (String dsName : this.tdfReader.getDatasetNames()) {
             String[] tokens = dsName.split("/");
-            String chrName = tokens[1];
-            if(!chrName.equals(chrom) || !dsName.contains("raw")){ // Not the right chrom or track
+            if(tokens.length < 3 || ! tokens[1].equals(chrom)){
                 continue;
             }
-
-            TDFDataset ds = reader.getDataset(dsName);
-
-            int tileWidth = ds.getTileWidth();
-            int startTile = startLocation / tileWidth;
-            int endTile = endLocation / tileWidth;
-
-            for (int tileNumber = startTile; tileNumber <= endTile; tileNumber++) {
-                TDFTile tile = reader.readTile(ds, tileNumber);
-                if (tile == null) {
-                    // System.out.println("Null tile: " + dsName + " [" + tileNumber + "]");
-                } else {
-                    int nTracks = reader.getTrackNames().length;
-                    if(nTracks > 1){
-                        throw new RuntimeException("More than one track found in tdf file " + ibfFile);
-                    }
-                    int nBins = tile.getSize();
-                    if (nBins > 0) {
-                        for (int b = 0; b < nBins; b++) {
-                            int start = tile.getStartPosition(b);
-                            int end = tile.getEndPosition(b);
-                            if (start > endLocation) {
-                                break;
-                            }
-                            if (end >= startLocation) {
-                                int tileStartPos= tile.getStartPosition(b);
-                                float tileValue= tile.getValue(0, b);
-                                int idx= Utils.getIndexOfclosestValue(tileStartPos+1, genomeToScreenMapping); // Where should this position be mapped on screen?
-                                screenWiggleLocusInfoList.get(idx).increment(tileValue);
-
-                            }
-                        } // End process bins in this tile
-                    }
-                } // End process this tile
-            } // End iter tiles
-        } // End iter datasets names
-        reader.close();
-        return screenWiggleLocusInfoList;
+            if(tokens[2].equals("raw")){
+                rawName= dsName;
+            } 
+            else if(tokens.length == 4 && tokens[2].startsWith("z") && tokens[3].equals("mean")){
+                double binSize= (double)this.tdfReader.getDataset(dsName).getTileWidth() / TDF_BINS_PER_TILE;
+                if(binSize <= bpPerColumn && binSize > zoomBinSize){
+                    zoomName= dsName;
+                    zoomBinSize= binSize;
+                }
+            }
+        }
+        return zoomName != null ? zoomName : rawName;
+    }
+    
+    /** Read tile from the TDF file or from the cache if already read. 
+     * */
+    private TDFTile readTDFTile(TDFDataset ds, String dsName, int tileNumber){
+        String key= dsName + '\t' + tileNumber;
+        if(this.tdfTileCache.containsKey(key)){
+            return this.tdfTileCache.get(key);
+        }
+        TDFTile tile= this.tdfReader.readTile(ds, tileNumber);
+        this.tdfTileCache.put(key, tile); // Null tiles are cached as well
+        return tile;
     }
     
     @Override
@@ -209,15 +280,22 @@ public class TrackWiggles extends Track {
         String ymin= this.getYLimitMin().isNaN() ? "auto" : this.getYLimitMin().toString();
         String ymax= this.getYLimitMax().isNaN() ? "auto" : this.getYLimitMax().toString();
         
+        String stat= "";
+        if(this.getTrackFormat().equals(TrackFormat.BIGWIG) && ! this.getWiggleStatistic().equals(WiggleStatistic.MEAN)){
+            stat= "; " + this.getWiggleStatistic().toString().toLowerCase();
+        }
+        
         String xtitle= this.getTrackTag() 
                 + "; ylim[" + ymin + " " + ymax + "]" 
-                + "; range[" + rounded[0] + " " + rounded[1] + "]";
+                + "; range[" + rounded[0] + " " + rounded[1] + "]"
+                + stat;
         
         // xtitle= Utils.padEndMultiLine(xtitle, this.getGc().getUserWindowSize());
         return this.formatTitle(xtitle) + "\n";
     }
     
-    /** Populate object using bigWig data 
+    /** Populate object using bigWig data. If the file has a zoom level with resolution 
+     * suitable for the current window, read the zoom records instead of the raw data. 
      * @throws IOException 
      * @throws InvalidGenomicCoordsException */
     private void bigWigToScores(BBFileReader reader) throws InvalidGenomicCoordsException, IOException{
@@ -228,21 +306,77 @@ public class TrackWiggles extends Track {
             screenWigLocInfoList.add(new ScreenWiggleLocusInfo());
         }
 
-        BigWigIterator iter = reader.getBigWigIterator(getGc().getChrom(), getGc().getFrom(), getGc().getChrom(), getGc().getTo(), false);
-        while(iter.hasNext()){
-            WigItem bw = iter.next();
-            for(int i= bw.getStartBase(); i <= bw.getEndBase(); i++){
-                int idx= Utils.getIndexOfclosestValue(i, this.getGc().getMapping()); // Where should this position be mapped on screen?
-                screenWigLocInfoList.get(idx).increment(bw.getWigValue());
-            } 
+        ScreenMapper screenMapper= this.getGc().getScreenMapper();
+        int zoomLevel= this.getBigWigZoomLevel(reader, screenMapper.getStep());
+        if(zoomLevel > 0){
+            this.bigWigZoomToScreen(reader, zoomLevel, screenMapper, screenWigLocInfoList);
+        } else {
+            BigWigIterator iter = reader.getBigWigIterator(getGc().getChrom(), getGc().getFrom(), getGc().getChrom(), getGc().getTo(), false);
+            while(iter.hasNext()){
+                Track.checkCancelled();
+                WigItem bw = iter.next();
+                for(int i= bw.getStartBase(); i <= bw.getEndBase(); i++){
+                    int idx= screenMapper.getScreenIndex(i); // Where should this position be mapped on screen?
+                    screenWigLocInfoList.get(idx).increment(bw.getWigValue());
+                } 
+            }
         }
         List<Float> screenScores= new ArrayList<Float>();
         for(ScreenWiggleLocusInfo x : screenWigLocInfoList){
-            screenScores.add((float)x.getMeanScore());
+            screenScores.add(x.getScore(this.getWiggleStatistic()));
         }
         this.setScreenScores(screenScores);        
     }
     
+    /** Return the zoom level of the bigWig file best suited to show bpPerColumn bases in
+     * each screen column, i.e. the level with the largest reduction not exceeding bpPerColumn.
+     * Return -1 if the raw data should be used, because no zoom level is coarse enough or
+     * the file has no zoom levels.
+     * */
+    private int getBigWigZoomLevel(BBFileReader reader, double bpPerColumn){
+        if(reader.getZoomLevelCount() == 0 || reader.getZoomLevels() == null){
+            return -1;
+        }
+        int zoomLevel= -1;
+        int bestReduction= 0;
+        for(BBZoomLevelHeader header : reader.getZoomLevels().getZoomLevelHeaders()){
+            int reduction= header.getReductionLevel();
+            if(reduction <= bpPerColumn && reduction > bestReduction){
+                zoomLevel= header.getZoomLevel();
+                bestReduction= reduction;
+            }
+        }
+        return zoomLevel;
+    }
+    
+    /** Add to the screen loci the zoom records of this zoom level overlapping the current window.
+     * A record spanning more than one screen column is split between columns in proportion
+     * to the overlap.
+     * */
+    private void bigWigZoomToScreen(BBFileReader reader, int zoomLevel, ScreenMapper screenMapper, List<ScreenWiggleLocusInfo> screenWigLocInfoList){
+        ZoomLevelIterator iter= reader.getZoomLevelIterator(zoomLevel, getGc().getChrom(), getGc().getFrom() - 1, getGc().getChrom(), getGc().getTo(), false);
+        while(iter.hasNext()){
+            ZoomDataRecord rec= iter.next();
+            if(rec.getBasesCovered() == 0){
+                continue;
+            }
+            // Zoom records are 0-based, end exclusive. Convert to 1-based, end inclusive.
+            int recFrom= rec.getChromStart() + 1;
+            int recTo= rec.getChromEnd();
+            int recLen= recTo - recFrom + 1;
+            int first= screenMapper.getScreenIndex(recFrom);
+            int last= screenMapper.getScreenIndex(recTo);
+            for(int idx= first; idx <= last; idx++){
+                int overlap= Math.min(recTo, screenMapper.getGenomeTo(idx)) - Math.max(recFrom, screenMapper.getGenomeFrom(idx)) + 1;
+                if(overlap <= 0){
+                    continue; // Part of the record outside the window
+                }
+                double frac= (double)overlap / recLen;
+                screenWigLocInfoList.get(idx).increment(rec.getBasesCovered() * frac, rec.getSumData() * frac, rec.getMinVal(), rec.getMaxVal());
+            }
+        }
+    }
+    
     private List<Float> normalizeToRpm(List<Float> screenScores){
         ArrayList<Float> rpmed= new ArrayList<Float>();
         String x= this.getAttributesFromTDF("totalCount");
@@ -259,12 +393,8 @@ public class TrackWiggles extends Track {
     
     private String getAttributesFromTDF(String attr){
         
-        String path= this.getWorkFilename();
-        
         try{
-            ResourceLocator resourceLocator= new ResourceLocator(path);
-            TDFReader reader= new TDFReader(resourceLocator);
-            TDFGroup rootGroup= reader.getGroup("/");
+            TDFGroup rootGroup= this.tdfReader.getGroup("/");
             return rootGroup.getAttribute(attr);
         } catch(Exception e){
             return null;
@@ -276,9 +406,7 @@ public class TrackWiggles extends Track {
         
         if(this.getTrackFormat().equals(TrackFormat.TDF)){
 
-            ResourceLocator resourceLocator= new ResourceLocator(this.getWorkFilename());
-            TDFReader reader= new TDFReader(resourceLocator);
-            List<String> chroms= new ArrayList<String>(reader.getChromosomeNames());
+            List<String> chroms= new ArrayList<String>(this.tdfReader.getChromosomeNames());
             if(chroms.get(0).equals("All")){
                 chroms.remove(0);
             }
@@ -317,8 +445,20 @@ public class TrackWiggles extends Track {
         return "";
     }
     
+    @Override
+    public void setWiggleStatistic(WiggleStatistic wiggleStatistic) throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+        super.setWiggleStatistic(wiggleStatistic);
+        this.update();
+    }
+    
     @Override
     public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+        if(this.tdfReader != null){
+            // File may have changed: Discard tiles and reopen
+            this.tdfReader.close();
+            this.tdfTileCache.clear();
+            this.tdfReader= new TDFReader(new ResourceLocator(this.getWorkFilename()));
+        }
         this.update();
     }
 
@@ -0,0 +1,6 @@
+package tracks;
+
+/** Summary statistic of the data values mapped to each screen column of wiggle-like tracks */
+public enum WiggleStatistic {
+	MEAN, MIN, MAX, COUNT
+}
@@ -18,6 +18,7 @@ import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import jline.console.ConsoleReader;
+import tracks.Track;
 import tracks.TrackSet;
 
 public class InteractiveInputTest {
@@ -176,4 +177,37 @@ public class InteractiveInputTest {
 		assertEquals("chr1:6-26", region);
 	}
 	
+	@Test
+	public void canCancelCommand() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidCommandLineException, InvalidConfigException {
+
+		new Config(null);
+		GenomicCoords gc= new GenomicCoords("chr7:5566000-5570000", 80, null, null);
+		GenomicCoordsHistory gch= new GenomicCoordsHistory();
+		gch.add(gc);
+		ArrayList<String> files= new ArrayList<String>();
+		files.add("test_data/ds051.actb.bam");
+		TrackSet trackSet= new TrackSet(files, gc);
+		TrackProcessor proc= new TrackProcessor(trackSet, gch);
+		InteractiveInput ip= new InteractiveInput(new ConsoleReader());
+
+		// As if the user pressed Ctrl-C while moving: Go back to where we were
+		Track.setUpdatesCancelled(true);
+		try{
+			ip.processInput("goto chr7:5500000-5600000", proc, 0);
+		} finally {
+			Track.setUpdatesCancelled(false);
+		}
+		assertEquals(ExitCode.ERROR, ip.getInteractiveInputExitCode());
+		assertEquals("chr7:5566000-5570000", proc.getGenomicCoordsHistory().current().toStringRegion());
+		for(Track tr : trackSet.getTrackList()){
+			assertTrue(tr.isStale());
+		}
+
+		// Stale tracks are updated even if the position did not change
+		ip.processInput("+0", proc, 0);
+		assertEquals(ExitCode.CLEAN, ip.getInteractiveInputExitCode());
+		for(Track tr : trackSet.getTrackList()){
+			assertFalse(tr.isStale());
+		}
+	}
 }
@@ -0,0 +1,69 @@
+package samTextViewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import coloring.Config;
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import tracks.Track;
+import tracks.TrackSet;
+
+public class PrefetcherTest {
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	@Test
+	public void canPredictNextWindows() throws InvalidGenomicCoordsException, IOException{
+		GenomicCoordsHistory gch= new GenomicCoordsHistory();
+		gch.add(new GenomicCoords("chr7:1001-2000", 80, null, null));
+		gch.add(new GenomicCoords("chr7:5001-6000", 80, null, null));
+
+		List<GenomicCoords> windows= Prefetcher.predictNext(gch.current(), gch.getRecent(1));
+		assertEquals(4, windows.size());
+		assertEquals("chr7:5501-6500", windows.get(0).toStringRegion());
+		assertEquals("chr7:4501-5500", windows.get(1).toStringRegion());
+		assertEquals("chr7:4501-6501", windows.get(2).toStringRegion());
+		assertEquals("chr7:1001-2000", windows.get(3).toStringRegion());
+		// Current window is not changed
+		assertEquals("chr7:5001-6000", gch.current().toStringRegion());
+
+		// Windows equal to the current one are skipped
+		gch.add(new GenomicCoords("chr7:5001-6000", 80, null, null));
+		for(GenomicCoords gc : Prefetcher.predictNext(gch.current(), gch.getRecent(5))){
+			assertTrue( ! gc.equalCoords(gch.current()));
+		}
+	}
+
+	@Test
+	public void canCancelPrefetching() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
+		GenomicCoords gc= new GenomicCoords("chr7:5566000-5570000", 80, null, null);
+		GenomicCoordsHistory gch= new GenomicCoordsHistory();
+		gch.add(gc);
+		List<String> files= new ArrayList<String>();
+		files.add("test_data/ds051.actb.bam");
+		TrackSet trackSet= new TrackSet(files, gc);
+
+		Prefetcher prefetcher= new Prefetcher();
+		prefetcher.start(trackSet, gch);
+		prefetcher.cancel();
+		// Tracks are still usable after cancelling
+		for(Track tr : trackSet.getTrackList()){
+			tr.update();
+			assertTrue(tr.printToScreen().length() > 0);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package samTextViewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ScreenMapperTest {
+
+	@Test
+	public void canMapSameAsClosestValue(){
+		List<Double> seq = Utils.seqFromToLenOut(10, 50, 5);
+		ScreenMapper sm= new ScreenMapper(seq);
+		assertEquals(2, sm.getScreenIndex(30));
+		assertEquals(3, sm.getScreenIndex(35)); // Halfway between columns: Take the rightmost
+		assertEquals(2, sm.getScreenIndex(29));
+		assertEquals(4, sm.getScreenIndex(50));
+		assertEquals(0, sm.getScreenIndex(3));
+		assertEquals(4, sm.getScreenIndex(100));
+
+		Random rnd= new Random(1234);
+		for(int rep= 0; rep < 200; rep++){
+			int from= rnd.nextInt(1000000) + 1;
+			int to= from + rnd.nextInt(rep % 2 == 0 ? 200 : 10000000);
+			int size= rnd.nextInt(300) + 2;
+			List<Double> mapping= Utils.seqFromToLenOut(from, to, size);
+			sm= new ScreenMapper(mapping);
+			assertEquals(size, sm.size());
+			for(int i= 0; i < 500; i++){
+				double pos= from - 10 + rnd.nextInt(to - from + 20);
+				assertEquals(Utils.getIndexOfclosestValue(pos, mapping), sm.getScreenIndex(pos));
+			}
+			for(int i= 0; i < size; i++){
+				double pos= mapping.get(i);
+				assertEquals(Utils.getIndexOfclosestValue(pos, mapping), sm.getScreenIndex(pos));
+			}
+		}
+	}
+
+	@Test
+	public void canGetGenomicRangeOfColumns(){
+		List<Double> mapping= Utils.seqFromToLenOut(101, 1100, 80);
+		ScreenMapper sm= new ScreenMapper(mapping);
+		assertEquals(101, sm.getGenomeFrom(0));
+		assertEquals(1100, sm.getGenomeTo(79));
+		int prevTo= 100;
+		for(int i= 0; i < sm.size(); i++){
+			// Ranges are contiguous and each base in range maps back to this column
+			assertEquals(prevTo + 1, sm.getGenomeFrom(i));
+			assertTrue(sm.getGenomeTo(i) >= sm.getGenomeFrom(i));
+			for(int pos= sm.getGenomeFrom(i); pos <= sm.getGenomeTo(i); pos++){
+				assertEquals(i, sm.getScreenIndex(pos));
+			}
+			prevTo= sm.getGenomeTo(i);
+		}
+	}
+
+	@Test
+	public void canMapFromGenomicCoords() throws Exception{
+		GenomicCoords gc= new GenomicCoords("chr1:101-110", 80, null, null);
+		ScreenMapper sm= gc.getScreenMapper();
+		assertEquals(10, sm.size());
+		assertEquals(101.0, sm.getGenomePosition(0), 0.01);
+		assertEquals(3, sm.getScreenIndex(104));
+		assertEquals(104, sm.getGenomeFrom(3));
+		assertEquals(104, sm.getGenomeTo(3));
+	}
+}
@@ -1,25 +1,38 @@
 package samTextViewer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.google.common.io.Files;
 import com.itextpdf.text.DocumentException;
 
 import coloring.Config;
+import coloring.ConfigKey;
 import exceptions.BamIndexNotFoundException;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import tracks.Track;
+import tracks.TrackReads;
 import tracks.TrackSet;
 
 public class TrackProcessorTest {
 
+	@Rule
+	public TemporaryFolder tmp= new TemporaryFolder();
+
 	@Test
 	public void canProcessTracks() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, BamIndexNotFoundException, InvalidRecordException, SQLException, InvalidConfigException, InvalidCommandLineException, DocumentException, InvalidColourException{
 
@@ -40,4 +53,69 @@ public class TrackProcessorTest {
 		new TrackProcessor(trackSet, gch); 
 		// tp.iterateTracks();
 	}
+	@Test
+	public void canUpdateTracksInParallel() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidConfigException, InvalidCommandLineException, DocumentException, InvalidColourException{
+
+		new Config(null);
+
+		List<String> files= new ArrayList<String>();
+		files.add("test_data/ds051.actb.bam");
+		files.add("test_data/refSeq.hg19.bed.gz");
+		files.add("test_data/batch_actb.bed");
+
+		List<String> screens= new ArrayList<String>();
+		for(String nThreads : new String[] {"1", "4"}){
+			Config.set(ConfigKey.update_threads, nThreads);
+			GenomicCoordsHistory gch= new GenomicCoordsHistory();
+			gch.add(new GenomicCoords("chr7:5560000-5600000", 80, null, null));
+			TrackSet trackSet= new TrackSet(files, gch.current());
+			TrackProcessor proc= new TrackProcessor(trackSet, gch);
+			gch.add(new GenomicCoords("chr7:5566000-5570000", 80, null, null));
+			proc.iterateTracks();
+			StringBuilder sb= new StringBuilder();
+			for(Track tr : trackSet.getTrackList()){
+				assertTrue(tr.getGc().equalCoords(gch.current()));
+				if( ! (tr instanceof TrackReads)){ // Reads are stacked in random order 
+					sb.append(tr.printToScreen());
+				}
+			}
+			screens.add(sb.toString());
+		}
+		assertTrue(screens.get(0).length() > 0);
+		assertEquals(screens.get(0), screens.get(1));
+		new Config(null);
+	}
+
+	@Test
+	public void canReportFailureOfOneTrack() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidConfigException, InvalidCommandLineException, DocumentException, InvalidColourException{
+
+		new Config(null);
+		Config.set(ConfigKey.update_threads, "4");
+
+		// Move a file away after loading the track so that it fails when moving to the next window
+		File bam= tmp.newFile("tmp.bam");
+		Files.copy(new File("test_data/ds051.actb.bam"), bam);
+		Files.copy(new File("test_data/ds051.actb.bam.bai"), new File(bam.getPath() + ".bai"));
+
+		List<String> files= new ArrayList<String>();
+		files.add("test_data/batch_actb.bed");
+		files.add(bam.getPath());
+		GenomicCoordsHistory gch= new GenomicCoordsHistory();
+		gch.add(new GenomicCoords("chr7:5560000-5600000", 80, null, null));
+		TrackSet trackSet= new TrackSet(files, gch.current());
+		TrackProcessor proc= new TrackProcessor(trackSet, gch);
+
+		bam.delete();
+		gch.add(new GenomicCoords("chr7:50000000-50001000", 80, null, null));
+		boolean pass= false;
+		try{
+			proc.iterateTracks();
+		} catch(Exception e){
+			pass= true;
+		}
+		assertTrue(pass);
+		// The other track has been updated anyway
+		assertTrue(trackSet.getTrackList().get(0).getGc().equalCoords(gch.current()));
+		new Config(null);
+	}
 }
@@ -43,6 +43,7 @@ import faidx.UnindexableFastaFileException;
 import filter.FirstOfPairFilter;
 import filter.FlagToFilter;
 import filter.ReadNegativeStrandFilter;
+import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -54,6 +55,7 @@ import htsjdk.variant.vcf.VCFHeader;
 import jline.console.ConsoleReader;
 import jline.console.history.History;
 import jline.console.history.MemoryHistory;
+import sortBgzipIndex.ParallelBlockCompressedOutputStream;
 import tracks.IntervalFeature;
 import tracks.TrackFormat;
 import utils.Tokenizer;
@@ -272,6 +274,9 @@ public class UtilsTest {
         assertTrue( ! Utils.equalReadNames("foo", "bar"));
         assertTrue( ! Utils.equalReadNames("foo/1foo", "foo/2foo"));
         assertTrue( ! Utils.equalReadNames("/1", "/2"));
+        
+        assertEquals("foo", Utils.cleanSamReadName("foo/1 index1"));
+        assertEquals("/1", Utils.cleanSamReadName("/1"));
     }
     
     @Test
@@ -296,6 +301,44 @@ public class UtilsTest {
 
     }
     
+    @Test
+    public void canSortAndIndexBamOnManyThreads() throws IOException{
+        int nThreads= ParallelBlockCompressedOutputStream.getDefaultThreads();
+        try{
+            ParallelBlockCompressedOutputStream.setDefaultThreads(1);
+            Utils.sortAndIndexSamOrBam("test_data/ds051.noindex.bam", "sorted3.bam", true);
+            ParallelBlockCompressedOutputStream.setDefaultThreads(3);
+            Utils.sortAndIndexSamOrBam("test_data/ds051.noindex.bam", "sorted4.bam", true);
+        } finally {
+            ParallelBlockCompressedOutputStream.setDefaultThreads(nThreads);
+        }
+        assertTrue(new File("sorted4.bai").length() > 1000);
+
+        SamReader expected= srf.open(new File("sorted3.bam"));
+        SamReader observed= srf.open(new File("sorted4.bam"));
+        assertTrue(observed.hasIndex());
+        int n= 0;
+        for(int pos : new int[] {1, 1000000, 3000000, 5566000, 5566700}){
+            List<String> x= new ArrayList<String>();
+            SAMRecordIterator iter= expected.query("chr7", pos, pos + 1000, false);
+            while(iter.hasNext()){
+                x.add(iter.next().getSAMString());
+            }
+            iter.close();
+            List<String> y= new ArrayList<String>();
+            iter= observed.query("chr7", pos, pos + 1000, false);
+            while(iter.hasNext()){
+                y.add(iter.next().getSAMString());
+            }
+            iter.close();
+            assertEquals(x, y);
+            n += y.size();
+        }
+        assertTrue(n > 0);
+        expected.close();
+        observed.close();
+    }
+    
     @Test
     public void roundNumber(){
         assertEquals(10.12, Utils.round(10.123, 2), 0.000001);
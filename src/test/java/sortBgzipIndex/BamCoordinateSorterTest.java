@@ -0,0 +1,102 @@
+package sortBgzipIndex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import samTextViewer.Utils;
+
+public class BamCoordinateSorterTest {
+
+	private SamReader open(File bam){
+		SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(bam);
+		reader.getFileHeader().setSortOrder(SortOrder.coordinate);
+		return reader;
+	}
+
+	/** Sort with htsjdk */
+	private File htsjdkSort(File in) throws IOException{
+		File out= Utils.createTempFile(".asciigenome.", ".expected.bam", true);
+		new File(out.getAbsolutePath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+		SamReader reader= this.open(in);
+		SAMFileWriter writer= new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(reader.getFileHeader(), false, out);
+		for(SAMRecord rec : reader){
+			writer.addAlignment(rec);
+		}
+		reader.close();
+		writer.close();
+		return out;
+	}
+
+	private File bai(File bam){
+		return new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai"));
+	}
+
+	@Test
+	public void canSortAndIndexSameAsHtsjdk() throws IOException{
+
+		File in= new File("test_data/ds051.actb.bam");
+		File expected= this.htsjdkSort(in);
+
+		// Small chunks are written to disk and merged
+		for(long maxChunkBytes : new long[] {100000000, 200000}){
+			for(int nThreads : new int[] {1, 3}){
+				File observed= Utils.createTempFile(".asciigenome.", ".observed.bam", true);
+				this.bai(observed).deleteOnExit();
+				SamReader reader= this.open(in);
+				BamCoordinateSorter sorter= new BamCoordinateSorter(reader.getFileHeader(), nThreads, maxChunkBytes);
+				for(SAMRecord rec : reader){
+					sorter.add(rec);
+				}
+				reader.close();
+				sorter.write(observed, this.bai(observed));
+				sorter.close();
+
+				assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(observed.toPath()));
+				assertArrayEquals(Files.readAllBytes(this.bai(expected).toPath()), Files.readAllBytes(this.bai(observed).toPath()));
+			}
+		}
+	}
+
+	private List<String> query(File bam) throws IOException{
+		List<String> reads= new ArrayList<String>();
+		SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(bam);
+		SAMRecordIterator iter= reader.query("chr7", 5566000, 5567000, false);
+		while(iter.hasNext()){
+			reads.add(iter.next().getSAMString());
+		}
+		iter.close();
+		reader.close();
+		return reads;
+	}
+
+	@Test
+	public void canSortSamLines() throws IOException{
+
+		File expected= this.htsjdkSort(new File("test_data/ds051.noindex.sam"));
+		File observed= Utils.createTempFile(".asciigenome.", ".observed.bam", true);
+		Utils.sortAndIndexSamOrBam("test_data/ds051.noindex.sam", observed.getAbsolutePath(), true);
+
+		assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(observed.toPath()));
+
+		List<String> reads= this.query(observed);
+		assertTrue(reads.size() > 0);
+		assertEquals(this.query(expected), reads);
+	}
+}
@@ -0,0 +1,91 @@
+package sortBgzipIndex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import samTextViewer.Utils;
+
+public class ChromPosSorterTest {
+
+	private List<String> readAll(ChromPosSorter sorter) throws IOException{
+		List<String> sorted= new ArrayList<String>();
+		String line;
+		while((line= sorter.readLine()) != null){
+			sorted.add(line);
+		}
+		sorter.close();
+		return sorted;
+	}
+
+	@Test
+	public void canSortInChunks() throws IOException{
+
+		List<String> lines= new ArrayList<String>();
+		BufferedReader br= Utils.reader("test_data/refSeq.hg19.bed.gz");
+		String line;
+		while((line= br.readLine()) != null){
+			lines.add(line);
+		}
+		br.close();
+		Collections.shuffle(lines, new Random(1));
+
+		ChromPosSorter inMemory= new ChromPosSorter(0, 1, 2);
+		ChromPosSorter onDisk= new ChromPosSorter(0, 1, 2, 100000);
+		for(String x : lines){
+			inMemory.add(x);
+			onDisk.add(x);
+		}
+		List<String> expected= this.readAll(inMemory);
+		assertEquals(lines.size(), expected.size());
+		assertEquals(expected, this.readAll(onDisk));
+
+		for(int i= 1; i < expected.size(); i++){
+			String[] prev= expected.get(i - 1).split("\t");
+			String[] curr= expected.get(i).split("\t");
+			int cmp= prev[0].compareTo(curr[0]);
+			assertEquals(true, cmp < 0 || (cmp == 0 && Integer.parseInt(prev[1]) <= Integer.parseInt(curr[1])));
+		}
+	}
+
+	@Test
+	public void canKeepHeaderAndTiesInInputOrder() throws IOException{
+
+		String[] lines= new String[] {
+				"chr2 10 . A C",
+				"##fileformat=VCFv4.2",
+				"chr1 10 id1 A C",
+				"chr1 5 . A C",
+				"#CHROM POS ID REF ALT",
+				"chr1 10 id2 A C",
+				"invalid",
+				"chr1 10 id3 A C",
+		};
+		ChromPosSorter sorter= new ChromPosSorter(0, 1, -1, 1); // One chunk per line
+		for(String x : lines){
+			sorter.add(x.replaceAll(" ", "\t"));
+		}
+		List<String> sorted= this.readAll(sorter);
+		String[] expected= new String[] {
+				"##fileformat=VCFv4.2",
+				"#CHROM POS ID REF ALT",
+				"invalid",
+				"chr1 5 . A C",
+				"chr1 10 id1 A C",
+				"chr1 10 id2 A C",
+				"chr1 10 id3 A C",
+				"chr2 10 . A C",
+		};
+		assertEquals(expected.length, sorted.size());
+		for(int i= 0; i < expected.length; i++){
+			assertEquals(expected[i].replaceAll(" ", "\t"), sorted.get(i));
+		}
+	}
+}
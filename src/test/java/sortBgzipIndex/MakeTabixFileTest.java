@@ -3,12 +3,19 @@ package sortBgzipIndex;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
 import exceptions.InvalidGenomicCoordsException;
@@ -180,6 +187,39 @@ public class MakeTabixFileTest {
 		
 	}
 
+	@Test
+	public void canSortFileOutOfOrderAfterManyLines() throws IOException, InvalidRecordException, ClassNotFoundException, SQLException {
+		
+		// Sorted up to the last line. Lines already written are sorted with the rest.
+		File infile= new File("test_data/tmp.late_unsorted.bed");
+		infile.deleteOnExit();
+		String sorted= Files.toString(new File("test_data/refSeq.hg19.short.sort.bed"), Charsets.UTF_8);
+		Files.write("#header\n" + sorted + "chr1\t1\t10\tlate\n", infile, Charsets.UTF_8);
+		
+		File outfile= new File("test_data/tmp.late_unsorted.bed.gz");
+		outfile.deleteOnExit();
+		File expectedTbi= new File(outfile.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION); 
+		expectedTbi.deleteOnExit();
+
+		new MakeTabixIndex(infile.getAbsolutePath(), outfile, TabixFormat.BED);
+		
+		List<String> lines= new ArrayList<String>();
+		BufferedReader br= new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(outfile))));
+		String line;
+		while((line= br.readLine()) != null){
+			lines.add(line);
+		}
+		br.close();
+		assertEquals(12, lines.size());
+		assertEquals("#header", lines.get(0));
+		assertEquals("chr1\t1\t10\tlate", lines.get(1));
+
+		TabixReader tbx = new TabixReader(outfile.getAbsolutePath());
+		Iterator x = tbx.query("chr1", 1, 10);
+		assertTrue(x.next().endsWith("late"));
+		tbx.close();
+	}
+	
 	@Test
 	public void canCompressAndIndexSortedGzipFile() throws IOException, InvalidRecordException, ClassNotFoundException, SQLException {
 		
@@ -0,0 +1,103 @@
+package sortBgzipIndex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import samTextViewer.Utils;
+
+public class ParallelBlockCompressedOutputStreamTest {
+
+	private List<byte[]> testData() throws IOException{
+		List<byte[]> data= new ArrayList<byte[]>();
+		BufferedReader br= Utils.reader("test_data/refSeq.hg19.bed.gz");
+		String line;
+		while((line= br.readLine()) != null){
+			data.add((line + "\n").getBytes());
+		}
+		br.close();
+		// Incompressible data larger than a block
+		byte[] random= new byte[200000];
+		new Random(1).nextBytes(random);
+		data.add(random);
+		data.add("last line\n".getBytes());
+		return data;
+	}
+
+	@Test
+	public void canWriteSameAsHtsjdk() throws IOException{
+
+		List<byte[]> data= this.testData();
+		for(int nThreads : new int[] {1, 3}){
+			File expected= Utils.createTempFile(".asciigenome.", ".expected.gz", true);
+			File observed= Utils.createTempFile(".asciigenome.", ".observed.gz", true);
+			BlockCompressedOutputStream htsjdk= new BlockCompressedOutputStream(expected);
+			ParallelBlockCompressedOutputStream parallel= new ParallelBlockCompressedOutputStream(observed, nThreads);
+
+			List<Long> expectedPointers= new ArrayList<Long>();
+			List<Long> logicalPointers= new ArrayList<Long>();
+			int i= 0;
+			for(byte[] x : data){
+				expectedPointers.add(htsjdk.getFilePointer());
+				logicalPointers.add(parallel.getFilePointer());
+				if(i % 2 == 0){
+					htsjdk.write(x);
+					parallel.write(x);
+				} else {
+					for(byte b : x){
+						htsjdk.write(b);
+						parallel.write(b);
+					}
+				}
+				i++;
+			}
+			htsjdk.flush();
+			parallel.flush();
+			expectedPointers.add(htsjdk.getFilePointer());
+			logicalPointers.add(parallel.getFilePointer());
+			htsjdk.close();
+			parallel.close();
+
+			assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(observed.toPath()));
+			for(int j= 0; j < expectedPointers.size(); j++){
+				assertEquals((long) expectedPointers.get(j), parallel.toVirtualFilePointer(logicalPointers.get(j)));
+			}
+		}
+	}
+
+	@Test
+	public void canSeekToVirtualFilePointer() throws IOException{
+
+		File bgzf= Utils.createTempFile(".asciigenome.", ".test.gz", true);
+		ParallelBlockCompressedOutputStream writer= new ParallelBlockCompressedOutputStream(bgzf, 4);
+		List<Long> pointers= new ArrayList<Long>();
+		for(int i= 0; i < 100000; i++){
+			pointers.add(writer.getFilePointer());
+			writer.write(("line " + i + "\n").getBytes());
+		}
+		writer.flush();
+		List<Long> virtual= new ArrayList<Long>();
+		for(long x : pointers){
+			virtual.add(writer.toVirtualFilePointer(x));
+		}
+		writer.close();
+
+		BlockCompressedInputStream in= new BlockCompressedInputStream(bgzf);
+		for(int i= 0; i < 100000; i += 997){
+			in.seek(virtual.get(i));
+			assertEquals("line " + i, in.readLine());
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,69 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import samTextViewer.Utils;
+
+public class AlignmentCacheTest {
+
+	private List<String> queryFile(String bam, String chrom, int from, int to) throws IOException{
+		SamReader samReader= Utils.getSamReader(bam);
+		SAMRecordIterator sam= samReader.query(chrom, from, to, false);
+		List<String> recs= new ArrayList<String>();
+		while(sam.hasNext()){
+			recs.add(sam.next().getSAMString());
+		}
+		samReader.close();
+		return recs;
+	}
+
+	private List<String> queryCache(AlignmentCache cache, String bam, String chrom, int from, int to){
+		Iterator<SAMRecord> sam= cache.query(bam, chrom, from, to);
+		List<String> recs= new ArrayList<String>();
+		while(sam.hasNext()){
+			recs.add(sam.next().getSAMString());
+		}
+		return recs;
+	}
+
+	@Test
+	public void canReturnSameRecordsAsQuery() throws IOException{
+		AlignmentCache cache= new AlignmentCache(Long.MAX_VALUE);
+		String bam= "test_data/ds051.actb.bam";
+
+		// Window spanning several blocks
+		List<String> expected= this.queryFile(bam, "chr7", 5520000, 5600000);
+		assertTrue(expected.size() > 100);
+		assertEquals(expected, this.queryCache(cache, bam, "chr7", 5520000, 5600000));
+
+		// Sub-windows are served from the blocks already cached
+		int nBlocks= cache.size();
+		assertEquals(this.queryFile(bam, "chr7", 5566736, 5566856), this.queryCache(cache, bam, "chr7", 5566736, 5566856));
+		assertEquals(this.queryFile(bam, "chr7", 5570560, 5570561), this.queryCache(cache, bam, "chr7", 5570560, 5570561));
+		assertEquals(nBlocks, cache.size());
+
+		assertEquals(0, this.queryCache(cache, bam, "chr7", 1, 1000).size());
+
+		cache.invalidate(bam);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void canEvictBlocksOverBudget() throws IOException{
+		AlignmentCache cache= new AlignmentCache(1);
+		String bam= "test_data/ds051.actb.bam";
+		// Nothing fits in the budget but records are still returned
+		assertEquals(this.queryFile(bam, "chr7", 5520000, 5600000), this.queryCache(cache, bam, "chr7", 5520000, 5600000));
+	}
+}
@@ -0,0 +1,132 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import coloring.Config;
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import samTextViewer.GenomicCoords;
+
+public class CoveragePyramidTest {
+
+	@Rule
+	public TemporaryFolder tmp= new TemporaryFolder();
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	@Before
+	public void setCacheDir(){
+		// Pyramids from getInstance() must not go to the user's cache
+		DerivedFileCache.setCacheDir(tmp.getRoot());
+	}
+
+	@After
+	public void resetCacheDir(){
+		DerivedFileCache.setCacheDir(null);
+	}
+
+	@Test
+	public void canSummarizeDepthInBins() throws IOException, ClassNotFoundException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		String bam= "test_data/ds051.actb.bam";
+		CoveragePyramid pyramid= new CoveragePyramid(bam, bam, tmp.getRoot());
+		assertFalse(pyramid.isReady());
+		pyramid.build();
+		assertTrue(pyramid.isReady());
+		assertEquals(1, tmp.getRoot().listFiles().length); // Only the sidecar, no temporary file left
+		assertTrue(DerivedFileCache.isCached(tmp.getRoot().listFiles()[0]));
+
+		// Compare with the depth from the pileup, walking every base
+		int from= 5560001;
+		int to= 5610000;
+		GenomicCoords gc= new GenomicCoords("chr7:" + from + "-" + to, 80, null, null);
+		TrackPileup tp= new TrackPileup(bam, gc);
+		int bp= CoveragePyramid.BIN_SIZES[0];
+		List<double[]> bins= pyramid.getBins("chr7", from, to, 0);
+		assertTrue(bins.size() > 10);
+		for(double[] bin : bins){
+			if(bin[0] < from || bin[1] > to){
+				continue;
+			}
+			Map<Integer, Integer> depth= tp.getDepth("chr7", (int)bin[0], (int)bin[1]);
+			long sum= 0;
+			for(int d : depth.values()){
+				sum += d;
+			}
+			assertEquals(bin[1] - bin[0] + 1, bp, 0);
+			assertEquals(sum, bin[2], 0.01);
+			assertEquals(depth.size(), bin[3], 0);
+		}
+
+		// Coarser levels are sums of finer ones
+		double sum0= 0;
+		for(double[] bin : pyramid.getBins("chr7", 1, 159138663, 0)){
+			sum0 += bin[2];
+		}
+		double sum2= 0;
+		for(double[] bin : pyramid.getBins("chr7", 1, 159138663, 2)){
+			sum2 += bin[2];
+		}
+		assertTrue(sum0 > 0);
+		assertEquals(sum0, sum2, sum0 * 1e-5);
+
+		// The sidecar file is reused by another instance
+		assertTrue(new CoveragePyramid(bam, bam, tmp.getRoot()).isReady());
+		assertEquals(0, pyramid.getBins("nonsense", 1, 1000, 0).size());
+	}
+
+	@Test
+	public void canChooseLevel(){
+		assertEquals(-1, CoveragePyramid.getLevel(10));
+		assertEquals(0, CoveragePyramid.getLevel(1024));
+		assertEquals(1, CoveragePyramid.getLevel(100000));
+		assertEquals(2, CoveragePyramid.getLevel(1e9));
+	}
+
+	@Test
+	public void cannotBuildFromUrl(){
+		CoveragePyramid pyramid= new CoveragePyramid("http://nonsense/x.bam", "http://nonsense/x.bam", tmp.getRoot());
+		pyramid.buildInBackground();
+		assertTrue(pyramid.isFailed());
+		assertFalse(pyramid.isReady());
+	}
+
+	@Test
+	public void canShowPyramidWhenZoomedOut() throws IOException, ClassNotFoundException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException, InterruptedException{
+		GenomicCoords gc= new GenomicCoords("chr7:1-20000000", 80, null, null);
+		TrackPileup tp= new TrackPileup("test_data/ds051.actb.bam", gc);
+		tp.update(); // Starts building the pyramid, unless already done
+		CoveragePyramid pyramid= CoveragePyramid.getInstance(tp.getFilename(), tp.getWorkFilename());
+		while(pyramid.isBuilding()){
+			Thread.sleep(100);
+		}
+		tp.update();
+		assertFalse(tp.getTitle().contains("building"));
+		float max= 0;
+		for(float x : tp.getScreenScores()){
+			if( ! Float.isNaN(x)){
+				max= Math.max(max, x);
+			}
+		}
+		assertTrue(max > 0);
+	}
+}
@@ -0,0 +1,159 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import samTextViewer.GenomicCoords;
+
+public class DerivedFileCacheTest {
+
+	@Rule
+	public TemporaryFolder tmp= new TemporaryFolder();
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	@Before
+	public void setCacheDir() throws IOException{
+		DerivedFileCache.setCacheDir(tmp.newFolder("cache"));
+	}
+
+	@After
+	public void resetConfig() throws InvalidColourException{
+		DerivedFileCache.setCacheDir(null);
+		Config.set(ConfigKey.cache_max_mb, "10240");
+		Config.set(ConfigKey.in_memory_max_kb, "1024");
+	}
+
+	@Test
+	public void canReuseSortedCopy() throws IOException, InvalidRecordException, ClassNotFoundException, SQLException, InvalidGenomicCoordsException, InvalidColourException{
+		File bed= tmp.newFile("unsorted.bed");
+		Files.copy(new File("test_data/refSeq.hg19.short.sort-2.bed").toPath(), bed.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+		File cached= new File(DerivedFileCache.getTabixIndexed(bed.getAbsolutePath(), TabixFormat.BED));
+		assertEquals(new File(tmp.getRoot(), "cache"), cached.getParentFile());
+		assertTrue(cached.getName().endsWith(".bed.gz"));
+		assertTrue(new File(cached.getAbsolutePath() + FileExtensions.TABIX_INDEX).isFile());
+		// Temporary files moved in place
+		assertEquals(2, new File(tmp.getRoot(), "cache").list().length);
+
+		// Made again only if missing
+		Files.write(cached.toPath(), "reused".getBytes());
+		assertEquals(cached.getAbsolutePath(), DerivedFileCache.getTabixIndexed(bed.getAbsolutePath(), TabixFormat.BED));
+		assertEquals("reused", new String(Files.readAllBytes(cached.toPath())));
+
+		// A modified file gets a new copy
+		assertTrue(bed.setLastModified(bed.lastModified() - 10000));
+		assertFalse(cached.getAbsolutePath().equals(DerivedFileCache.getTabixIndexed(bed.getAbsolutePath(), TabixFormat.BED)));
+
+		// Tracks use the cache
+		Config.set(ConfigKey.in_memory_max_kb, "0");
+		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature(bed.getAbsolutePath(), gc);
+		assertEquals(new File(tmp.getRoot(), "cache"), new File(tif.getWorkFilename()).getParentFile());
+
+		// Find index kept with the cached copy
+		assertTrue(DerivedFileCache.isCached(new File(tif.getWorkFilename())));
+		FindIndex.open(tif);
+		File findIndex= new File(tif.getWorkFilename() + ".find");
+		assertTrue(findIndex.isFile());
+
+		// Cache disabled: Use tmp file
+		Config.set(ConfigKey.cache_max_mb, "0");
+		tif= new TrackIntervalFeature(bed.getAbsolutePath(), gc);
+		assertFalse(new File(tmp.getRoot(), "cache").equals(new File(tif.getWorkFilename()).getParentFile()));
+		assertFalse(DerivedFileCache.isCached(new File(tif.getWorkFilename())));
+	}
+
+	private File makeEntry(String name, long lastModified) throws IOException{
+		File f= new File(new File(tmp.getRoot(), "cache"), name);
+		Files.write(f.toPath(), new byte[600 * 1024]);
+		assertTrue(f.setLastModified(lastModified));
+		return f;
+	}
+
+	@Test
+	public void canDeleteLeastRecentlyUsed() throws IOException, InvalidColourException{
+		long hour= 60 * 60 * 1000;
+		long now= System.currentTimeMillis();
+		String md5= "0123456789abcdef0123456789abcde";
+		File oldest= this.makeEntry("a.bed." + md5 + "0.bed.gz", now - 4 * hour);
+		File oldestTbi= this.makeEntry("a.bed." + md5 + "0.bed.gz.tbi", now - 4 * hour);
+		File oldestFind= this.makeEntry("a.bed." + md5 + "0.bed.gz.find", now - 4 * hour);
+		File recent= this.makeEntry("b.bed." + md5 + "1.bed.gz", now - 2 * hour);
+		File inUse= this.makeEntry("c.bam." + md5 + "2.bam", now - 5 * hour);
+		File other= this.makeEntry("not_in_cache.txt", now - 6 * hour);
+		DerivedFileCache.markUsed(inUse);
+		assertTrue(inUse.setLastModified(now - 5 * hour));
+
+		Config.set(ConfigKey.cache_max_mb, "2");
+		DerivedFileCache.trim();
+		assertFalse(oldest.exists());
+		assertFalse(oldestTbi.exists());
+		assertFalse(oldestFind.exists());
+		assertTrue(recent.exists());
+		assertTrue(inUse.exists());
+		assertTrue(other.exists());
+
+		// Used in the last hour, possibly by another session
+		File usedElsewhere= this.makeEntry("d.bed." + md5 + "3.bed.gz", now - 10 * 60 * 1000);
+
+		Config.set(ConfigKey.cache_max_mb, "1");
+		DerivedFileCache.trim();
+		assertFalse(recent.exists());
+		assertTrue(inUse.exists());
+		assertTrue(usedElsewhere.exists());
+
+		// Entries used in this session are kept recent
+		DerivedFileCache.refreshInUse();
+		assertTrue(inUse.lastModified() > now - hour);
+	}
+
+	@Test
+	public void canDeleteTempFilesLeftByKilledSessions() throws IOException, InvalidColourException{
+		long hour= 60 * 60 * 1000;
+		long now= System.currentTimeMillis();
+		String md5= "0123456789abcdef0123456789abcde";
+		File stale= this.makeEntry("a.bed." + md5 + "0123456.tmp.bed.gz", now - 2 * hour);
+		File staleTbi= this.makeEntry("a.bed." + md5 + "0123456.tmp.bed.gz.tbi", now - 2 * hour);
+		File writtenElsewhere= this.makeEntry("b.bed." + md5 + "1123456.tmp.bed.gz", now - 10 * 60 * 1000);
+		File other= this.makeEntry("notes.tmp.txt", now - 2 * hour);
+
+		// Written by this session for longer than an hour
+		File writing= DerivedFileCache.newTempFile(new File(new File(tmp.getRoot(), "cache"), "c.bam." + md5 + "2.bam"), ".tmp.bam");
+		assertFalse(DerivedFileCache.isCached(writing));
+		assertTrue(writing.setLastModified(now - 2 * hour));
+		DerivedFileCache.refreshInUse();
+
+		Config.set(ConfigKey.cache_max_mb, "10240");
+		DerivedFileCache.trim();
+		assertFalse(stale.exists());
+		assertFalse(staleTbi.exists());
+		assertTrue(writtenElsewhere.exists());
+		assertTrue(other.exists());
+		assertTrue(writing.exists());
+	}
+}
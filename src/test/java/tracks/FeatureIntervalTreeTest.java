@@ -0,0 +1,87 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import samTextViewer.GenomicCoords;
+
+public class FeatureIntervalTreeTest {
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	@After
+	public void resetConfig() throws InvalidColourException{
+		Config.set(ConfigKey.in_memory_max_kb, "1024");
+	}
+
+	private List<String> queryTabix(TrackIntervalFeature tif, String chrom, int start, int end) throws IOException{
+		List<String> lines= new ArrayList<String>();
+		TabixBigBedIterator iter= tif.getReader().query(chrom, start, end);
+		String line;
+		while((line= iter.next()) != null){
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/** Compare tree and tabix on random intervals of this tabix indexed file */
+	private void compareWithTabix(String filename, String chrom, int maxPos) throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		GenomicCoords gc= new GenomicCoords(chrom + ":1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature(filename, gc);
+		FeatureIntervalTree tree= FeatureIntervalTree.read(filename, tif);
+
+		assertEquals(tif.getReader().getChromosomes(), tree.getChromosomes());
+		assertEquals(this.queryTabix(tif, chrom, 0, Integer.MAX_VALUE), tree.query(chrom, 0, Integer.MAX_VALUE));
+		assertTrue(tree.query(chrom, 0, Integer.MAX_VALUE).size() > 0);
+		Random rnd= new Random(1);
+		for(int i= 0; i < 1000; i++){
+			int start= rnd.nextInt(maxPos);
+			int end= start + rnd.nextInt(i % 2 == 0 ? 1000 : 1000000);
+			assertEquals(this.queryTabix(tif, chrom, start, end), tree.query(chrom, start, end));
+		}
+		assertEquals(0, tree.query("nonExistent", 0, Integer.MAX_VALUE).size());
+	}
+
+	@Test
+	public void canQuerySameAsTabix() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		this.compareWithTabix("test_data/refSeq.hg19.short.sort.bed.gz", "chr1", 250000000);
+		this.compareWithTabix("test_data/hg19_genes_head.gtf.gz", "chr1", 2000000);
+		this.compareWithTabix("test_data/CEU.exon.2010_06.genotypes.vcf.gz", "1", 250000000);
+	}
+
+	@Test
+	public void canHoldSmallFileInMemory() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
+		GenomicCoords gc= new GenomicCoords("chr1:1-100000000", 80, null, null);
+		String filename= "test_data/refSeq.hg19.short.sort-2.bed"; // Not sorted, not indexed
+
+		TrackIntervalFeature inMemory= new TrackIntervalFeature(filename, gc);
+		assertEquals(inMemory.getFilename(), new File(inMemory.getWorkFilename()).getAbsolutePath()); // No tmp file
+
+		Config.set(ConfigKey.in_memory_max_kb, "0");
+		TrackIntervalFeature indexed= new TrackIntervalFeature(filename, gc);
+		assertTrue( ! indexed.getFilename().equals(new File(indexed.getWorkFilename()).getAbsolutePath()));
+
+		assertEquals(indexed.printToScreen(), inMemory.printToScreen());
+		assertEquals(this.queryTabix(indexed, "chr1", 0, Integer.MAX_VALUE), this.queryTabix(inMemory, "chr1", 0, Integer.MAX_VALUE));
+	}
+}
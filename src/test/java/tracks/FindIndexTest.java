@@ -0,0 +1,103 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import samTextViewer.GenomicCoords;
+
+public class FindIndexTest {
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	@After
+	public void resetConfig() throws InvalidColourException{
+		Config.set(ConfigKey.find_index, "true");
+		Config.set(ConfigKey.in_memory_max_kb, "1024");
+	}
+
+	@Test
+	public void canTellIndexablePatterns(){
+		assertTrue(FindIndex.isIndexable(Pattern.compile("ACTB")));
+		assertTrue(FindIndex.isIndexable(Pattern.compile("gene_name \"ACTB\"")));
+		assertTrue(FindIndex.isIndexable(Pattern.compile("NM_001.1", Pattern.LITERAL)));
+
+		assertFalse(FindIndex.isIndexable(Pattern.compile("NM_001.1")));
+		assertFalse(FindIndex.isIndexable(Pattern.compile("^chr1")));
+		// No trigram
+		assertFalse(FindIndex.isIndexable(Pattern.compile("AC")));
+		assertFalse(FindIndex.isIndexable(Pattern.compile("A-B-C")));
+	}
+
+	@Test
+	public void canFindSameAsFullScan() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
+		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/refSeq.hg19.bed.gz", gc);
+
+		String[] queries= new String[] {"NM_014810", "nm_0148", "utr3_37_0_CHR1_18008", "NM_032291_utr3_24_0_chr1_67208779_f", "NotPresent"};
+		for(String q : queries){
+			Pattern pattern= Pattern.compile(q, Pattern.CASE_INSENSITIVE);
+			for(String chrom : new String[] {"chr1", "chr7", "chrX"}){
+				Config.set(ConfigKey.find_index, "false");
+				IntervalFeature expected= tif.findNextRegexInGenome(pattern, chrom, 1000000);
+				GenomicCoords expectedAll= tif.genomicCoordsAllChromMatchInGenome(pattern, new GenomicCoords(chrom + ":1-1000", 80, null, null));
+				Config.set(ConfigKey.find_index, "true");
+				IntervalFeature observed= tif.findNextRegexInGenome(pattern, chrom, 1000000);
+				GenomicCoords observedAll= tif.genomicCoordsAllChromMatchInGenome(pattern, new GenomicCoords(chrom + ":1-1000", 80, null, null));
+
+				if(expected == null){
+					assertEquals(null, observed);
+				} else {
+					assertEquals(expected.getRaw(), observed.getRaw());
+				}
+				assertEquals(expectedAll.toStringRegion(), observedAll.toStringRegion());
+			}
+		}
+		// Filters still apply
+		tif.setShowHideRegex(Pattern.compile(".*"), Pattern.compile("NM_014810"));
+		assertEquals(null, tif.findNextRegexInGenome(Pattern.compile("NM_014810"), "chr1", 1));
+	}
+
+	@Test
+	public void canSaveIndexNextToWorkFile() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
+		Config.set(ConfigKey.in_memory_max_kb, "0"); // Make sure the file is indexed to tmp
+		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/refSeq.hg19.bed.gz", gc);
+		File indexFile= new File(tif.getWorkFilename() + ".find");
+		assertFalse(indexFile.exists());
+
+		FindIndex built= FindIndex.open(tif);
+		assertTrue(indexFile.exists());
+		FindIndex read= FindIndex.open(tif);
+		Pattern pattern= Pattern.compile("NM_014810");
+		assertTrue(built.candidateBins(pattern).cardinality() > 0);
+		assertEquals(built.candidateBins(pattern), read.candidateBins(pattern));
+
+		// Index is dropped when the file changes
+		tif.clearFeatureCache();
+		assertFalse(indexFile.exists());
+
+		// Tabix indexed input: Do not write next to the user's file
+		tif= new TrackIntervalFeature("test_data/refSeq.hg19.short.sort.bed.gz", gc);
+		assertTrue(FindIndex.open(tif) != null);
+		assertFalse(new File(tif.getWorkFilename() + ".find").exists());
+	}
+}
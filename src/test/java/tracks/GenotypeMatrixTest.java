@@ -19,9 +19,12 @@ import exceptions.InvalidColourException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import samTextViewer.GenomicCoords;
+import samTextViewer.Utils;
 
 public class GenotypeMatrixTest {
 
@@ -262,6 +265,46 @@ public class GenotypeMatrixTest {
 		assertTrue(rows[2].contains("0")); // HOM alt
 	}
 
+	@Test
+	public void canDecodeOnlySelectedSamples() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException {
+		
+		VCFFileReader reader = new VCFFileReader(new File("test_data/ALL.wgs.mergedSV.v8.20130502.svs.genotypes.vcf.gz"));
+		VCFHeader vcfHeader = reader.getFileHeader();
+		reader.close();
+		
+		GenomicCoords gc= new GenomicCoords("1:572807-755079", 80, null, null);
+		TrackIntervalFeature vcf= new TrackIntervalFeature("test_data/ALL.wgs.mergedSV.v8.20130502.svs.genotypes.vcf.gz", gc);
+		List<IntervalFeature> linf = vcf.getIntervalFeatureList();
+		assertTrue(linf.size() > 0);
+
+		List<String> allSamples= vcfHeader.getGenotypeSamples();
+		int[] sampleIdx= new int[] {0, allSamples.size() - 1};
+		List<String> samples= new ArrayList<String>();
+		for(int i : sampleIdx){
+			samples.add(allSamples.get(i));
+		}
+		VCFCodec codec= new VCFCodec();
+		codec.setVCFHeader(new VCFHeader(vcfHeader.getMetaDataInInputOrder(), samples), Utils.getVCFHeaderVersion(vcfHeader));
+		for(IntervalFeature x : linf){
+			VariantContext subset= x.getVariantContext(codec, sampleIdx);
+			assertEquals(2, subset.getNSamples());
+			for(String sample : samples){
+				assertEquals(x.getVariantContext().getGenotype(sample).getGenotypeString(), subset.getGenotype(sample).getGenotypeString());
+			}
+		}
+		
+		// Same matrix whether all samples are decoded or not
+		GenotypeMatrix gm= new GenotypeMatrix();
+		gm.setSelectSampleRegex(allSamples.get(1));
+		String x= gm.printToScreen(true, linf, 80, vcfHeader);
+		assertTrue(x.startsWith(allSamples.get(1)));
+		gm.setSelectSampleRegex(".*");
+		gm.setnMaxSamples(allSamples.size());
+		String[] rows= gm.printToScreen(true, linf, 80, vcfHeader).split("\n");
+		assertEquals(allSamples.size(), rows.length);
+		assertEquals(x, rows[1]);
+	}
+
 	@Test
 	public void overalappingSymbols() throws IOException, InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException {
 		
@@ -301,6 +344,30 @@ public class GenotypeMatrixTest {
 		assertTrue(gm.printToScreen(true, linf, 80, null).isEmpty());
 	}
 	
+	@Test
+	public void canSelectNoSamplesWithHeader() throws Exception{
+
+		GenomicCoords gc= new GenomicCoords("1:113054000-113055000", 80, null, null);
+		TrackIntervalFeature vcf= new TrackIntervalFeature("test_data/CEU.exon.2010_06.genotypes.vcf.gz", gc);
+		List<IntervalFeature> linf = vcf.getIntervalFeatureList();
+		assertTrue(linf.size() > 0);
+
+		GenotypeMatrix gm= new GenotypeMatrix();
+		gm.setnMaxSamples(0);
+		assertTrue(gm.printToScreen(true, linf, 80, vcf.getVcfHeader()).isEmpty());
+
+		gm= new GenotypeMatrix();
+		gm.setSelectSampleRegex("NoSuchSample");
+		assertTrue(gm.printToScreen(true, linf, 80, vcf.getVcfHeader()).isEmpty());
+
+		// The features can still be decoded without samples
+		VCFCodec codec= new VCFCodec();
+		codec.setVCFHeader(new VCFHeader(vcf.getVcfHeader().getMetaDataInInputOrder(), new ArrayList<String>()), Utils.getVCFHeaderVersion(vcf.getVcfHeader()));
+		VariantContext ctx= linf.get(0).getVariantContext(codec, new int[0]);
+		assertEquals(0, ctx.getNSamples());
+		assertEquals(linf.get(0).getVariantContext().getStart(), ctx.getStart());
+	}
+
 	@Test
 	public void behaviourWithHaploid(){
 		// TODO
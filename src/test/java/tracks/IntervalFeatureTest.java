@@ -247,6 +247,9 @@ public class IntervalFeatureTest {
 		f= new IntervalFeature(line, TrackFormat.GTF, null, -1);
 		f.setGtfAttributeForName("foo");
 		assertEquals("myname", f.getName());
+		// Name is read again if the attribute changes
+		f.setGtfAttributeForName(null);
+		assertEquals("mrna0001", f.getName());
 		
 		//Custom name from GTF, with attribute not found
 		line= "chr1 na exon 1 10 . + . ID=mrna0001;Name=myname".replaceAll(" ", "\t");
@@ -485,6 +488,54 @@ public class IntervalFeatureTest {
 		assertEquals("|", ift.getIdeogram(true, true).get(0).format(true));
 	}
 	
+	@Test
+	public void canGetVCFCoordsWithoutDecodingLine() throws InvalidGenomicCoordsException, IOException{
+		
+		VCFFileReader reader = new VCFFileReader(new File("test_data/CHD.exon.2010_03.sites.vcf.gz"));
+		VCFHeader vcfHeader= reader.getFileHeader();
+		reader.close();
+		VCFCodec vcfCodec= new VCFCodec();
+		vcfCodec.setVCFHeader(vcfHeader, Utils.getVCFHeaderVersion(vcfHeader));
+		
+		// Same end as if the line was decoded
+		String[] alleles= new String[] {"C G", "CTTG C", "C CTTG", "CT GA", "CTT GA", "C CTTG,A", "C <DEL>", "C ."};
+		int[] expectedTo= new int[] {10, 13, 13, 11, 12, 10, 10, 10};
+		for(int i= 0; i < alleles.length; i++){
+			String vcfLine= ("1 10 rs1 " + alleles[i] + " 23 PASS AA=.").replaceAll(" ", "\t");
+			IntervalFeature ift= new IntervalFeature(vcfLine, TrackFormat.VCF, vcfCodec, -1);
+			assertEquals("1", ift.getChrom());
+			assertEquals(10, ift.getFrom());
+			assertEquals(expectedTo[i], ift.getTo());
+			assertEquals("rs1", ift.getName());
+		}
+		
+		// Rest of the line is decoded only when needed 
+		String vcfLine= "1 10 . C G 23 PASS AA=.;NOT_A_NUMBER=x;DP=foo".replaceAll(" ", "\t");
+		IntervalFeature ift= new IntervalFeature(vcfLine, TrackFormat.VCF, vcfCodec, -1);
+		assertEquals(10, ift.getTo());
+		assertEquals(".", ift.getName());
+		assertEquals("foo", ift.getVariantContext().getAttributeAsString("DP", null));
+	}
+	
+	@Test
+	public void canDecodeColumnsOnFirstAccess() throws InvalidGenomicCoordsException{
+		
+		String line= "chr1 0 100 myname 10 -".replaceAll(" ", "\t");
+		IntervalFeature f= new IntervalFeature(line, TrackFormat.BED, null, -1);
+		f.setStrand('+'); // Not overwritten by reading the line
+		assertEquals('+', f.getStrand());
+		assertEquals("myname", f.getName());
+		assertEquals(10, f.getScore(), 0.0001);
+		
+		line= "chr1 src exon 1 100 . - .".replaceAll(" ", "\t") + "\tgene_id \"ACTB\"; transcript_id \"NM_001101\";";
+		f= new IntervalFeature(line, TrackFormat.GTF, null, -1);
+		assertEquals("exon", f.getFeature());
+		assertEquals("src", f.getSource());
+		assertEquals('-', f.getStrand());
+		assertEquals("NM_001101", f.getName());
+		assertTrue(Float.isNaN(f.getScore()));
+	}
+
 	@Test
 	public void canFormatVCFLineStructVar() throws InvalidGenomicCoordsException, InvalidColourException, IOException, InvalidConfigException{
 		
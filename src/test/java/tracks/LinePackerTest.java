@@ -0,0 +1,135 @@
+package tracks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LinePackerTest {
+
+	/** Line by line stacking as done before LinePacker, used as reference.
+	 * */
+	private int[] naivePack(int[] starts, int[] ends, int gap){
+		int[] lineIdx= new int[starts.length];
+		List<Integer> remaining= new ArrayList<Integer>();
+		for(int i= 0; i < starts.length; i++){
+			remaining.add(i);
+		}
+		int line= 0;
+		while(remaining.size() > 0){
+			int last= remaining.remove(0);
+			lineIdx[last]= line;
+			List<Integer> left= new ArrayList<Integer>();
+			for(int i : remaining){
+				if(starts[i] > ends[last] + gap){
+					lineIdx[i]= line;
+					last= i;
+				} else {
+					left.add(i);
+				}
+			}
+			remaining= left;
+			line++;
+		}
+		return lineIdx;
+	}
+
+	private int[][] randomIntervals(Random rnd, int n, int width, int maxLen, boolean sorted){
+		int[] starts= new int[n];
+		int[] ends= new int[n];
+		for(int i= 0; i < n; i++){
+			starts[i]= rnd.nextInt(width) + 1;
+		}
+		if(sorted){
+			Arrays.sort(starts);
+		}
+		for(int i= 0; i < n; i++){
+			ends[i]= starts[i] + rnd.nextInt(maxLen);
+		}
+		return new int[][] {starts, ends};
+	}
+
+	@Test
+	public void canStackIntervals(){
+		//  1234567890
+		// [AAAA CC   ]
+		// [ BBB  DDDD]
+		int[] starts= new int[] {1, 2, 6, 7};
+		int[] ends=   new int[] {4, 4, 7, 10};
+		assertArrayEquals(new int[] {0, 1, 0, 1}, LinePacker.pack(starts, ends, 0));
+		// With a gap of 2, C is too close to both A and B
+		assertArrayEquals(new int[] {0, 1, 2, 0}, LinePacker.pack(starts, ends, 2));
+
+		assertEquals(0, LinePacker.pack(new int[0], new int[0], 1).length);
+	}
+
+	@Test
+	public void canGiveSameLayoutAsLineByLineStacking(){
+		Random rnd= new Random(1234);
+		for(int rep= 0; rep < 200; rep++){
+			int n= rnd.nextInt(300);
+			int[][] x= this.randomIntervals(rnd, n, 160, 1 + rnd.nextInt(50), rep % 2 == 0);
+			for(int gap= 0; gap <= 2; gap++){
+				assertArrayEquals(this.naivePack(x[0], x[1], gap), LinePacker.pack(x[0], x[1], gap));
+			}
+		}
+		// Many lines, so that the tree has to grow
+		int[][] x= this.randomIntervals(rnd, 5000, 100, 80, true);
+		assertArrayEquals(this.naivePack(x[0], x[1], 1), LinePacker.pack(x[0], x[1], 1));
+	}
+
+	@Test
+	public void canPackManyIntervals(){
+		Random rnd= new Random(1234);
+		for(int n : new int[] {1000, 10000, 100000}){
+			int[][] x= this.randomIntervals(rnd, n, 160, 60, true);
+			int[] lineIdx= LinePacker.pack(x[0], x[1], 1);
+			assertEquals(n, lineIdx.length);
+			if(n <= 10000){
+				// Line by line stacking is too slow beyond this size
+				assertArrayEquals(this.naivePack(x[0], x[1], 1), lineIdx);
+			}
+			// Intervals on the same line are separated by the gap
+			int[] lastEnd= new int[n];
+			Arrays.fill(lastEnd, Integer.MIN_VALUE / 2);
+			for(int i= 0; i < n; i++){
+				assertTrue(x[0][i] > lastEnd[lineIdx[i]] + 1);
+				lastEnd[lineIdx[i]]= x[1][i];
+			}
+		}
+	}
+
+	@Test
+	public void canPack100kIntervals(){
+		int n= 100000;
+		// Staircase: Each interval starts 1 bp after the previous one and is 10 bp long.
+		// With a gap of 1, an interval fits on the line of the one 11 positions before
+		int[] starts= new int[n];
+		int[] ends= new int[n];
+		for(int i= 0; i < n; i++){
+			starts[i]= i + 1;
+			ends[i]= i + 10;
+		}
+		int[] lineIdx= LinePacker.pack(starts, ends, 1);
+		int nLines= 0;
+		for(int i= 0; i < n; i++){
+			assertEquals(i % 11, lineIdx[i]);
+			nLines= Math.max(nLines, lineIdx[i] + 1);
+		}
+		assertEquals(11, nLines);
+
+		// All intervals on top of each other: One line each
+		Arrays.fill(starts, 1);
+		Arrays.fill(ends, 100);
+		lineIdx= LinePacker.pack(starts, ends, 1);
+		for(int i= 0; i < n; i++){
+			assertEquals(i, lineIdx[i]);
+		}
+	}
+}
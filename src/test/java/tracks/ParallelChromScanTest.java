@@ -0,0 +1,77 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import coloring.Config;
+import exceptions.InvalidConfigException;
+import exceptions.InvalidGenomicCoordsException;
+import exceptions.InvalidRecordException;
+import samTextViewer.GenomicCoords;
+
+public class ParallelChromScanTest {
+
+	@BeforeClass
+	public static void init() throws IOException, InvalidConfigException {
+		new Config(null);
+	}
+
+	private List<String> readChrom(TrackIntervalFeature tif, String chrom, int from, Pattern include) throws IOException{
+		List<String> lines= new ArrayList<String>();
+		TabixBigBedIterator iter= tif.getReader().query(chrom, from, Integer.MAX_VALUE);
+		String line;
+		while((line= iter.next()) != null){
+			if(include == null || include.matcher(line).find()){
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void canReturnSameLinesAsSequentialScan() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/refSeq.hg19.short.sort.bed.gz", gc);
+
+		List<String> chroms= new ArrayList<String>(tif.getReader().getChromosomes());
+		chroms.add("foo"); // Not in file
+		chroms.add(chroms.get(0)); // Same chrom twice is ok
+		Pattern include= Pattern.compile("NM_0");
+
+		for(int nThreads : new int[] {1, 4}){
+			ParallelChromScan scan= new ParallelChromScan(tif, chroms, 10000000, include, null, false, Integer.MAX_VALUE, nThreads);
+			for(int i= 0; i < chroms.size(); i++){
+				List<String> expected= this.readChrom(tif, chroms.get(i), i == 0 ? 10000000 : 0, include);
+				assertEquals(expected, scan.get(i));
+				assertFalse(scan.isTruncated(i));
+			}
+			scan.close();
+		}
+	}
+
+	@Test
+	public void canStopAfterMaxLines() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/refSeq.hg19.short.sort.bed.gz", gc);
+
+		List<String> chroms= new ArrayList<String>();
+		chroms.add("chr1");
+		ParallelChromScan scan= new ParallelChromScan(tif, chroms, 0, null, Pattern.compile("NM_001080397"), false, 3, 2);
+		assertEquals(3, scan.get(0).size());
+		assertTrue(scan.isTruncated(0));
+		for(String line : scan.get(0)){
+			assertFalse(line.contains("NM_001080397"));
+		}
+		scan.close();
+	}
+}
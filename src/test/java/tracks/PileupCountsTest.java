@@ -0,0 +1,98 @@
+package tracks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PileupCountsTest {
+
+	@Test
+	public void canCountBasesAndCallConsensus(){
+		PileupCounts p= new PileupCounts(10);
+		assertEquals(0, p.getDepth("chr1", 15));
+		assertEquals(' ', p.getConsensus("chr1", 15));
+
+		for(int i= 0; i < 5; i++){
+			p.add("chr1", 15, 'a', false, true);
+		}
+		assertEquals(5, p.getDepth("chr1", 15));
+		assertEquals(5, p.getCount("chr1", 15, 'A'));
+		assertEquals('A', p.getConsensus("chr1", 15));
+
+		for(int i= 0; i < 3; i++){
+			p.add("chr1", 15, 'G', true, false);
+		}
+		assertEquals(8, p.getDepth("chr1", 15));
+		assertEquals('R', p.getConsensus("chr1", 15)); // A/G
+
+		p.add("chr1", 15, 'D', true, false);
+		assertEquals('N', p.getConsensus("chr1", 15)); // A + G less than 98%
+
+		// Ties are broken in the same order as before
+		p.add("chr1", 16, 'T', true, false);
+		p.add("chr1", 16, 'C', true, false);
+		assertEquals('C', p.getConsensus("chr1", 16));
+	}
+
+	@Test
+	public void canFindMissingIntervals(){
+		PileupCounts p= new PileupCounts(10);
+		p.setVisited("chr1", 10, 20);
+		p.setVisited("chr1", PileupCounts.BLOCK_SIZE - 5, PileupCounts.BLOCK_SIZE + 100);
+
+		List<int[]> missing= p.getMissingIntervals("chr1", 1, 2 * PileupCounts.BLOCK_SIZE);
+		assertEquals(3, missing.size());
+		assertEquals(1, missing.get(0)[0]);
+		assertEquals(9, missing.get(0)[1]);
+		assertEquals(21, missing.get(1)[0]);
+		assertEquals(PileupCounts.BLOCK_SIZE - 6, missing.get(1)[1]);
+		assertEquals(PileupCounts.BLOCK_SIZE + 101, missing.get(2)[0]);
+		assertEquals(2 * PileupCounts.BLOCK_SIZE, missing.get(2)[1]);
+
+		assertEquals(0, p.getMissingIntervals("chr1", 12, 18).size());
+		assertEquals(1, p.getMissingIntervals("chr2", 12, 18).size());
+	}
+
+	@Test
+	public void canEvictLeastRecentlyUsedBlocks(){
+		PileupCounts p= new PileupCounts(2);
+		p.add("chr1", 1, 'A', false, false);
+		p.add("chr1", PileupCounts.BLOCK_SIZE + 1, 'A', false, false);
+		p.add("chr2", 1, 'A', false, false);
+		assertEquals(3, p.size());
+
+		p.evict("chr2", 1, 10);
+		assertEquals(2, p.size());
+		assertEquals(0, p.getDepth("chr1", 1)); // This was the oldest block
+		assertEquals(1, p.getDepth("chr2", 1));
+
+		// Blocks in the current window are kept even if over the limit
+		p= new PileupCounts(1);
+		p.add("chr1", 1, 'A', false, false);
+		p.add("chr1", PileupCounts.BLOCK_SIZE + 1, 'A', false, false);
+		p.evict("chr1", 1, PileupCounts.BLOCK_SIZE + 1);
+		assertEquals(2, p.size());
+	}
+
+	@Test
+	public void canSeeBlocksAddedOrRemovedAfterLookup(){
+		PileupCounts p= new PileupCounts(1);
+		assertEquals(0, p.getDepth("chr1", 1)); // Block looked up before it exists
+
+		PileupCounts other= new PileupCounts(Integer.MAX_VALUE);
+		other.add("chr1", 1, 'A', false, false);
+		p.addAll(other);
+		assertEquals(1, p.getDepth("chr1", 1));
+
+		p.add("chr2", 1, 'A', false, false);
+		assertEquals(1, p.getDepth("chr2", 1));
+		p.evict("chr1", 1, 10);
+		assertEquals(1, p.size());
+		assertEquals(0, p.getDepth("chr2", 1)); // Block just looked up was evicted
+		p.add("chr2", 1, 'A', false, false);
+		assertEquals(1, p.getDepth("chr2", 1));
+		assertEquals(2, p.size());
+	}
+}
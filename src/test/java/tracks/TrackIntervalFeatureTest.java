@@ -3,11 +3,15 @@ package tracks;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -474,6 +478,45 @@ public class TrackIntervalFeatureTest {
         assertTrue(tif.getIntervalFeatureList().size() == 11);
     }
     
+    /** Raw lines of the gtf file overlapping from-to, in file order, and passing the regex. */
+    private List<String> gtfLinesInInterval(String gtf, int from, int to, String regex) throws IOException{
+        List<String> lines= new ArrayList<String>();
+        BufferedReader br= new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(gtf))));
+        String line;
+        while((line= br.readLine()) != null){
+            List<String> x= Splitter.on("\t").splitToList(line);
+            if(Integer.valueOf(x.get(3)) <= to && Integer.valueOf(x.get(4)) >= from && line.contains(regex)){
+                lines.add(line);
+            }
+        }
+        br.close();
+        return lines;
+    }
+    
+    @Test
+    public void canPanUsingCachedBlocks() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException{
+        
+        String intervalFileName= "test_data/hg19_genes_head.gtf.gz";
+        GenomicCoords gc= new GenomicCoords("chr1:10000-160000", 80, null, null);
+        TrackIntervalFeature tif= new TrackIntervalFeature(intervalFileName, gc);
+        
+        // Windows overlapping each other and block boundaries, as when panning and zooming 
+        int[][] windows= new int[][] {{10000, 160000}, {85000, 235000}, {160000, 310000}, {99990, 100010}, {1, 1400000}, {199000, 201000}};
+        for(int[] w : windows){
+            tif.setGc(new GenomicCoords("chr1:" + w[0] + "-" + w[1], 80, null, null));
+            assertEquals(this.gtfLinesInInterval(intervalFileName, w[0], w[1], ""), tif.getRecordsAsStrings());
+        }
+        
+        // Filters change the features in cached blocks
+        tif.setShowHideRegex(Pattern.compile("\texon\t"), Pattern.compile("^$"));
+        for(int[] w : windows){
+            tif.setGc(new GenomicCoords("chr1:" + w[0] + "-" + w[1], 80, null, null));
+            assertEquals(this.gtfLinesInInterval(intervalFileName, w[0], w[1], "\texon\t"), tif.getRecordsAsStrings());
+        }
+        tif.setShowHideRegex(Pattern.compile(Filter.DEFAULT_SHOW_REGEX.getValue()), Pattern.compile(Filter.DEFAULT_HIDE_REGEX.getValue()));
+        assertEquals(this.gtfLinesInInterval(intervalFileName, 199000, 201000, ""), tif.getRecordsAsStrings());
+    }
+    
     @Test
     public void canShowAndHide_getFeaturesInInterval() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException{
         
@@ -685,7 +728,39 @@ public class TrackIntervalFeatureTest {
 
     }
 
-    
+    @Test
+    public void canGetNextAndPreviousFeatureFarAway() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException{
+
+        // Thousands of features hidden between the current position and the next visible one
+        GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+        TrackIntervalFeature tif= new TrackIntervalFeature("test_data/refSeq.hg19.bed.gz", gc);
+        tif.setShowHideRegex(Pattern.compile("NM_014810_"), Pattern.compile(Filter.DEFAULT_HIDE_REGEX.getValue()));
+
+        GenomicCoords newGc= tif.coordsOfNextFeature(gc, false);
+        assertEquals("chr1", newGc.getChrom());
+        assertEquals(180080297, (int)newGc.getFrom());
+
+        gc= new GenomicCoords("chr1:200000000-200001000", 80, null, null);
+        newGc= tif.coordsOfNextFeature(gc, true);
+        assertEquals(180080297, (int)newGc.getFrom());
+
+        // Search wraps around the genome
+        gc= new GenomicCoords("chr1:190000000-190001000", 80, null, null);
+        newGc= tif.coordsOfNextFeature(gc, false);
+        assertEquals("chr1", newGc.getChrom());
+        assertEquals(180080297, (int)newGc.getFrom());
+
+        // Changing filter is reflected
+        tif.setShowHideRegex(Pattern.compile("NM_032291_"), Pattern.compile(Filter.DEFAULT_HIDE_REGEX.getValue()));
+        gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+        newGc= tif.coordsOfNextFeature(gc, false);
+        assertEquals(67208779, (int)newGc.getFrom());
+
+        gc= new GenomicCoords("chr1:200000000-200001000", 80, null, null);
+        newGc= tif.coordsOfNextFeature(gc, true);
+        assertEquals(67208779, (int)newGc.getFrom());
+    }
+
     @Test
     public void canFindAllRegex() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException{
 
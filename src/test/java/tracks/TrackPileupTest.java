@@ -26,6 +26,8 @@ import exceptions.InvalidColourException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import exceptions.UpdateCancelledException;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.filter.MappingQualityFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 import samTextViewer.GenomicCoords;
@@ -357,4 +359,50 @@ public class TrackPileupTest {
 		GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
 		new TrackPileup("test_data/ds051.noindex.sam", gc);
 	}	
+
+	private long totalDepth(TrackPileup tr) throws IOException{
+		long n= 0;
+		for(int depth : tr.getDepth(tr.getGc().getChrom(), tr.getGc().getFrom(), tr.getGc().getTo()).values()){
+			n += depth;
+		}
+		return n;
+	}
+
+	@Test
+	public void canCancelUpdateWithoutCountingReadsTwice() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		GenomicCoords gc= new GenomicCoords("chr7:5520000-5600000", 80, null, null);
+		TrackPileup tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+		long expected= this.totalDepth(tr);
+		assertTrue(expected > 0);
+
+		// Cancel the update after some reads have been counted
+		List<SamRecordFilter> filters= new ArrayList<SamRecordFilter>();
+		filters.add(new SamRecordFilter() {
+			private int n= 0;
+			@Override
+			public boolean filterOut(SAMRecord rec) {
+				n++;
+				if(n == 1000){
+					Track.setUpdatesCancelled(true);
+				}
+				return false;
+			}
+			@Override
+			public boolean filterOut(SAMRecord first, SAMRecord second) {
+				return false;
+			}
+		});
+		boolean cancelled= false;
+		try{
+			tr.setSamRecordFilter(filters);
+		} catch(UpdateCancelledException e){
+			cancelled= true;
+		} finally {
+			Track.setUpdatesCancelled(false);
+		}
+		assertTrue(cancelled);
+
+		tr.update();
+		assertEquals(expected, this.totalDepth(tr));
+	}
 }
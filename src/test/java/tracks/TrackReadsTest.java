@@ -26,6 +26,7 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.filter.SamRecordFilter;
 import samTextViewer.GenomicCoords;
+import samTextViewer.Utils;
 
 public class TrackReadsTest {
 
@@ -415,10 +416,46 @@ public class TrackReadsTest {
 	
 	@Test
 	public void canResetToZeroLargeWindow() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException {
-		// If the genomic window is too large do not process the bam file and return zero height track.
+		// If the genomic window is too large do not process the bam file. Only show the 
+		// read density estimated from the index.
 		GenomicCoords gc= new GenomicCoords("chr7:1-100000000",80, samSeqDict, fastaFile);
 		TrackReads tr= new TrackReads("test_data/ds051.actb.bam", gc);
-		assertEquals("", tr.printToScreen());
+		tr.setNoFormat(true);
+		assertTrue(tr.printToScreen().split("\n").length <= 5);
+		assertTrue(tr.getTitle().contains("estimated from index"));
+	}
+	
+	@Test
+	public void canEstimateReadDensityInLargeWindow() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException {
+		GenomicCoords gc= new GenomicCoords("chr7:1-100000000", 80, null, null);
+		TrackReads tr= new TrackReads("test_data/ds051.actb.bam", gc);
+		tr.setNoFormat(true);
+		tr.update();
+		String profile= tr.printToScreen();
+		assertTrue(profile.trim().length() > 0);
+		assertTrue(profile.split("\n").length <= 5);
+		assertTrue(tr.getTitle().contains("Reads: ~"));
+
+		// Estimate is close to the actual number of reads, all in a small region of chr7
+		long nReads= Utils.getAlignedReadCount("test_data/ds051.actb.bam");
+		List<Float> density= ReadDensityEstimator.fromIndex("test_data/ds051.actb.bam", "chr7").estimate(gc.getScreenMapper());
+		assertEquals(80, density.size());
+		float tot= 0;
+		int nonZero= 0;
+		for(float x : density){
+			tot += x;
+			if(x > 0){
+				nonZero++;
+			}
+		}
+		assertEquals(nReads, tot, nReads * 0.05);
+		assertTrue(nonZero <= 2);
+
+		// Zoom in: Reads are shown again
+		gc= new GenomicCoords("chr7:5566778-5566943", 80, null, null);
+		tr.setGc(gc);
+		tr.update();
+		assertTrue( ! tr.getTitle().contains("estimated"));
 	}
 	
 	@Test
@@ -426,7 +463,8 @@ public class TrackReadsTest {
 		// If the genomic window is too large do not process the bam file and return zero height track.
 		GenomicCoords gc= new GenomicCoords("chr7:1-100000000",80, samSeqDict, fastaFile);
 		TrackReads tr= new TrackReads("test_data/ds051.noindex.sam", gc);
-		assertEquals("", tr.printToScreen());
+		tr.setNoFormat(true);
+		assertTrue(tr.printToScreen().split("\n").length <= 5);
 	}
 	
 }
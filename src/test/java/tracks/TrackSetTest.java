@@ -989,6 +989,26 @@ public class TrackSetTest {
         assertTrue(ts.getTrack(t1).printToScreen().contains("__00096"));
     }
 
+    @Test
+    public void canHandleGenotypeMatrixWithNoSamplesSelected() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException, InvalidCommandLineException{
+        
+        GenomicCoords gc= new GenomicCoords("1:113054356-113054534", 80, null, null);
+        TrackSet ts= new TrackSet(new ArrayList<String>(), gc);
+        String vcf= "test_data/CEU.exon.2010_06.genotypes.vcf.gz";
+        Track t1= new TrackIntervalFeature(vcf, gc); ts.addTrack(t1, "x"); t1.setNoFormat(true);
+        assertTrue(ts.getTrack(t1).printToScreen().contains("NA"));
+
+        ts.setGenotypeMatrix(Utils.tokenize("genotype -n 0", " "));
+        String x= ts.getTrack(t1).printToScreen();
+        assertTrue(x.length() > 0); // Features still shown
+        assertTrue( ! x.contains("NA"));
+
+        ts.setGenotypeMatrix(Utils.tokenize("genotype -n -1 -s NoSuchSample", " "));
+        x= ts.getTrack(t1).printToScreen();
+        assertTrue(x.length() > 0);
+        assertTrue( ! x.contains("NA"));
+    }
+
     @Test
     public void canFilterGenotypeMatrix() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException, InvalidCommandLineException{
         
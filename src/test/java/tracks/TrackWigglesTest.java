@@ -6,6 +6,8 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -16,6 +18,7 @@ import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import samTextViewer.GenomicCoords;
+import samTextViewer.Utils;
 
 public class TrackWigglesTest {
 
@@ -51,4 +54,89 @@ public class TrackWigglesTest {
 		assertTrue(rpm > raw);
 	}
 	
+	@Test
+	public void canSummarizeBigWigWithStatistic() throws InvalidGenomicCoordsException, IOException, InvalidRecordException, ClassNotFoundException, SQLException, InvalidColourException{
+		// Wide window so that zoom levels are used
+		GenomicCoords gc= new GenomicCoords("chr9:1-5000000", 80, null, null);
+		TrackWiggles tw= new TrackWiggles("test_data/wgEncodeCaltechRnaSeqGm12878R2x75Il400SigRep2V2.sample.bigWig", gc);
+		tw.update();
+		List<Float> mean= tw.getScreenScores();
+		
+		tw.setWiggleStatistic(WiggleStatistic.MAX);
+		List<Float> max= tw.getScreenScores();
+		tw.setWiggleStatistic(WiggleStatistic.MIN);
+		List<Float> min= tw.getScreenScores();
+		assertEquals(mean.size(), max.size());
+		boolean hasData= false;
+		for(int i= 0; i < mean.size(); i++){
+			if(mean.get(i).isNaN()){
+				continue;
+			}
+			hasData= true;
+			assertTrue(min.get(i) <= mean.get(i) + 1e-3);
+			assertTrue(max.get(i) >= mean.get(i) - 1e-3);
+		}
+		assertTrue(hasData);
+		assertTrue(tw.getTitle().contains("min"));
+	}
+	
+	@Test
+	public void canReadTDFAtAnyResolution() throws InvalidGenomicCoordsException, IOException, InvalidRecordException, ClassNotFoundException, SQLException{
+		// Whole chromosome: Read from zoom levels
+		GenomicCoords gc= new GenomicCoords("chr8:1-146274826", 80, null, null);
+		TrackWiggles tw= new TrackWiggles("test_data/hg18_var_sample.wig.v2.1.30.tdf", gc);
+		tw.update();
+		assertEquals(80, tw.getScreenScores().size());
+		assertTrue( ! Utils.allIsNaN(floatsToDoubles(tw.getScreenScores())));
+		List<Float> coarse= tw.getScreenScores();
+		
+		// Same window read by a new track, from scratch
+		GenomicCoords zoomedIn= new GenomicCoords("chr8:1000000-1100000", 80, null, null);
+		TrackWiggles fresh= new TrackWiggles("test_data/hg18_var_sample.wig.v2.1.30.tdf", zoomedIn);
+		fresh.update();
+		List<Float> expected= fresh.getScreenScores();
+		fresh.close();
+		assertTrue( ! Utils.allIsNaN(floatsToDoubles(expected)));
+		
+		// Zoom in and back out reusing the tiles already read
+		tw.setGc(new GenomicCoords("chr8:1000000-1100000", 80, null, null));
+		assertEquals(expected, tw.getScreenScores());
+		assertTrue( ! coarse.equals(tw.getScreenScores()));
+		tw.setGc(new GenomicCoords("chr8:1-146274826", 80, null, null));
+		assertEquals(coarse, tw.getScreenScores());
+		tw.setGc(new GenomicCoords("chr8:1000000-1100000", 80, null, null));
+		assertEquals(expected, tw.getScreenScores());
+		tw.close();
+	}
+
+	@Test
+	public void canCloseTDFTrackWhileAnotherIsOpen() throws InvalidGenomicCoordsException, IOException, InvalidRecordException, ClassNotFoundException, SQLException{
+		GenomicCoords gc= new GenomicCoords("chr8:1000000-1100000", 80, null, null);
+		TrackWiggles tw= new TrackWiggles("test_data/hg18_var_sample.wig.v2.1.30.tdf", gc);
+		TrackWiggles other= new TrackWiggles("test_data/hg18_var_sample.wig.v2.1.30.tdf", gc);
+		other.close();
+		
+		// Tiles not read yet by tw
+		tw.setGc(new GenomicCoords("chr9:1000000-1100000", 80, null, null));
+		assertTrue( ! Utils.allIsNaN(floatsToDoubles(tw.getScreenScores())));
+		
+		// Reloading one track reopens its own reader only
+		other= new TrackWiggles("test_data/hg18_var_sample.wig.v2.1.30.tdf", gc);
+		other.reload();
+		tw.reload();
+		tw.setGc(new GenomicCoords("chr5:1000000-1100000", 80, null, null));
+		assertTrue( ! Utils.allIsNaN(floatsToDoubles(tw.getScreenScores())));
+		other.setGc(new GenomicCoords("chr5:1000000-1100000", 80, null, null));
+		assertEquals(tw.getScreenScores(), other.getScreenScores());
+		other.close();
+		tw.close();
+	}
+	
+	private List<Double> floatsToDoubles(List<Float> x){
+		List<Double> y= new ArrayList<Double>();
+		for(Float f : x){
+			y.add((double)f);
+		}
+		return y;
+	}
 }